@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2019. University of St Andrews
+ */
+
+package standrews.aux_;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Immutable sequence as a balanced (AVL) tree ordered by position, with the size of
+ * every subtree. Getting, replacing, inserting and removing an element by index take
+ * time logarithmic in the length, and a changed sequence shares all but one path of
+ * the tree with the original, so that keeping the original costs nothing.
+ *
+ * Elements may have an int key, such as the number of a category, see Symbols.cats.
+ * Each subtree records which keys occur in it, as bits of a mask of 128 bits indexed
+ * by key modulo 128, so that the nearest element with a given key is found by
+ * descending only into subtrees that may contain it. Keys are meant to be dense from 0,
+ * so that few of them share a bit; keys that do are still told apart, but their
+ * subtrees are searched in vain.
+ */
+public final class PersistentSequence<T> {
+
+    private static final class Node<T> {
+        final T value;
+        final int key;
+        final Node<T> left;
+        final Node<T> right;
+        final int size;
+        final int height;
+        /**
+         * Mask of keys in subtree, for keys modulo 128 below 64 and from 64.
+         */
+        final long lowKeys;
+        final long highKeys;
+
+        Node(final T value, final int key, final Node<T> left, final Node<T> right) {
+            this.value = value;
+            this.key = key;
+            this.left = left;
+            this.right = right;
+            this.size = size(left) + size(right) + 1;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.lowKeys = (isHigh(key) ? 0 : keyBit(key)) | lowKeys(left) | lowKeys(right);
+            this.highKeys = (isHigh(key) ? keyBit(key) : 0) | highKeys(left) | highKeys(right);
+        }
+    }
+
+    private static final ToIntFunction<Object> NO_KEY = value -> -1;
+
+    private final Node<T> root;
+
+    /**
+     * Key of element, negative for none.
+     */
+    private final ToIntFunction<? super T> keyOf;
+
+    private PersistentSequence(final Node<T> root, final ToIntFunction<? super T> keyOf) {
+        this.root = root;
+        this.keyOf = keyOf;
+    }
+
+    public static <T> PersistentSequence<T> empty() {
+        return new PersistentSequence<>(null, NO_KEY);
+    }
+
+    /**
+     * Empty sequence whose elements have keys.
+     */
+    public static <T> PersistentSequence<T> empty(final ToIntFunction<? super T> keyOf) {
+        return new PersistentSequence<>(null, keyOf);
+    }
+
+    public static <T> PersistentSequence<T> of(final List<T> values) {
+        return of(values, NO_KEY);
+    }
+
+    public static <T> PersistentSequence<T> of(final List<T> values, final ToIntFunction<? super T> keyOf) {
+        return new PersistentSequence<>(build(values, keyOf, 0, values.size()), keyOf);
+    }
+
+    private static <T> Node<T> build(final List<T> values, final ToIntFunction<? super T> keyOf,
+                                     final int from, final int to) {
+        if (from >= to)
+            return null;
+        final int mid = (from + to) >>> 1;
+        final T value = values.get(mid);
+        return new Node<>(value, keyOf.applyAsInt(value),
+                build(values, keyOf, from, mid), build(values, keyOf, mid + 1, to));
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    public T get(int i) {
+        checkIndex(i, size());
+        Node<T> node = root;
+        while (true) {
+            final int leftSize = size(node.left);
+            if (i < leftSize) {
+                node = node.left;
+            } else if (i == leftSize) {
+                return node.value;
+            } else {
+                i -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    public PersistentSequence<T> set(final int i, final T value) {
+        checkIndex(i, size());
+        return new PersistentSequence<>(set(root, i, value, keyOf.applyAsInt(value)), keyOf);
+    }
+
+    /**
+     * Insert value such that it gets index i.
+     */
+    public PersistentSequence<T> insert(final int i, final T value) {
+        checkIndex(i, size() + 1);
+        return new PersistentSequence<>(insert(root, i, value, keyOf.applyAsInt(value)), keyOf);
+    }
+
+    public PersistentSequence<T> add(final T value) {
+        return insert(size(), value);
+    }
+
+    public PersistentSequence<T> remove(final int i) {
+        checkIndex(i, size());
+        return new PersistentSequence<>(remove(root, i), keyOf);
+    }
+
+    /**
+     * Index of the first element at or after index from that has the key, or -1.
+     */
+    public int indexOf(final int key, final int from) {
+        return key < 0 ? -1 : indexOf(root, key, Math.max(from, 0), 0);
+    }
+
+    /**
+     * Index of the last element before index before that has the key, or -1.
+     */
+    public int lastIndexOf(final int key, final int before) {
+        return key < 0 ? -1 : lastIndexOf(root, key, before, 0);
+    }
+
+    private static int indexOf(final Node<?> node, final int key, final int from, final int offset) {
+        if (!mayContain(node, key) || offset + node.size <= from)
+            return -1;
+        final int found = indexOf(node.left, key, from, offset);
+        if (found >= 0)
+            return found;
+        final int i = offset + size(node.left);
+        if (i >= from && node.key == key)
+            return i;
+        return indexOf(node.right, key, from, i + 1);
+    }
+
+    private static int lastIndexOf(final Node<?> node, final int key, final int before, final int offset) {
+        if (!mayContain(node, key) || offset >= before)
+            return -1;
+        final int i = offset + size(node.left);
+        final int found = lastIndexOf(node.right, key, before, i + 1);
+        if (found >= 0)
+            return found;
+        if (i < before && node.key == key)
+            return i;
+        return lastIndexOf(node.left, key, before, offset);
+    }
+
+    public List<T> toList() {
+        final List<T> list = new ArrayList<>(size());
+        addAll(root, list);
+        return list;
+    }
+
+    private static <T> void addAll(final Node<T> node, final List<T> list) {
+        if (node == null)
+            return;
+        addAll(node.left, list);
+        list.add(node.value);
+        addAll(node.right, list);
+    }
+
+    private static <T> Node<T> set(final Node<T> node, final int i, final T value, final int key) {
+        final int leftSize = size(node.left);
+        if (i < leftSize)
+            return new Node<>(node.value, node.key, set(node.left, i, value, key), node.right);
+        else if (i == leftSize)
+            return new Node<>(value, key, node.left, node.right);
+        else
+            return new Node<>(node.value, node.key, node.left, set(node.right, i - leftSize - 1, value, key));
+    }
+
+    private static <T> Node<T> insert(final Node<T> node, final int i, final T value, final int key) {
+        if (node == null)
+            return new Node<>(value, key, null, null);
+        final int leftSize = size(node.left);
+        if (i <= leftSize)
+            return balance(node, insert(node.left, i, value, key), node.right);
+        else
+            return balance(node, node.left, insert(node.right, i - leftSize - 1, value, key));
+    }
+
+    private static <T> Node<T> remove(final Node<T> node, final int i) {
+        final int leftSize = size(node.left);
+        if (i < leftSize)
+            return balance(node, remove(node.left, i), node.right);
+        if (i > leftSize)
+            return balance(node, node.left, remove(node.right, i - leftSize - 1));
+        if (node.left == null)
+            return node.right;
+        if (node.right == null)
+            return node.left;
+        Node<T> first = node.right;
+        while (first.left != null)
+            first = first.left;
+        return balance(first, node.left, remove(node.right, 0));
+    }
+
+    /**
+     * Node with the value and key of the given node and with children whose heights
+     * differ by at most 2, rotated so that they differ by at most 1.
+     */
+    private static <T> Node<T> balance(final Node<T> node, final Node<T> left, final Node<T> right) {
+        if (height(left) > height(right) + 1) {
+            if (height(left.left) >= height(left.right))
+                return with(left, left.left, with(node, left.right, right));
+            else
+                return with(left.right, with(left, left.left, left.right.left),
+                        with(node, left.right.right, right));
+        } else if (height(right) > height(left) + 1) {
+            if (height(right.right) >= height(right.left))
+                return with(right, with(node, left, right.left), right.right);
+            else
+                return with(right.left, with(node, left, right.left.left),
+                        with(right, right.left.right, right.right));
+        } else {
+            return with(node, left, right);
+        }
+    }
+
+    private static <T> Node<T> with(final Node<T> node, final Node<T> left, final Node<T> right) {
+        return new Node<>(node.value, node.key, left, right);
+    }
+
+    private static int size(final Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static int height(final Node<?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static long lowKeys(final Node<?> node) {
+        return node == null ? 0 : node.lowKeys;
+    }
+
+    private static long highKeys(final Node<?> node) {
+        return node == null ? 0 : node.highKeys;
+    }
+
+    private static boolean isHigh(final int key) {
+        return (key & 64) != 0;
+    }
+
+    private static long keyBit(final int key) {
+        return key < 0 ? 0 : 1L << (key & 63);
+    }
+
+    /**
+     * Whether the subtree may contain an element with the non-negative key.
+     */
+    private static boolean mayContain(final Node<?> node, final int key) {
+        return node != null && ((isHigh(key) ? node.highKeys : node.lowKeys) & keyBit(key)) != 0;
+    }
+
+    private static void checkIndex(final int i, final int bound) {
+        if (i < 0 || i >= bound)
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + bound);
+    }
+}
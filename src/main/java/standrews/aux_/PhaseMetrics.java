@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2019. University of St Andrews
+ */
+
+package standrews.aux_;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Wall time, CPU time and allocated bytes spent in the phases of training, with counts
+ * of sentences and configurations, summarised per epoch.
+ *
+ * Phases nest: time spent in a phase started within another is charged to the inner phase
+ * only, so that for instance fitting the network when a minibatch fills up during the oracle
+ * is not also counted as oracle time. Each thread has its own stack of phases, and the times
+ * of all threads are added, so with several observer threads the wall time of a phase can
+ * exceed that of the epoch.
+ *
+ * The counters of the current epoch can be read while training through JMX, as
+ * standrews:type=PhaseMetrics.
+ *
+ * CPU time and allocated bytes are read from the thread bean of the JVM, where it
+ * supports them; otherwise they are left at 0, and only wall time is recorded.
+ */
+public class PhaseMetrics implements PhaseMetricsMXBean {
+    public enum Phase {LOAD, ORACLE, FEATURES, FIT, VALIDATION, SAVE}
+
+    private static final int WALL = 0;
+    private static final int CPU = 1;
+    private static final int ALLOCATED = 2;
+
+    private static final PhaseMetrics instance = new PhaseMetrics();
+
+    public static PhaseMetrics get() {
+        return instance;
+    }
+
+    /**
+     * Thread beans from which CPU time and allocated bytes are read, or null where the
+     * JVM does not support these. Resolved when first enabled.
+     */
+    private volatile ThreadMXBean cpuTimes = null;
+    private volatile com.sun.management.ThreadMXBean allocations = null;
+
+    private volatile boolean enabled = false;
+
+    /**
+     * For each phase, wall nanoseconds, CPU nanoseconds and allocated bytes in the current epoch.
+     */
+    private final LongAdder[][] totals = new LongAdder[Phase.values().length][3];
+
+    private final LongAdder sentences = new LongAdder();
+    private final LongAdder configurations = new LongAdder();
+    private final LongAdder forcedGcs = new LongAdder();
+
+    private volatile String epoch = "";
+    private volatile long epochStart = System.nanoTime();
+
+    private final ThreadLocal<PhaseStack> stacks = ThreadLocal.withInitial(PhaseStack::new);
+
+    private PhaseMetrics() {
+        for (LongAdder[] phaseTotals : totals)
+            for (int i = 0; i < phaseTotals.length; i++)
+                phaseTotals[i] = new LongAdder();
+    }
+
+    /**
+     * Start recording, and make the counters readable through JMX.
+     */
+    public synchronized void setEnabled(final boolean enabled) {
+        if (enabled && !this.enabled) {
+            resolveThreadBeans();
+            try {
+                final ObjectName name = new ObjectName("standrews:type=PhaseMetrics");
+                if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            } catch (JMException e) {
+                logger().warning("Cannot register phase metrics: " + e);
+            }
+        }
+        this.enabled = enabled;
+    }
+
+    private void resolveThreadBeans() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (cpuTimes == null && threads.isThreadCpuTimeSupported()) {
+            threads.setThreadCpuTimeEnabled(true);
+            cpuTimes = threads;
+        }
+        try {
+            if (allocations == null && threads instanceof com.sun.management.ThreadMXBean &&
+                    ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+                ((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+                allocations = (com.sun.management.ThreadMXBean) threads;
+            }
+        } catch (LinkageError | UnsupportedOperationException e) {
+            logger().info("Allocated bytes are not recorded: " + e);
+        }
+        if (cpuTimes == null)
+            logger().info("CPU time is not recorded, as the JVM does not support it");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Phases of one thread, with the readings at the last change of phase.
+     */
+    private class PhaseStack {
+        final Deque<Phase> outer = new ArrayDeque<>();
+        Phase current = null;
+        long wall;
+        long cpu;
+        long allocated;
+
+        /**
+         * Charge what was spent since the last change of phase to the current phase.
+         */
+        void charge() {
+            final long wallNow = System.nanoTime();
+            final ThreadMXBean cpuTimes = PhaseMetrics.this.cpuTimes;
+            final com.sun.management.ThreadMXBean allocations = PhaseMetrics.this.allocations;
+            final long cpuNow = cpuTimes == null ? 0 : cpuTimes.getCurrentThreadCpuTime();
+            final long allocatedNow = allocations == null ? 0 : allocations.getCurrentThreadAllocatedBytes();
+            if (current != null) {
+                final LongAdder[] phaseTotals = totals[current.ordinal()];
+                phaseTotals[WALL].add(wallNow - wall);
+                phaseTotals[CPU].add(cpuNow - cpu);
+                phaseTotals[ALLOCATED].add(allocatedNow - allocated);
+            }
+            wall = wallNow;
+            cpu = cpuNow;
+            allocated = allocatedNow;
+        }
+    }
+
+    /**
+     * Start phase on this thread, pausing the phase it is in. Must be followed by end,
+     * normally in a finally block.
+     */
+    public void start(final Phase phase) {
+        if (!enabled)
+            return;
+        final PhaseStack stack = stacks.get();
+        stack.charge();
+        if (stack.current != null)
+            stack.outer.push(stack.current);
+        stack.current = phase;
+    }
+
+    /**
+     * End the phase last started on this thread, resuming the phase it was started in.
+     */
+    public void end() {
+        final PhaseStack stack = stacks.get();
+        if (stack.current == null)
+            return;
+        stack.charge();
+        stack.current = stack.outer.poll();
+    }
+
+    public void countSentence() {
+        if (enabled)
+            sentences.increment();
+    }
+
+    public void countConfiguration() {
+        if (enabled)
+            configurations.increment();
+    }
+
+    public void countForcedGc() {
+        if (enabled)
+            forcedGcs.increment();
+    }
+
+    /**
+     * Name the epoch whose counters are being gathered, as shown through JMX.
+     */
+    public void startEpoch(final String name) {
+        epoch = name;
+        epochStart = System.nanoTime();
+    }
+
+    /**
+     * Append the counters of the epoch as a line of the CSV file and of the JSON lines file,
+     * and reset them. The CSV file gets a header if it is new.
+     */
+    public synchronized void endEpoch(final String csvPath, final String jsonPath) {
+        if (!enabled)
+            return;
+        final double seconds = (System.nanoTime() - epochStart) / 1e9;
+        final Runtime runtime = Runtime.getRuntime();
+        final Map<String, Object> row = new LinkedHashMap<>();
+        row.put("epoch", epoch);
+        row.put("seconds", seconds);
+        final long nSentences = sentences.sumThenReset();
+        final long nConfigurations = configurations.sumThenReset();
+        row.put("sentences", nSentences);
+        row.put("configurations", nConfigurations);
+        row.put("sentencesPerSecond", nSentences / seconds);
+        row.put("configurationsPerSecond", nConfigurations / seconds);
+        row.put("forcedGcs", forcedGcs.sumThenReset());
+        row.put("heapUsedBytes", runtime.totalMemory() - runtime.freeMemory());
+        for (Phase phase : Phase.values()) {
+            final LongAdder[] phaseTotals = totals[phase.ordinal()];
+            final String prefix = phase.name().toLowerCase();
+            row.put(prefix + "WallSeconds", phaseTotals[WALL].sumThenReset() / 1e9);
+            row.put(prefix + "CpuSeconds", phaseTotals[CPU].sumThenReset() / 1e9);
+            row.put(prefix + "AllocatedBytes", phaseTotals[ALLOCATED].sumThenReset());
+        }
+        epochStart = System.nanoTime();
+
+        try {
+            final boolean newCsv = !new File(csvPath).exists();
+            try (PrintWriter csv = new PrintWriter(new FileWriter(csvPath, true))) {
+                if (newCsv)
+                    csv.println(String.join(",", row.keySet()));
+                csv.println(row.values().stream().map(String::valueOf).collect(Collectors.joining(",")));
+            }
+            try (PrintWriter json = new PrintWriter(new FileWriter(jsonPath, true))) {
+                json.println(row.entrySet().stream()
+                        .map(e -> "\"" + e.getKey() + "\":" +
+                                (e.getValue() instanceof String ? "\"" + e.getValue() + "\"" : e.getValue()))
+                        .collect(Collectors.joining(",", "{", "}")));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            logger().warning("Cannot write phase metrics: " + e);
+        }
+        logger().info("Epoch " + row.get("epoch") + ": " + row);
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    public double getEpochSeconds() {
+        return (System.nanoTime() - epochStart) / 1e9;
+    }
+
+    public long getSentences() {
+        return sentences.sum();
+    }
+
+    public long getConfigurations() {
+        return configurations.sum();
+    }
+
+    public double getSentencesPerSecond() {
+        return sentences.sum() / getEpochSeconds();
+    }
+
+    public double getConfigurationsPerSecond() {
+        return configurations.sum() / getEpochSeconds();
+    }
+
+    public long getForcedGcs() {
+        return forcedGcs.sum();
+    }
+
+    public Map<String, Double> getWallSeconds() {
+        return phaseSums(WALL, 1e9);
+    }
+
+    public Map<String, Double> getCpuSeconds() {
+        return phaseSums(CPU, 1e9);
+    }
+
+    public Map<String, Double> getAllocatedMegabytes() {
+        return phaseSums(ALLOCATED, 1 << 20);
+    }
+
+    private Map<String, Double> phaseSums(final int measure, final double unit) {
+        final Map<String, Double> sums = new LinkedHashMap<>();
+        for (Phase phase : Phase.values())
+            sums.put(phase.name(), totals[phase.ordinal()][measure].sum() / unit);
+        return sums;
+    }
+
+    private static Logger logger() {
+        final Logger log = Logger.getLogger(PhaseMetrics.class.getName());
+        log.setParent(Logger.getGlobal());
+        return log;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2019. University of St Andrews
+ */
+
+package standrews.aux_;
+
+import java.util.Map;
+
+/**
+ * Counters of the current epoch of training, readable through JMX.
+ */
+public interface PhaseMetricsMXBean {
+    String getEpoch();
+
+    double getEpochSeconds();
+
+    long getSentences();
+
+    long getConfigurations();
+
+    double getSentencesPerSecond();
+
+    double getConfigurationsPerSecond();
+
+    long getForcedGcs();
+
+    Map<String, Double> getWallSeconds();
+
+    Map<String, Double> getCpuSeconds();
+
+    Map<String, Double> getAllocatedMegabytes();
+}
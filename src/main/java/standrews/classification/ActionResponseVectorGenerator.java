@@ -20,8 +20,8 @@ public class ActionResponseVectorGenerator implements ResponseVectorGenerator {
     }
 
     @Override
-    public double[] generateResponseVector(Object response) {
-        double[] responseVector = new double[actionIndexMap.size()];
+    public float[] generateResponseVector(Object response) {
+        float[] responseVector = new float[actionIndexMap.size()];
         responseVector[actionIndexMap.get((String) response)] = 1;
 
         return responseVector;
@@ -1,5 +1,8 @@
 package standrews.classification;
 
+import standrews.constbase.Symbols;
+
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.IntStream;
@@ -8,19 +11,33 @@ public class CatResponseVectorGenerator implements ResponseVectorGenerator {
     private final Map<String, Integer> catIndexMap;
     private final Map<Integer, String> indexCatMap;
 
+    /**
+     * Index of each category by its number, see Symbols.cats, and -1 for other categories.
+     * Categories numbered after this was made are beyond its end, and not in the index map.
+     */
+    private final int[] catIndices;
+
     public CatResponseVectorGenerator(Map<String, Integer> catIndexMap) {
         this.catIndexMap = catIndexMap;
         indexCatMap = new HashMap<>();
 
         for (Map.Entry<String, Integer> entry : catIndexMap.entrySet()) {
             indexCatMap.put(entry.getValue(), entry.getKey());
+            Symbols.cats.id(entry.getKey());
         }
+        catIndices = new int[Symbols.cats.size()];
+        Arrays.fill(catIndices, -1);
+        for (Map.Entry<String, Integer> entry : catIndexMap.entrySet())
+            catIndices[Symbols.cats.id(entry.getKey())] = entry.getValue();
     }
 
     @Override
-    public double[] generateResponseVector(Object response) {
-        double[] responseVector = new double[catIndexMap.size()];
-        responseVector[catIndexMap.get((String) response)] = 1;
+    public float[] generateResponseVector(Object response) {
+        final int id = Symbols.cats.lookup((String) response);
+        if (id < 0 || id >= catIndices.length || catIndices[id] < 0)
+            throw new IllegalArgumentException("Unknown category: " + response);
+        float[] responseVector = new float[catIndexMap.size()];
+        responseVector[catIndices[id]] = 1;
 
         return responseVector;
     }
@@ -4,19 +4,50 @@ import standrews.constautomata.HatConfig;
 import standrews.constbase.*;
 
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+/**
+ * Writes the feature vector of a configuration into a float array. Segments have fixed
+ * offsets, so the vector is zero-filled once and only non-blank segments are written;
+ * nothing is allocated per configuration when the caller supplies the array.
+ *
+ * Layout:
+ * hat category, no-hat flag, hat leftmost and rightmost dependents,
+ * top of stack leftmost and rightmost dependents and category,
+ * second of stack leftmost and rightmost dependents and category,
+ * first and second of input buffer.
+ * Each dependent or input element is a one-hot part of speech followed by its embedding.
+ * The same features can also be written in sparse form, see SparseFeatures.
+ */
 public class FeatureVectorGenerator {
     private final Map<String, Integer> catIndexMap;
     private final Map<String, Integer> posIndexMap;
     private final Map<String, Integer> catAndPosIndexMap;
+
+    /**
+     * The indices of posIndexMap and catAndPosIndexMap by number of category, see Symbols.cats,
+     * and -1 for other symbols, so that no string is hashed per configuration.
+     */
+    private final int[] posIndices;
+    private final int[] catAndPosIndices;
     private final static int embeddingVectorLength = 768;
     private final int vectorLength;
     private final int embeddingAndPosVectorLength;
     private final int posVectorLength;
-    private final Double[] blankEmbeddingsAndPosVector;
-    private final Double[] blankCategoryVector;
+    private final int categoryVectorLength;
+
+    // offsets of segments
+    private final int noHatOffset;
+    private final int hatDependentsOffset;
+    private final int topOfStackOffset;
+    private final int secondTopOfStackOffset;
+    private final int inputBufferOffset;
+
+    /**
+     * Embedding slots are, in order: hat leftmost and rightmost dependents, top of stack
+     * leftmost and rightmost, second of stack leftmost and rightmost, first and second of input.
+     */
+    private final static int numEmbeddingSlots = 8;
+    private final int[] embeddingSlotOffsets;
 
     public FeatureVectorGenerator(final ConstTreebank treebank) {
         // making map to one-hot encode parts of speech
@@ -37,176 +68,187 @@ public class FeatureVectorGenerator {
         }
         posVectorLength = posIndexMap.size();
         embeddingAndPosVectorLength = embeddingVectorLength + posVectorLength;
-
-        blankEmbeddingsAndPosVector = new Double[embeddingAndPosVectorLength];
-        Arrays.fill(blankEmbeddingsAndPosVector, 0.0);
-
-        blankCategoryVector = new Double[catAndPosIndexMap.size()];
-        Arrays.fill(blankCategoryVector, 0.0);
-
-        HatConfig testConfig = new HatConfig("", new ConstLeaf[0], new double[0][0]);
-        vectorLength = generateFeatureVector(testConfig).length;
+        categoryVectorLength = catAndPosIndexMap.size();
+        posIndices = indicesBySymbol(posIndexMap);
+        catAndPosIndices = indicesBySymbol(catAndPosIndexMap);
+
+        noHatOffset = categoryVectorLength;
+        hatDependentsOffset = noHatOffset + 1;
+        topOfStackOffset = hatDependentsOffset + 2 * embeddingAndPosVectorLength;
+        secondTopOfStackOffset = topOfStackOffset + 2 * embeddingAndPosVectorLength + categoryVectorLength;
+        inputBufferOffset = secondTopOfStackOffset + 2 * embeddingAndPosVectorLength + categoryVectorLength;
+        vectorLength = inputBufferOffset + 2 * embeddingAndPosVectorLength;
+
+        embeddingSlotOffsets = new int[numEmbeddingSlots];
+        final int[] dependentsOffsets = {hatDependentsOffset, topOfStackOffset, secondTopOfStackOffset, inputBufferOffset};
+        for (int i = 0; i < dependentsOffsets.length; i++) {
+            embeddingSlotOffsets[2 * i] = dependentsOffsets[i] + posVectorLength;
+            embeddingSlotOffsets[2 * i + 1] = dependentsOffsets[i] + embeddingAndPosVectorLength + posVectorLength;
+        }
     }
 
-    public double[] generateFeatureVector(HatConfig config) {
-        List<Double> features = new ArrayList<>();
+    private static int[] indicesBySymbol(Map<String, Integer> indexMap) {
+        for (String symbol : indexMap.keySet())
+            Symbols.cats.id(symbol);
+        final int[] indices = new int[Symbols.cats.size()];
+        Arrays.fill(indices, -1);
+        for (Map.Entry<String, Integer> entry : indexMap.entrySet())
+            indices[Symbols.cats.id(entry.getKey())] = entry.getValue();
+        return indices;
+    }
 
-        features.addAll(getHatFeatures(config));
+    /**
+     * Index of category of node. The categories of the index maps are numbered when this
+     * is made, so a category numbered later, beyond the end of the table, is not among them.
+     */
+    private static int indexOf(int[] indices, ConstNode node) {
+        final int id = node.getCatId();
+        if (id < 0 || id >= indices.length || indices[id] < 0)
+            throw new IllegalArgumentException("Unknown category or part of speech: " + node.getCat());
+        return indices[id];
+    }
 
-        features.addAll(getStackFeatures(config));
+    public float[] generateFeatureVector(HatConfig config) {
+        float[] featureVector = new float[vectorLength];
+        generateFeatureVector(config, featureVector, 0);
+        return featureVector;
+    }
 
-        features.addAll(getInputBufferFeatures(config));
+    /**
+     * Write feature vector of configuration into target, starting at offset.
+     * The vectorLength elements from offset are overwritten.
+     */
+    public void generateFeatureVector(HatConfig config, float[] target, int offset) {
+        Arrays.fill(target, offset, offset + vectorLength, 0f);
+        writeFeatures(config, new DenseSink(target, offset));
+    }
 
-        // to get fellow index cat:
-//        final int abs = config.getHatAbsoluteIndex(fellowIndex);
-//        String cat = config.getStackLeft(abs).getCat();
+    /**
+     * Write feature vector of configuration in sparse form: the indices of one-hot
+     * elements, and for each embedding slot the leaf whose embedding fills it.
+     */
+    public void generateSparseFeatures(HatConfig config, SparseFeatures target) {
+        target.clear();
+        writeFeatures(config, target);
+    }
 
-        return features.stream().mapToDouble(x -> x).toArray();
+    /**
+     * Write feature vector given in sparse form into target, starting at offset.
+     * The vectorLength elements from offset are overwritten.
+     */
+    public void generateFeatureVector(SparseFeatures features, float[] target, int offset) {
+        Arrays.fill(target, offset, offset + vectorLength, 0f);
+        final DenseSink sink = new DenseSink(target, offset);
+        for (int i = 0; i < features.getNumOneHots(); i++)
+            sink.oneHot(features.getOneHotIndex(i));
+        for (int slot = 0; slot < numEmbeddingSlots; slot++) {
+            final EnhancedConstLeaf leaf = features.getSlotLeaf(slot);
+            if (leaf != null)
+                sink.embedding(slot, leaf);
+        }
     }
 
-    private List<Double> getHatFeatures(HatConfig config) {
-        List<Double> hatFeatures = new ArrayList<>();
+    /**
+     * Receives the non-zero parts of a feature vector.
+     */
+    interface FeatureSink {
+        void oneHot(int index);
 
-        if (config.hatExists()) {
-            ConstNode hatNode = config.getStackHat(0);
-            hatFeatures.addAll(oneHotEncodeCategory(hatNode));
-            hatFeatures.add(0.0);
+        /**
+         * @param slot Index of slot among embedding slots.
+         */
+        void embedding(int slot, EnhancedConstLeaf leaf);
+    }
 
-            hatFeatures.addAll(getLeftmostAndRightmostDependentEmbeddingsAndPos(hatNode));
-        } else {  // there is no hat
-            for (int i = 0; i < catAndPosIndexMap.size(); i++) {
-                hatFeatures.add(0.0);
-            }
-            hatFeatures.add(1.0);
+    private class DenseSink implements FeatureSink {
+        private final float[] target;
+        private final int offset;
 
-            // add blank leftmost and rightmost vectors
-            hatFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
-            hatFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
+        DenseSink(float[] target, int offset) {
+            this.target = target;
+            this.offset = offset;
         }
 
+        public void oneHot(int index) {
+            target[offset + index] = 1f;
+        }
 
-        return hatFeatures;
+        public void embedding(int slot, EnhancedConstLeaf leaf) {
+            System.arraycopy(leaf.getWordEmbedding(), 0, target, offset + embeddingSlotOffsets[slot], embeddingVectorLength);
+        }
     }
 
-    private List<Double> oneHotEncodeCategory(ConstNode node) {
-        Double[] categoryVector = new Double[catAndPosIndexMap.size()];
-        Arrays.fill(categoryVector, 0.0);
+    private void writeFeatures(HatConfig config, FeatureSink sink) {
+        writeHatFeatures(config, sink);
 
-        categoryVector[catAndPosIndexMap.get(node.getCat())] = 1.0;
+        writeStackFeatures(config, sink);
 
-        return Arrays.asList(categoryVector);
+        writeInputBufferFeatures(config, sink);
     }
 
-    private List<Double> getStackFeatures(HatConfig config) {
-        List<Double> stackFeatures = new ArrayList<>();
+    private void writeHatFeatures(HatConfig config, FeatureSink sink) {
+        if (config.hatExists()) {
+            ConstNode hatNode = config.getStackHat(0);
+            writeCategory(hatNode, sink, 0);
+            writeLeftmostAndRightmostDependents(hatNode, sink, hatDependentsOffset, 0);
+        } else {  // there is no hat, so leftmost and rightmost vectors stay blank
+            sink.oneHot(noHatOffset);
+        }
+    }
+
+    private void writeCategory(ConstNode node, FeatureSink sink, int offset) {
+        sink.oneHot(offset + indexOf(catAndPosIndices, node));
+    }
 
-        // add embeddings and parts of speech of leftmost and rightmost dependencies of top 2 elements of the stack
+    private void writeStackFeatures(HatConfig config, FeatureSink sink) {
+        // embeddings and parts of speech of leftmost and rightmost dependencies of top 2 elements of the stack
         if (config.stackLength() > 1) {
-            ConstNode topOfStack = config.getStackRight(0);
-            stackFeatures.addAll(getLeftmostAndRightmostDependentEmbeddingsAndPos(topOfStack));
-            stackFeatures.addAll(oneHotEncodeCategory(topOfStack));
+            writeStackElement(config.getStackRight(0), sink, topOfStackOffset, 2);
 
             if (config.stackLength() > 2) {
-                ConstNode secondTopOfStack = config.getStackRight(1);
-                stackFeatures.addAll(getLeftmostAndRightmostDependentEmbeddingsAndPos(secondTopOfStack));
-                stackFeatures.addAll(oneHotEncodeCategory(secondTopOfStack));
-            } else {
-                // add blank leftmost and rightmost vectors
-                stackFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
-                stackFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
-
-                // add blank stack element vector
-                stackFeatures.addAll(Arrays.asList(blankCategoryVector.clone()));
+                writeStackElement(config.getStackRight(1), sink, secondTopOfStackOffset, 4);
             }
-        } else {
-            // add blank leftmost and rightmost vectors
-            stackFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
-            stackFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
-            stackFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
-            stackFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
-
-            // blank stack element vectors
-            stackFeatures.addAll(Arrays.asList(blankCategoryVector.clone()));
-            stackFeatures.addAll(Arrays.asList(blankCategoryVector.clone()));
         }
-
-        return stackFeatures;
     }
 
-    private List<Double> getInputBufferFeatures(HatConfig config) {
-        List<Double> inputBufferFeatures = new ArrayList<>();
+    private void writeStackElement(ConstNode node, FeatureSink sink, int offset, int slot) {
+        writeLeftmostAndRightmostDependents(node, sink, offset, slot);
+        writeCategory(node, sink, offset + 2 * embeddingAndPosVectorLength);
+    }
 
-        // add embeddings and parts of speech of next 2 elements of the input buffer
+    private void writeInputBufferFeatures(HatConfig config, FeatureSink sink) {
+        // embeddings and parts of speech of next 2 elements of the input buffer
         if (config.inputLength() > 1) {
-            EnhancedConstLeaf firstInput = config.getInputLeft(0);
-            inputBufferFeatures.addAll(Arrays.asList(getEmbeddingsAndPos(firstInput)));
+            writeEmbeddingAndPos(config.getInputLeft(0), sink, inputBufferOffset, 6);
 
             if (config.inputLength() > 2) {
-                EnhancedConstLeaf secondInput = config.getInputLeft(1);
-                inputBufferFeatures.addAll(Arrays.asList(getEmbeddingsAndPos(secondInput)));
-            } else {
-                inputBufferFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
+                writeEmbeddingAndPos(config.getInputLeft(1), sink,
+                        inputBufferOffset + embeddingAndPosVectorLength, 7);
             }
-        } else {
-            inputBufferFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
-            inputBufferFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
         }
-
-        return inputBufferFeatures;
     }
 
-    private List<Double> getLeftmostAndRightmostDependentEmbeddingsAndPos(ConstNode node) {
-        // getting leftmost and rightmost dependents
-        EnhancedConstLeaf leftmostDependent = getLeftmostDependent(node);
-        EnhancedConstLeaf rightmostDependent = getRightmostDependent(node);
-
-        // getting leftmost and rightmost dependents' embeddings and one-hot encoded parts of speech
-        Double[] leftmostDependentEmbeddingAndPosVector = getEmbeddingsAndPos(leftmostDependent);
-        Double[] rightmostDependentEmbeddingAndPosVector = getEmbeddingsAndPos(rightmostDependent);
-
-        return Stream.concat(Arrays.stream(leftmostDependentEmbeddingAndPosVector), Arrays.stream(rightmostDependentEmbeddingAndPosVector))
-                .collect(Collectors.toList());
+    private void writeLeftmostAndRightmostDependents(ConstNode node, FeatureSink sink, int offset, int slot) {
+        writeEmbeddingAndPos(getLeftmostDependent(node), sink, offset, slot);
+        writeEmbeddingAndPos(getRightmostDependent(node), sink, offset + embeddingAndPosVectorLength, slot + 1);
     }
 
-    private Double[] getEmbeddingsAndPos(EnhancedConstLeaf node) {
-        // initialising one-hot encoded parts of speech vectors
-        double[] posVector = new double[posVectorLength];
-
-        // getting parts of speech of leftmost and rightmost dependents
-        posVector[posIndexMap.get(node.getCat())] = 1.0;
-
-        // getting embeddings of leftmost and rightmost dependents
-        double[] wordEmbeddingVector = node.getWordEmbedding();
-
-        // putting parts of speech and embeddings into a single vector
-        double[] embeddingAndPosVector = new double[embeddingAndPosVectorLength];
-        System.arraycopy(posVector, 0, embeddingAndPosVector, 0, posVectorLength);
-        System.arraycopy(wordEmbeddingVector, 0, embeddingAndPosVector, posVectorLength, embeddingVectorLength);
-
-        return Arrays.stream(embeddingAndPosVector)
-                .boxed()
-                .toArray(Double[]::new);
+    private void writeEmbeddingAndPos(EnhancedConstLeaf node, FeatureSink sink, int offset, int slot) {
+        sink.oneHot(offset + indexOf(posIndices, node));
+        sink.embedding(slot, node);
     }
 
     private EnhancedConstLeaf getLeftmostDependent(ConstNode node) {
-        if (node instanceof EnhancedConstLeaf) {
-            return (EnhancedConstLeaf) node;
-        } else if (node instanceof ConstInternal) {
-            ConstInternal constituent = (ConstInternal) node;
-            return getLeftmostDependent(constituent.getLeftMostChild());
-        } else {
-            System.out.println("Invalid ConstNode class");
-            System.exit(1);
-            return null;
-        }
+        return enhancedLeaf(node.getLeftmostLeaf());
     }
 
     private EnhancedConstLeaf getRightmostDependent(ConstNode node) {
-        if (node instanceof EnhancedConstLeaf) {
-            return (EnhancedConstLeaf) node;
-        } else if (node instanceof ConstInternal) {
-            ConstInternal constituent = (ConstInternal) node;
-            return getRightmostDependent(constituent.getRightMostChild());
+        return enhancedLeaf(node.getRightmostLeaf());
+    }
+
+    private EnhancedConstLeaf enhancedLeaf(ConstLeaf leaf) {
+        if (leaf instanceof EnhancedConstLeaf) {
+            return (EnhancedConstLeaf) leaf;
         } else {
             System.out.println("Invalid ConstNode class");
             System.exit(1);
@@ -225,4 +267,15 @@ public class FeatureVectorGenerator {
     public static int getEmbeddingVectorLength() {
         return embeddingVectorLength;
     }
+
+    public static int getNumEmbeddingSlots() {
+        return numEmbeddingSlots;
+    }
+
+    /**
+     * Offset in feature vector of each embedding slot.
+     */
+    public int[] getEmbeddingSlotOffsets() {
+        return embeddingSlotOffsets.clone();
+    }
 }
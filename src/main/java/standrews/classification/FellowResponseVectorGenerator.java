@@ -25,8 +25,8 @@ public class FellowResponseVectorGenerator implements ResponseVectorGenerator {
     }
 
     @Override
-    public double[] generateResponseVector(Object response) {
-        double[] responseVector = new double[vectorSize];
+    public float[] generateResponseVector(Object response) {
+        float[] responseVector = new float[vectorSize];
         responseVector[fellowIndexToIndexMap.get((int) response)] = 1;
 
         return responseVector;
@@ -0,0 +1,345 @@
+package standrews.classification;
+
+import org.deeplearning4j.nn.conf.layers.BaseLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import standrews.constbase.EnhancedConstLeaf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Forward pass of a stack of dense layers in plain Java, for inference on few feature
+ * vectors at a time, where calling the network through ND4J costs more than the arithmetic.
+ *
+ * Weights are copied out of the network once, so this must be made again after further training.
+ * Computation is in single precision, so results agree with those of the network up to rounding.
+ */
+public class FloatNetwork {
+    /**
+     * Number of feature vectors for which each row of weights is used before moving on.
+     */
+    private static final int BLOCK_SIZE = 16;
+
+    /**
+     * For each layer, the weights, by input and then output, as in the network.
+     */
+    protected final float[][][] weights;
+    protected final float[][] biases;
+    protected final Activation[] activations;
+    private final int inputSize;
+
+    public FloatNetwork(float[][][] weights, float[][] biases, Activation[] activations) {
+        if (weights.length != biases.length || weights.length != activations.length)
+            throw new IllegalArgumentException("Error: inconsistent number of layers");
+        for (int l = 0; l < weights.length; l++) {
+            if (!isSupported(activations[l]))
+                throw new IllegalArgumentException("Error: unsupported activation " + activations[l]);
+            if (l > 0 && weights[l].length != biases[l - 1].length)
+                throw new IllegalArgumentException("Error: layer " + l + " does not fit previous layer");
+        }
+        this.weights = weights;
+        this.biases = biases;
+        this.activations = activations;
+        this.inputSize = weights[0].length;
+    }
+
+    /**
+     * Copy weights of network.
+     */
+    public FloatNetwork(MultiLayerNetwork network) {
+        this(layerWeights(network), layerBiases(network), layerActivations(network));
+    }
+
+    /**
+     * Read network as saved by MLP.save.
+     */
+    public static FloatNetwork load(String filePath) throws IOException {
+        return new FloatNetwork(MultiLayerNetwork.load(new File(filePath), false));
+    }
+
+    /**
+     * Does the network consist of dense layers only, with supported activations?
+     */
+    public static boolean isApplicable(MultiLayerNetwork network) {
+        for (int l = 0; l < network.getnLayers(); l++) {
+            Layer layer = network.getLayerWiseConfigurations().getConf(l).getLayer();
+            if (!(layer instanceof DenseLayer || layer instanceof OutputLayer))
+                return false;
+            if (activation(((BaseLayer) layer).getActivationFn()) == null)
+                return false;
+        }
+        return network.getnLayers() > 0;
+    }
+
+    public int getNumLayers() {
+        return weights.length;
+    }
+
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    /**
+     * Output of network for several feature vectors.
+     */
+    public double[][] scores(float[][] featureVectors) {
+        return scoresFrom(0, featureVectors, false);
+    }
+
+    /**
+     * Output of network from given layer on.
+     *
+     * @param layer First layer to run.
+     * @param inputs Inputs of that layer, or its pre-activations.
+     * @param preActivated Whether the inputs are pre-activations of the layer, so that only
+     *                     its activation function is still to be applied.
+     */
+    public double[][] scoresFrom(int layer, float[][] inputs, boolean preActivated) {
+        float[][] x = inputs;
+        for (int l = layer; l < weights.length; l++) {
+            if (l == layer && preActivated) {
+                x = copy(x);
+            } else {
+                x = preActivation(l, x);
+            }
+            if (l < weights.length - 1)
+                activate(activations[l], x);
+        }
+        return lastActivation(x);
+    }
+
+    /**
+     * Output of network for feature vectors in sparse form. The first layer adds the rows
+     * of weights of the one-hot features that are 1, and multiplies only the rows of the
+     * embedding slots that are filled, without making the feature vectors. For inference
+     * only; the DL4J network is trained on dense feature vectors.
+     *
+     * @param slotOffsets Offset in the feature vector of each embedding slot.
+     */
+    public double[][] scores(List<SparseFeatures> features, int[] slotOffsets) {
+        return scoresFrom(0, sparsePreActivations(features, slotOffsets), true);
+    }
+
+    /**
+     * Activations of the last layer in single precision, for use as inputs of further
+     * layers, as in a network of which this is the part shared between several heads.
+     */
+    public float[][] outputs(float[][] featureVectors) {
+        return outputsFrom(0, featureVectors, false);
+    }
+
+    /**
+     * As outputs, for feature vectors in sparse form.
+     */
+    public float[][] outputs(List<SparseFeatures> features, int[] slotOffsets) {
+        return outputsFrom(0, sparsePreActivations(features, slotOffsets), true);
+    }
+
+    private float[][] outputsFrom(int layer, float[][] inputs, boolean preActivated) {
+        float[][] x = inputs;
+        for (int l = layer; l < weights.length; l++) {
+            x = l == layer && preActivated ? copy(x) : preActivation(l, x);
+            activate(activations[l], x);
+        }
+        return x;
+    }
+
+    private float[][] sparsePreActivations(List<SparseFeatures> features, int[] slotOffsets) {
+        final float[][] z = new float[features.size()][];
+        for (int r = 0; r < z.length; r++)
+            z[r] = sparsePreActivation(features.get(r), slotOffsets);
+        return z;
+    }
+
+    /**
+     * Weighted sums plus bias of first layer for feature vector in sparse form.
+     */
+    protected float[] sparsePreActivation(SparseFeatures features, int[] slotOffsets) {
+        final float[][] w = weights[0];
+        final float[] z = biases[0].clone();
+        for (int i = 0; i < features.getNumOneHots(); i++)
+            add(w[features.getOneHotIndex(i)], z);
+        for (int slot = 0; slot < slotOffsets.length; slot++) {
+            final EnhancedConstLeaf leaf = features.getSlotLeaf(slot);
+            if (leaf == null)
+                continue;
+            final float[] embedding = leaf.getWordEmbedding();
+            for (int k = 0; k < embedding.length; k++)
+                if (embedding[k] != 0)
+                    axpy(embedding[k], w[slotOffsets[slot] + k], z);
+        }
+        return z;
+    }
+
+    private static void add(float[] x, float[] y) {
+        for (int j = 0; j < y.length; j++)
+            y[j] += x[j];
+    }
+
+    /**
+     * Weighted sums plus bias of one layer. Each row of weights is applied to a block of
+     * inputs while it is in cache, and is skipped for inputs that are zero, which most
+     * of the one-hot features and many outputs of rectified units are.
+     */
+    protected float[][] preActivation(int l, float[][] x) {
+        final float[][] w = weights[l];
+        final float[] b = biases[l];
+        final float[][] z = new float[x.length][];
+        for (int r = 0; r < x.length; r++)
+            z[r] = b.clone();
+        for (int start = 0; start < x.length; start += BLOCK_SIZE) {
+            final int end = Math.min(start + BLOCK_SIZE, x.length);
+            for (int i = 0; i < w.length; i++) {
+                final float[] row = w[i];
+                for (int r = start; r < end; r++) {
+                    final float xi = x[r][i];
+                    if (xi != 0)
+                        axpy(xi, row, z[r]);
+                }
+            }
+        }
+        return z;
+    }
+
+    private static void axpy(float a, float[] x, float[] y) {
+        for (int j = 0; j < y.length; j++)
+            y[j] += a * x[j];
+    }
+
+    protected static void activate(Activation activation, float[][] x) {
+        for (float[] row : x) {
+            switch (activation) {
+                case RELU:
+                    for (int j = 0; j < row.length; j++)
+                        row[j] = Math.max(row[j], 0);
+                    break;
+                case TANH:
+                    for (int j = 0; j < row.length; j++)
+                        row[j] = (float) Math.tanh(row[j]);
+                    break;
+                case SIGMOID:
+                    for (int j = 0; j < row.length; j++)
+                        row[j] = (float) (1 / (1 + Math.exp(-row[j])));
+                    break;
+                case SOFTMAX:
+                    softmax(row);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Activation of last layer, in double precision as the network returns.
+     */
+    private double[][] lastActivation(float[][] x) {
+        final Activation activation = activations[activations.length - 1];
+        final double[][] out = new double[x.length][];
+        for (int r = 0; r < x.length; r++) {
+            final float[] row = x[r];
+            out[r] = new double[row.length];
+            if (activation == Activation.SOFTMAX) {
+                double max = Double.NEGATIVE_INFINITY;
+                for (float v : row)
+                    max = Math.max(max, v);
+                double sum = 0;
+                for (int j = 0; j < row.length; j++) {
+                    out[r][j] = Math.exp(row[j] - max);
+                    sum += out[r][j];
+                }
+                for (int j = 0; j < row.length; j++)
+                    out[r][j] /= sum;
+            } else {
+                final float[][] single = {row.clone()};
+                activate(activation, single);
+                for (int j = 0; j < row.length; j++)
+                    out[r][j] = single[0][j];
+            }
+        }
+        return out;
+    }
+
+    private static void softmax(float[] row) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (float v : row)
+            max = Math.max(max, v);
+        double sum = 0;
+        for (int j = 0; j < row.length; j++) {
+            row[j] = (float) Math.exp(row[j] - max);
+            sum += row[j];
+        }
+        for (int j = 0; j < row.length; j++)
+            row[j] /= sum;
+    }
+
+    private static float[][] copy(float[][] x) {
+        final float[][] y = new float[x.length][];
+        for (int r = 0; r < x.length; r++)
+            y[r] = x[r].clone();
+        return y;
+    }
+
+    private static boolean isSupported(Activation activation) {
+        switch (activation) {
+            case RELU:
+            case TANH:
+            case SIGMOID:
+            case SOFTMAX:
+            case IDENTITY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The supported activation that is the given activation function, or null.
+     */
+    static Activation activation(IActivation fn) {
+        for (Activation activation : new Activation[]{Activation.RELU, Activation.TANH,
+                Activation.SIGMOID, Activation.SOFTMAX, Activation.IDENTITY}) {
+            if (activation.getActivationFunction().getClass() == fn.getClass())
+                return activation;
+        }
+        return null;
+    }
+
+    private static float[][][] layerWeights(MultiLayerNetwork network) {
+        if (!isApplicable(network))
+            throw new IllegalArgumentException("Error: network must consist of dense layers");
+        final float[][][] weights = new float[network.getnLayers()][][];
+        for (int l = 0; l < weights.length; l++) {
+            INDArray w = network.getLayer(l).getParam("W");
+            weights[l] = w.castTo(DataType.FLOAT).toFloatMatrix();
+        }
+        return weights;
+    }
+
+    private static float[][] layerBiases(MultiLayerNetwork network) {
+        final float[][] biases = new float[network.getnLayers()][];
+        for (int l = 0; l < biases.length; l++) {
+            INDArray b = network.getLayer(l).getParam("b");
+            biases[l] = b == null ? new float[network.getLayer(l).getParam("W").columns()] :
+                    b.castTo(DataType.FLOAT).toFloatVector();
+        }
+        return biases;
+    }
+
+    private static Activation[] layerActivations(MultiLayerNetwork network) {
+        final Activation[] activations = new Activation[network.getnLayers()];
+        for (int l = 0; l < activations.length; l++) {
+            BaseLayer layer = (BaseLayer) network.getLayerWiseConfigurations().getConf(l).getLayer();
+            activations[l] = activation(layer.getActivationFn());
+        }
+        return activations;
+    }
+}
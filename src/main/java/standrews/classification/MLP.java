@@ -1,20 +1,35 @@
 package standrews.classification;
 
 //import javafx.util.Pair;
-import org.deeplearning4j.datasets.iterator.DoublesDataSetIterator;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.nd4j.common.primitives.Pair;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.factory.Nd4j;
+import standrews.aux_.PhaseMetrics;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
 
 public class MLP {
-    private final MultiLayerNetwork network;
-    private final ArrayList<Pair<double[], double[]>> observations;
+    /**
+     * The network, or null once it has been quantized, see quantize.
+     */
+    private MultiLayerNetwork network;
+    /**
+     * Observed features in sparse form, which refer to the embeddings of the sentence rather
+     * than copying them, and response vectors. Feature vectors are made only when the
+     * network is given a minibatch.
+     */
+    private final ArrayList<Pair<SparseFeatures, float[]>> observations;
+
+    /**
+     * Makes feature vectors from the observed sparse features.
+     */
+    private FeatureVectorGenerator featureVectorGenerator;
     private final ResponseVectorGenerator responseVectorGenerator;
     private boolean isTraining;
     private boolean isValidating;
@@ -26,6 +41,52 @@ public class MLP {
     private final double tol;
     private final int patience;
 
+    /**
+     * If not null, validation loss is also computed with the network converted to this
+     * data type, and the difference is reported. For checking single against double precision.
+     */
+    private DataType referenceDataType;
+
+    /**
+     * The network converted to referenceDataType, made at the first validation minibatch
+     * after the network was last fitted, or null.
+     */
+    private MultiLayerNetwork referenceNetwork = null;
+
+    /**
+     * If not null, copy of the network with which inference is done in plain Java.
+     */
+    private FloatNetwork floatNetwork = null;
+
+    /**
+     * If not null, quantized copy of the network with which inference is done instead.
+     */
+    private QuantizedNetwork quantizedNetwork = null;
+
+    /**
+     * If not null, the single thread on which the network is fitted and scored, see setConcurrentTraining.
+     */
+    private ExecutorService trainingWorker = null;
+
+    /**
+     * Bounds the number of tasks given to the training worker that are not yet done.
+     */
+    private Semaphore pendingTasks;
+    private static final int maxPendingTasks = 2;
+
+    /**
+     * Added to the file path when the quantized network is saved, see startSave.
+     */
+    public static final String quantizedSuffix = ".int8";
+
+    /**
+     * While calibrating, a uniform sample of the feature vectors observed, otherwise null.
+     */
+    private List<SparseFeatures> calibrationSample = null;
+    private int calibrationSampleSize;
+    private int calibrationSeen;
+    private Random calibrationRandom;
+
     public MLP(MultiLayerNetwork network, ResponseVectorGenerator responseVectorGenerator, int miniBatchSize, double tol, int patience) {
         this.network = network;
         this.responseVectorGenerator = responseVectorGenerator;
@@ -41,6 +102,23 @@ public class MLP {
         lastLossScore = Double.POSITIVE_INFINITY;
     }
 
+    /**
+     * Classifier for inference only, with a quantized network as saved by startSave.
+     */
+    public MLP(QuantizedNetwork quantizedNetwork, ResponseVectorGenerator responseVectorGenerator) {
+        this(null, responseVectorGenerator, 0, 0, 0);
+        this.quantizedNetwork = quantizedNetwork;
+        isTraining = false;
+    }
+
+    /**
+     * Classifier for a head of a MultiHeadMLP, which has no network of its own, but keeps
+     * the labels and the early stopping state of the head.
+     */
+    MLP(ResponseVectorGenerator responseVectorGenerator, double tol, int patience) {
+        this(null, responseVectorGenerator, 0, tol, patience);
+    }
+
     public MLP(MultiLayerNetwork network, ResponseVectorGenerator responseVectorGenerator, int miniBatchSize, double tol, int patience, File lossFile) throws IOException {
         this.network = network;
         this.responseVectorGenerator = responseVectorGenerator;
@@ -76,17 +154,45 @@ public class MLP {
 //        System.gc();
     }
 
-    public void addObservation(double[] featureVector, Object response) {
+    public void setFeatureVectorGenerator(FeatureVectorGenerator featureVectorGenerator) {
+        this.featureVectorGenerator = featureVectorGenerator;
+    }
+
+    /**
+     * @param features Features in compact sparse form, which are kept until the minibatch is
+     *                 given to the network, so must not be changed.
+     */
+    public void addObservation(SparseFeatures features, Object response) {
+        if (calibrationSample != null) {
+            sampleForCalibration(features);
+        }
         if (isValidating && isTraining) {
-            observations.add(new Pair<>(featureVector, responseVectorGenerator.generateResponseVector(response)));
+            observations.add(new Pair<>(features, responseVectorGenerator.generateResponseVector(response)));
         } else if (isTraining) {
-            observations.add(new Pair<>(featureVector, responseVectorGenerator.generateResponseVector(response)));
+            observations.add(new Pair<>(features, responseVectorGenerator.generateResponseVector(response)));
             if (isTraining && observations.size() == miniBatchSize) {
                 train();
             }
         }
     }
 
+    public DataType getDataType() {
+        return network().getLayerWiseConfigurations().getDataType();
+    }
+
+    /**
+     * The network, which must not have been released.
+     */
+    private MultiLayerNetwork network() {
+        if (network == null)
+            throw new IllegalStateException("Error: network was released when quantized");
+        return network;
+    }
+
+    public void setReferenceDataType(DataType referenceDataType) {
+        this.referenceDataType = referenceDataType;
+    }
+
     public boolean isTraining() {
         return isTraining;
     }
@@ -141,65 +247,424 @@ public class MLP {
         return lastLossScore;
     }
 
+    /**
+     * Fit the network to the observations, on the training worker if there is one.
+     */
     public void train() {
         if (observations.isEmpty() || !isTraining) {
             clearObservations();
             return;
         }
 
-        DataSetIterator iter = new DoublesDataSetIterator(observations, observations.size());
-
-        network.fit(iter);
+        final List<Pair<SparseFeatures, float[]>> miniBatch = takeObservations();
+        runOnTrainingWorker(() -> fit(miniBatch));
+    }
 
-        clearObservations();
+    private void fit(List<Pair<SparseFeatures, float[]>> miniBatch) {
+        PhaseMetrics.get().start(PhaseMetrics.Phase.FIT);
+        try (INDArray features = observedFeatures(miniBatch); INDArray labels = observedLabels(miniBatch)) {
+            network().fit(new DataSet(features, labels));
+            referenceNetwork = null;
+        } finally {
+            PhaseMetrics.get().end();
+        }
     }
 
     public void save(String filePath) throws IOException {
-        network.save(new File(filePath));
+        await(startSave(filePath));
+    }
+
+    /**
+     * Save the network once the minibatches given to the training worker have been fitted.
+     * Once the network has been quantized, the quantized network is saved instead, to the
+     * file path with quantizedSuffix added, so that the network saved before is kept.
+     */
+    public Future<?> startSave(String filePath) {
+        if (quantizedNetwork != null) {
+            try {
+                quantizedNetwork.save(filePath + quantizedSuffix);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+        return submitToTrainingWorker(() -> {
+            network().save(new File(filePath));
+            return null;
+        });
     }
 
     public double validateMiniBatch() {
+        try {
+            return await(startValidateMiniBatch());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return 0;
+        }
+    }
+
+    /**
+     * Compute the loss of the network on the observations, on the training worker if there is one,
+     * once the minibatches given to it before have been fitted.
+     *
+     * @return The sum of the losses of the observations.
+     */
+    public Future<Double> startValidateMiniBatch() {
         if (isTraining && !observations.isEmpty()) {
-            double[][] featureArray = new double[observations.size()][observations.get(0).getKey().length];
-            double[][] labelArray = new double[observations.size()][observations.get(0).getValue().length];
-            for (int i=0; i<observations.size(); i++) {
-                Pair<double[], double[]> featureLabelPair = observations.get(i);
-                featureArray[i] = featureLabelPair.getKey();
-                labelArray[i] = featureLabelPair.getValue();
+            final List<Pair<SparseFeatures, float[]>> miniBatch = takeObservations();
+            return submitToTrainingWorker(() -> score(miniBatch));
+        } else {
+            clearObservations();
+            return CompletableFuture.completedFuture(0.0);
+        }
+    }
+
+    private double score(List<Pair<SparseFeatures, float[]>> miniBatch) {
+        double lossScoreSum = 0;
+        PhaseMetrics.get().start(PhaseMetrics.Phase.VALIDATION);
+        try (INDArray features = observedFeatures(miniBatch); INDArray labels = observedLabels(miniBatch)) {
+            DataSet dataset = new DataSet(features, labels);
+            lossScoreSum = network().score(dataset, false) * dataset.numExamples();
+            if (referenceDataType != null && referenceDataType != getDataType()) {
+                reportReferenceScore(features, labels, lossScoreSum);
             }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("failed scoring");
+            System.exit(1);
+        } finally {
+            PhaseMetrics.get().end();
+        }
 
-            double lossScoreSum = 0;
-            try (INDArray features = Nd4j.create(featureArray); INDArray labels = Nd4j.create(labelArray)) {
-                DataSet dataset = new DataSet(features, labels);
-                lossScoreSum = network.score(dataset, false) * dataset.numExamples();
-            } catch (Exception e) {
+        Runtime runtime = Runtime.getRuntime();
+        if (((double) runtime.totalMemory() - (double) runtime.freeMemory())/((double) runtime.maxMemory()) > 0.8) {
+            logger().fine("Heap above 80% after validation minibatch; forcing garbage collection");
+            PhaseMetrics.get().countForcedGc();
+            System.gc();
+            Nd4j.getMemoryManager().invokeGc();
+        }
+
+        return lossScoreSum;
+    }
+
+    /**
+     * Observations so far, which are no longer held by this.
+     */
+    private List<Pair<SparseFeatures, float[]>> takeObservations() {
+        final List<Pair<SparseFeatures, float[]>> taken = new ArrayList<>(observations);
+        clearObservations();
+        return taken;
+    }
+
+    /**
+     * Fit and score the network on a thread of its own, so that the classifiers of an
+     * extractor are trained at the same time, or stop doing so once the tasks given to the
+     * thread are done. The tasks run in the order in which they are given, so the results
+     * are the same as on the calling thread. At most maxPendingTasks minibatches are waiting
+     * at any time; adding observations blocks until one is done. The network must not be
+     * used for inference while training concurrently.
+     */
+    public void setConcurrentTraining(boolean concurrent) {
+        if (concurrent && trainingWorker == null) {
+            pendingTasks = new Semaphore(maxPendingTasks);
+            trainingWorker = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "mlp-trainer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else if (!concurrent && trainingWorker != null) {
+            final ExecutorService worker = trainingWorker;
+            trainingWorker = null;
+            worker.shutdown();
+            try {
+                worker.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
                 e.printStackTrace();
-                System.out.println("failed scoring");
                 System.exit(1);
             }
+        }
+    }
 
-            clearObservations();
-            Runtime runtime = Runtime.getRuntime();
-            if (((double) runtime.totalMemory() - (double) runtime.freeMemory())/((double) runtime.maxMemory()) > 0.8) {
-                System.gc();
-                Nd4j.getMemoryManager().invokeGc();
+    private void runOnTrainingWorker(Runnable task) {
+        if (trainingWorker == null) {
+            task.run();
+            return;
+        }
+        acquirePendingTask();
+        trainingWorker.execute(() -> {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+                System.exit(1);
+            } finally {
+                pendingTasks.release();
             }
+        });
+    }
 
-            return lossScoreSum;
-        } else {
-            clearObservations();
-            return 0;
+    private <T> Future<T> submitToTrainingWorker(Callable<T> task) {
+        if (trainingWorker == null) {
+            final CompletableFuture<T> result = new CompletableFuture<>();
+            try {
+                result.complete(task.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+            return result;
         }
+        acquirePendingTask();
+        return trainingWorker.submit(() -> {
+            try {
+                return task.call();
+            } finally {
+                pendingTasks.release();
+            }
+        });
     }
 
-    public Object predict(double[] featureVector) {
+    private void acquirePendingTask() {
+        try {
+            pendingTasks.acquire();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Result of task given to the training worker, waiting for it if needed.
+     */
+    public static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Compare loss with that of network converted to reference data type.
+     * The network is converted once per validation pass, as it is not fitted in between.
+     */
+    private void reportReferenceScore(INDArray features, INDArray labels, double lossScoreSum) {
+        if (referenceNetwork == null)
+            referenceNetwork = network().convertDataType(referenceDataType);
+        try (INDArray referenceFeatures = features.castTo(referenceDataType);
+             INDArray referenceLabels = labels.castTo(referenceDataType)) {
+            DataSet referenceDataset = new DataSet(referenceFeatures, referenceLabels);
+            double referenceLossScoreSum = referenceNetwork.score(referenceDataset, false) * referenceDataset.numExamples();
+            logger().info(getDataType() + " loss: " + lossScoreSum + "; " + referenceDataType + " loss: " +
+                    referenceLossScoreSum + "; difference: " + Math.abs(lossScoreSum - referenceLossScoreSum));
+        }
+    }
+
+    /**
+     * Feature vectors of observations, made into one array. Training is dense: the
+     * sparse first layer of FloatNetwork is only used for inference.
+     */
+    private INDArray observedFeatures(List<Pair<SparseFeatures, float[]>> miniBatch) {
+        final int vectorLength = featureVectorGenerator.getVectorLength();
+        final float[] featureArray = new float[miniBatch.size() * vectorLength];
+        PhaseMetrics.get().start(PhaseMetrics.Phase.FEATURES);
+        try {
+            for (int i = 0; i < miniBatch.size(); i++) {
+                featureVectorGenerator.generateFeatureVector(miniBatch.get(i).getKey(), featureArray, i * vectorLength);
+            }
+        } finally {
+            PhaseMetrics.get().end();
+        }
+        return Nd4j.create(featureArray, new long[]{miniBatch.size(), vectorLength}, 'c').castTo(getDataType());
+    }
+
+    private INDArray observedLabels(List<Pair<SparseFeatures, float[]>> miniBatch) {
+        float[][] labelArray = new float[miniBatch.size()][];
+        for (int i = 0; i < miniBatch.size(); i++) {
+            labelArray[i] = miniBatch.get(i).getValue();
+        }
+        return Nd4j.create(labelArray).castTo(getDataType());
+    }
+
+    public Object predict(float[] featureVector) {
         return predictAll(featureVector)[0];
     }
 
-    public Object[] predictAll(double[] featureVector) {  // predicts action and orders them by most probable
-        INDArray features = Nd4j.create(new double[][] {featureVector});
-        INDArray output = network.output(features, false);
-        final double[] scores = output.toDoubleVector();
-        return responseVectorGenerator.getLabelsFromScores(scores);
+    public Object[] predictAll(float[] featureVector) {  // predicts action and orders them by most probable
+        return labels(scores(new float[][] {featureVector}))[0];
+    }
+
+    /**
+     * Predict for several feature vectors with one call of the network.
+     *
+     * @return For each feature vector, the labels ordered by most probable.
+     */
+    public Object[][] predictAll(float[][] featureVectors) {
+        return labels(scores(featureVectors));
+    }
+
+    /**
+     * Predict for several feature vectors with one call of the network.
+     *
+     * @return For each feature vector, the labels ordered by most probable, and their probabilities.
+     */
+    public List<Pair<Object[], double[]>> predictRanked(float[][] featureVectors) {
+        return ranked(scores(featureVectors));
+    }
+
+    /**
+     * Output of network for several feature vectors with one call of the network.
+     */
+    public double[][] scores(float[][] featureVectors) {
+        if (inferenceNetwork() != null)
+            return inferenceNetwork().scores(featureVectors);
+        try (INDArray features = Nd4j.create(featureVectors).castTo(getDataType())) {
+            INDArray output = network().output(features, false);
+            return output.toDoubleMatrix();
+        }
+    }
+
+    /**
+     * Output of network for feature vectors in sparse form, which requires inference in plain Java.
+     */
+    public double[][] scores(List<SparseFeatures> features, FeatureVectorGenerator featureVectorGenerator) {
+        if (inferenceNetwork() == null)
+            throw new IllegalStateException("Error: sparse features need inference in plain Java");
+        return inferenceNetwork().scores(features, featureVectorGenerator.getEmbeddingSlotOffsets());
+    }
+
+    /**
+     * For each row of scores, the labels ordered by most probable.
+     */
+    public Object[][] labels(double[][] scores) {
+        Object[][] labels = new Object[scores.length][];
+        for (int i = 0; i < scores.length; i++) {
+            labels[i] = responseVectorGenerator.getLabelsFromScores(scores[i]);
+        }
+        return labels;
+    }
+
+    /**
+     * For each row of scores, the labels ordered by most probable, and their probabilities.
+     */
+    public List<Pair<Object[], double[]>> ranked(double[][] scores) {
+        List<Pair<Object[], double[]>> ranked = new ArrayList<>(scores.length);
+        for (double[] row : scores) {
+            final Object[] labels = responseVectorGenerator.getLabelsFromScores(row);
+            final double[] probabilities = Arrays.stream(row)
+                    .boxed()
+                    .sorted(Comparator.reverseOrder())
+                    .mapToDouble(Double::doubleValue)
+                    .toArray();
+            ranked.add(new Pair<>(labels, probabilities));
+        }
+        return ranked;
+    }
+
+    /**
+     * Do inference in plain Java with a copy of the network in its current state,
+     * see FloatNetwork, or stop doing so. Has no effect unless all layers are dense,
+     * or once the network has been quantized.
+     */
+    public void setFloatInference(boolean floatInference) {
+        if (quantizedNetwork != null)
+            return;
+        floatNetwork = floatInference && network != null && FloatNetwork.isApplicable(network) ?
+                new FloatNetwork(network) : null;
+    }
+
+    public boolean isFloatInference() {
+        return inferenceNetwork() != null;
+    }
+
+    private FloatNetwork inferenceNetwork() {
+        return quantizedNetwork != null ? quantizedNetwork : floatNetwork;
+    }
+
+    /**
+     * Start keeping a sample of the feature vectors observed, from which to calibrate quantization.
+     *
+     * @param sampleSize Maximum number of feature vectors kept.
+     */
+    public void startCalibrating(int sampleSize) {
+        calibrationSample = new ArrayList<>();
+        calibrationSampleSize = sampleSize;
+        calibrationSeen = 0;
+        calibrationRandom = new Random(sampleSize);
+    }
+
+    private void sampleForCalibration(SparseFeatures featureVector) {
+        calibrationSeen++;
+        if (calibrationSample.size() < calibrationSampleSize) {
+            calibrationSample.add(featureVector);
+        } else {
+            int i = calibrationRandom.nextInt(calibrationSeen);
+            if (i < calibrationSampleSize)
+                calibrationSample.set(i, featureVector);
+        }
+    }
+
+    /**
+     * Stop calibrating, and from then on do inference with the network quantized, see QuantizedNetwork.
+     * Half of the sample determines the ranges of inputs of the layers, and the
+     * other half is used to compare the quantized network with the unquantized one.
+     * The float and DL4J weights are then released, so the network can no longer be
+     * trained or projected, and only the quantized network is saved; the network should
+     * be saved before.
+     *
+     * @return Fraction of the sample with the same most probable label, mean total variation
+     * distance between outputs, and largest difference of any output; or null if the network
+     * could not be quantized.
+     */
+    public double[] quantize() {
+        final List<SparseFeatures> sample = calibrationSample;
+        calibrationSample = null;
+        if (sample == null || sample.size() < 2 || network == null || !FloatNetwork.isApplicable(network)) {
+            return null;
+        }
+        final FloatNetwork reference = floatNetwork != null ? floatNetwork : new FloatNetwork(network);
+        final float[][] calibration = new float[(sample.size() + 1) / 2][];
+        final float[][] held = new float[sample.size() / 2][];
+        for (int i = 0; i < sample.size(); i++) {
+            final float[] featureVector = new float[featureVectorGenerator.getVectorLength()];
+            featureVectorGenerator.generateFeatureVector(sample.get(i), featureVector, 0);
+            if (i % 2 == 0)
+                calibration[i / 2] = featureVector;
+            else
+                held[i / 2] = featureVector;
+        }
+        quantizedNetwork = new QuantizedNetwork(reference, calibration);
+        final double[] drift = quantizedNetwork.drift(reference, held);
+        floatNetwork = null;
+        referenceNetwork = null;
+        network = null;
+        isTraining = false;
+        clearObservations();
+        return drift;
+    }
+
+    public boolean isQuantized() {
+        return quantizedNetwork != null;
+    }
+
+    /**
+     * First layer projection of the network in its current state, for inference,
+     * or null if the first layer of the network is not dense or the network was quantized.
+     * If inference is done in plain Java, so are the layers after the first.
+     */
+    public ProjectedFirstLayer makeProjectedFirstLayer(FeatureVectorGenerator featureVectorGenerator) {
+        return network != null && ProjectedFirstLayer.isApplicable(network) ?
+                new ProjectedFirstLayer(network, featureVectorGenerator, inferenceNetwork()) : null;
+    }
+
+    private Logger logger() {
+        final Logger log = Logger.getLogger(getClass().getName());
+        log.setParent(Logger.getGlobal());
+        return log;
     }
 }
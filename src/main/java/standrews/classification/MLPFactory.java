@@ -1,14 +1,17 @@
 package standrews.classification;
 
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
 import org.deeplearning4j.nn.conf.layers.DenseLayer;
 import org.deeplearning4j.nn.conf.layers.LearnedSelfAttentionLayer;
 import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.conf.layers.SelfAttentionLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.learning.config.Adam;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 
@@ -19,8 +22,18 @@ public class MLPFactory {
     private final int attentionHeadSize;
     private final double learningRate;
     private final double inputRetainProbability;
+    private final DataType dataType;
 
     public MLPFactory(int inputSize, int[] hiddenLayerSizes, int nAttentionHeads, int attentionHeadSize, double learningRate, double dropoutRate, int seed) {
+        this(inputSize, hiddenLayerSizes, nAttentionHeads, attentionHeadSize, learningRate, dropoutRate, seed, DataType.FLOAT);
+    }
+
+    /**
+     * @param dataType Data type in which networks are trained and run, FLOAT or DOUBLE.
+     */
+    public MLPFactory(int inputSize, int[] hiddenLayerSizes, int nAttentionHeads, int attentionHeadSize, double learningRate, double dropoutRate, int seed,
+                      DataType dataType) {
+        this.dataType = dataType;
         this.learningRate = learningRate;
         this.seed = seed;
         this.inputRetainProbability = 1.0-dropoutRate;
@@ -38,6 +51,7 @@ public class MLPFactory {
 
         NeuralNetConfiguration.ListBuilder builder = new NeuralNetConfiguration.Builder()
                 .seed(seed)
+                .dataType(dataType)
                 .updater(new Adam(learningRate))
                 .list();
         if (nAttentionHeads > 0) {
@@ -98,4 +112,50 @@ public class MLPFactory {
 
         return new MLP(network, responseVectorGenerator, miniBatchSize, tol, patience);
     }
+
+    /**
+     * Network with the hidden layers shared between heads, one for each response vector
+     * generator, see MultiHeadMLP. Attention layers are not supported.
+     */
+    public MultiHeadMLP makeMultiHeadMLP(ResponseVectorGenerator[] responseVectorGenerators, String[] headNames,
+                                         int miniBatchSize, double tol, int patience) {
+        if (nAttentionHeads > 0)
+            throw new IllegalStateException("Error: shared hidden layers without attention only");
+
+        ComputationGraphConfiguration.GraphBuilder builder = new NeuralNetConfiguration.Builder()
+                .seed(seed)
+                .dataType(dataType)
+                .updater(new Adam(learningRate))
+                .graphBuilder()
+                .addInputs("features");
+        final String[] trunkLayers = new String[layers.length - 2];
+        String previous = "features";
+        for (int i = 1; i < layers.length - 1; i++) {
+            trunkLayers[i - 1] = "hidden" + (i - 1);
+            builder = builder.addLayer(trunkLayers[i - 1],
+                    new DenseLayer.Builder()
+                            .nIn(layers[i - 1])
+                            .nOut(layers[i])
+                            .weightInit(WeightInit.XAVIER)
+                            .activation(Activation.RELU)
+                            .dropOut(inputRetainProbability)
+                            .build(), previous);
+            previous = trunkLayers[i - 1];
+        }
+        for (int h = 0; h < headNames.length; h++) {
+            builder = builder.addLayer(headNames[h],
+                    new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
+                            .nIn(layers[layers.length - 2])
+                            .nOut(responseVectorGenerators[h].getVectorSize())
+                            .weightInit(WeightInit.XAVIER)
+                            .activation(Activation.SOFTMAX)
+                            .dropOut(inputRetainProbability)
+                            .build(), previous);
+        }
+        ComputationGraphConfiguration conf = builder.setOutputs(headNames).build();
+        ComputationGraph network = new ComputationGraph(conf);
+        network.init();
+
+        return new MultiHeadMLP(network, trunkLayers, headNames, responseVectorGenerators, miniBatchSize, tol, patience);
+    }
 }
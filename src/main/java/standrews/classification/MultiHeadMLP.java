@@ -0,0 +1,329 @@
+package standrews.classification;
+
+import org.deeplearning4j.nn.conf.graph.LayerVertex;
+import org.deeplearning4j.nn.conf.layers.BaseLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import standrews.aux_.PhaseMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Network with hidden layers shared between several softmax heads, such as for action,
+ * category and fellow, which all see the same feature vector. Each observation has a
+ * response for each head to which it applies; the loss of a head is masked out for the
+ * other observations, so a head learns only from configurations where its decision is made.
+ *
+ * Each head has an MLP without a network of its own, which keeps the labels and the early
+ * stopping state of the head. The shared network is trained as long as any head is; a head
+ * that has stopped is given no responses, and its output layer is no longer updated.
+ */
+public class MultiHeadMLP {
+    /**
+     * Smallest probability of which the log is taken, as in the loss of the network.
+     */
+    private static final double MIN_PROBABILITY = 1e-10;
+
+    private final ComputationGraph network;
+    private final String[] trunkLayers;
+    private final String[] headLayers;
+    private final ResponseVectorGenerator[] responseVectorGenerators;
+    private final MLP[] heads;
+    private final int miniBatchSize;
+
+    /**
+     * For each head, whether the learning rate of its output layer has been set to 0
+     * because it has stopped training.
+     */
+    private final boolean[] frozen;
+
+    /**
+     * Observed features in sparse form, and for each head the response vector, or null
+     * where the head does not apply.
+     */
+    private final ArrayList<SparseFeatures> observedFeatures = new ArrayList<>();
+    private final ArrayList<float[][]> observedResponses = new ArrayList<>();
+
+    private FeatureVectorGenerator featureVectorGenerator;
+    private boolean isValidating = false;
+
+    /**
+     * If not null, copies of the shared layers and of the heads with which inference is done in plain Java.
+     */
+    private FloatNetwork floatTrunk = null;
+    private FloatNetwork[] floatHeads = null;
+
+    /**
+     * @param trunkLayers Names of the shared layers in the network, from the input on.
+     * @param headLayers Names of the output layers of the heads, in the order of the outputs of the network.
+     */
+    public MultiHeadMLP(ComputationGraph network, String[] trunkLayers, String[] headLayers,
+                        ResponseVectorGenerator[] responseVectorGenerators,
+                        int miniBatchSize, double tol, int patience) {
+        this.network = network;
+        this.trunkLayers = trunkLayers;
+        this.headLayers = headLayers;
+        this.responseVectorGenerators = responseVectorGenerators;
+        this.miniBatchSize = miniBatchSize;
+        heads = new MLP[headLayers.length];
+        frozen = new boolean[headLayers.length];
+        for (int h = 0; h < heads.length; h++)
+            heads[h] = new MLP(responseVectorGenerators[h], tol, patience);
+    }
+
+    public void setFeatureVectorGenerator(FeatureVectorGenerator featureVectorGenerator) {
+        this.featureVectorGenerator = featureVectorGenerator;
+        for (MLP head : heads)
+            head.setFeatureVectorGenerator(featureVectorGenerator);
+    }
+
+    public MLP getHead(int h) {
+        return heads[h];
+    }
+
+    public int getNumHeads() {
+        return heads.length;
+    }
+
+    public boolean isTraining() {
+        for (MLP head : heads)
+            if (head.isTraining())
+                return true;
+        return false;
+    }
+
+    public void startValidating() {
+        isValidating = true;
+    }
+
+    public void stopValidating() {
+        isValidating = false;
+    }
+
+    public DataType getDataType() {
+        return network.getConfiguration().getDataType();
+    }
+
+    /**
+     * @param features Features in compact sparse form, which must not be changed.
+     * @param responses For each head, the response, or null if the head does not apply.
+     *                  Responses for heads that have stopped training are left out.
+     */
+    public void addObservation(SparseFeatures features, Object[] responses) {
+        if (!isTraining())
+            return;
+        final float[][] vectors = new float[heads.length][];
+        boolean any = false;
+        for (int h = 0; h < heads.length; h++) {
+            if (responses[h] != null && heads[h].isTraining()) {
+                vectors[h] = responseVectorGenerators[h].generateResponseVector(responses[h]);
+                any = true;
+            }
+        }
+        if (!any)
+            return;
+        observedFeatures.add(features);
+        observedResponses.add(vectors);
+        if (!isValidating && observedFeatures.size() == miniBatchSize)
+            train();
+    }
+
+    public void train() {
+        if (observedFeatures.isEmpty() || !isTraining()) {
+            clearObservations();
+            return;
+        }
+        freezeStoppedHeads();
+        PhaseMetrics.get().start(PhaseMetrics.Phase.FIT);
+        try {
+            network.fit(observedDataSet());
+        } finally {
+            PhaseMetrics.get().end();
+        }
+        clearObservations();
+    }
+
+    /**
+     * Stop updating the output layers of heads that have stopped training. Their loss is
+     * already masked out, but the updater would otherwise keep moving their weights.
+     */
+    private void freezeStoppedHeads() {
+        for (int h = 0; h < heads.length; h++) {
+            if (!frozen[h] && !heads[h].isTraining()) {
+                network.setLearningRate(headLayers[h], 0);
+                frozen[h] = true;
+            }
+        }
+    }
+
+    /**
+     * For each head, the sum of the losses of the observations to which it applies.
+     */
+    public double[] validateMiniBatch() {
+        final double[] lossScoreSums = new double[heads.length];
+        if (observedFeatures.isEmpty() || !isTraining()) {
+            clearObservations();
+            return lossScoreSums;
+        }
+        PhaseMetrics.get().start(PhaseMetrics.Phase.VALIDATION);
+        try (INDArray features = observedFeatureArray()) {
+            final INDArray[] outputs = network.output(false, features);
+            for (int h = 0; h < heads.length; h++) {
+                final double[][] probabilities = outputs[h].toDoubleMatrix();
+                for (int i = 0; i < probabilities.length; i++) {
+                    final float[] response = observedResponses.get(i)[h];
+                    if (response == null)
+                        continue;
+                    double p = 0;
+                    for (int j = 0; j < response.length; j++)
+                        p += response[j] * probabilities[i][j];
+                    lossScoreSums[h] -= Math.log(Math.max(p, MIN_PROBABILITY));
+                }
+                outputs[h].close();
+            }
+        } finally {
+            PhaseMetrics.get().end();
+        }
+        clearObservations();
+        return lossScoreSums;
+    }
+
+    private void clearObservations() {
+        observedFeatures.clear();
+        observedResponses.clear();
+    }
+
+    /**
+     * Features of the observations, with for each head the responses and a mask that is 1
+     * for the observations to which the head applies.
+     */
+    private MultiDataSet observedDataSet() {
+        final int n = observedFeatures.size();
+        final INDArray[] labels = new INDArray[heads.length];
+        final INDArray[] labelMasks = new INDArray[heads.length];
+        for (int h = 0; h < heads.length; h++) {
+            final float[][] labelArray = new float[n][];
+            final float[][] maskArray = new float[n][1];
+            for (int i = 0; i < n; i++) {
+                final float[] response = observedResponses.get(i)[h];
+                if (response != null) {
+                    labelArray[i] = response;
+                    maskArray[i][0] = 1;
+                } else {
+                    labelArray[i] = new float[responseVectorGenerators[h].getVectorSize()];
+                }
+            }
+            labels[h] = Nd4j.create(labelArray).castTo(getDataType());
+            labelMasks[h] = Nd4j.create(maskArray).castTo(getDataType());
+        }
+        return new MultiDataSet(new INDArray[]{observedFeatureArray()}, labels, null, labelMasks);
+    }
+
+    private INDArray observedFeatureArray() {
+        final int vectorLength = featureVectorGenerator.getVectorLength();
+        final float[] featureArray = new float[observedFeatures.size() * vectorLength];
+        PhaseMetrics.get().start(PhaseMetrics.Phase.FEATURES);
+        try {
+            for (int i = 0; i < observedFeatures.size(); i++)
+                featureVectorGenerator.generateFeatureVector(observedFeatures.get(i), featureArray, i * vectorLength);
+        } finally {
+            PhaseMetrics.get().end();
+        }
+        return Nd4j.create(featureArray, new long[]{observedFeatures.size(), vectorLength}, 'c').castTo(getDataType());
+    }
+
+    public void save(String filePath) throws IOException {
+        network.save(new File(filePath));
+    }
+
+    /**
+     * Output of each head for several feature vectors, with one forward pass through the shared layers.
+     *
+     * @return For each head, and each feature vector, the probabilities of the labels.
+     */
+    public double[][][] scores(float[][] featureVectors) {
+        if (floatTrunk != null)
+            return headScores(floatTrunk.outputs(featureVectors));
+        final double[][][] scores = new double[heads.length][][];
+        try (INDArray features = Nd4j.create(featureVectors).castTo(getDataType())) {
+            final INDArray[] outputs = network.output(false, features);
+            for (int h = 0; h < heads.length; h++) {
+                scores[h] = outputs[h].toDoubleMatrix();
+                outputs[h].close();
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * As scores, for feature vectors in sparse form, which requires inference in plain Java.
+     */
+    public double[][][] scores(List<SparseFeatures> features, FeatureVectorGenerator featureVectorGenerator) {
+        if (floatTrunk == null)
+            throw new IllegalStateException("Error: sparse features need inference in plain Java");
+        return headScores(floatTrunk.outputs(features, featureVectorGenerator.getEmbeddingSlotOffsets()));
+    }
+
+    private double[][][] headScores(float[][] hidden) {
+        final double[][][] scores = new double[heads.length][][];
+        for (int h = 0; h < heads.length; h++)
+            scores[h] = floatHeads[h].scores(hidden);
+        return scores;
+    }
+
+    /**
+     * Do inference in plain Java with a copy of the network in its current state,
+     * see FloatNetwork, or stop doing so. Has no effect unless the activations of all
+     * layers are supported.
+     */
+    public void setFloatInference(boolean floatInference) {
+        floatTrunk = null;
+        floatHeads = null;
+        if (!floatInference)
+            return;
+        final float[][][] trunkWeights = new float[trunkLayers.length][][];
+        final float[][] trunkBiases = new float[trunkLayers.length][];
+        final Activation[] trunkActivations = new Activation[trunkLayers.length];
+        for (int l = 0; l < trunkLayers.length; l++) {
+            trunkWeights[l] = param(trunkLayers[l], "W").toFloatMatrix();
+            trunkBiases[l] = param(trunkLayers[l], "b").toFloatVector();
+            trunkActivations[l] = activation(trunkLayers[l]);
+            if (trunkActivations[l] == null)
+                return;
+        }
+        final FloatNetwork[] floatHeads = new FloatNetwork[heads.length];
+        for (int h = 0; h < heads.length; h++) {
+            final Activation headActivation = activation(headLayers[h]);
+            if (headActivation == null)
+                return;
+            floatHeads[h] = new FloatNetwork(new float[][][]{param(headLayers[h], "W").toFloatMatrix()},
+                    new float[][]{param(headLayers[h], "b").toFloatVector()},
+                    new Activation[]{headActivation});
+        }
+        this.floatTrunk = new FloatNetwork(trunkWeights, trunkBiases, trunkActivations);
+        this.floatHeads = floatHeads;
+    }
+
+    public boolean isFloatInference() {
+        return floatTrunk != null;
+    }
+
+    /**
+     * Activation of layer as configured in the network, or null if not supported by FloatNetwork.
+     */
+    private Activation activation(String layer) {
+        final LayerVertex vertex = (LayerVertex) network.getConfiguration().getVertices().get(layer);
+        return FloatNetwork.activation(((BaseLayer) vertex.getLayerConf().getLayer()).getActivationFn());
+    }
+
+    private INDArray param(String layer, String name) {
+        return network.getLayer(layer).getParam(name).castTo(DataType.FLOAT);
+    }
+}
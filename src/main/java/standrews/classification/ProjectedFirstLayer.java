@@ -0,0 +1,157 @@
+package standrews.classification;
+
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import standrews.constbase.EnhancedConstLeaf;
+
+import java.util.List;
+
+/**
+ * Inference for a network whose first layer is dense, without multiplying the whole
+ * feature vector by the first weight matrix for every configuration.
+ *
+ * When a sentence is loaded, the embedding of each token is multiplied once by the rows
+ * of the first weight matrix belonging to each embedding slot. The pre-activation of the
+ * first layer for a configuration is then the bias, plus the cached projections for the
+ * tokens in the embedding slots, plus the rows of the one-hot features. The remaining
+ * layers are run by the network as usual.
+ *
+ * The remaining layers can also be run by a FloatNetwork copy of the network.
+ *
+ * The weights are copied when this is made, so it must be made again after further training.
+ */
+public class ProjectedFirstLayer {
+    private final MultiLayerNetwork network;
+    private final DataType dataType;
+    private final IActivation activation;
+    private final int nOut;
+    private final float[] bias;
+
+    /**
+     * Rows of the first weight matrix for the one-hot parts of the feature vector;
+     * null for rows belonging to embeddings.
+     */
+    private final float[][] oneHotRows;
+
+    /**
+     * If not null, copy of the network that runs the layers after the first.
+     */
+    private final FloatNetwork floatNetwork;
+
+    /**
+     * For each embedding slot, the rows of the first weight matrix belonging to it.
+     */
+    private final INDArray[] slotWeights;
+
+    public ProjectedFirstLayer(MultiLayerNetwork network, FeatureVectorGenerator featureVectorGenerator) {
+        this(network, featureVectorGenerator, null);
+    }
+
+    public ProjectedFirstLayer(MultiLayerNetwork network, FeatureVectorGenerator featureVectorGenerator,
+                               FloatNetwork floatNetwork) {
+        if (!isApplicable(network)) {
+            throw new IllegalArgumentException("Error: first layer must be dense and followed by other layers");
+        }
+        this.network = network;
+        this.floatNetwork = floatNetwork;
+        this.dataType = network.getLayerWiseConfigurations().getDataType();
+        DenseLayer firstLayer = (DenseLayer) network.getLayerWiseConfigurations().getConf(0).getLayer();
+        this.activation = firstLayer.getActivationFn();
+
+        INDArray weights = network.getLayer(0).getParam("W");
+        this.nOut = weights.columns();
+        INDArray b = firstLayer.hasBias() ? network.getLayer(0).getParam("b") : null;
+        this.bias = b == null ? new float[nOut] : b.castTo(DataType.FLOAT).toFloatVector();
+
+        final int[] slotOffsets = featureVectorGenerator.getEmbeddingSlotOffsets();
+        final int embeddingLength = FeatureVectorGenerator.getEmbeddingVectorLength();
+        final boolean[] isEmbeddingRow = new boolean[weights.rows()];
+        slotWeights = new INDArray[slotOffsets.length];
+        for (int slot = 0; slot < slotOffsets.length; slot++) {
+            slotWeights[slot] = weights.get(NDArrayIndex.interval(slotOffsets[slot], slotOffsets[slot] + embeddingLength),
+                    NDArrayIndex.all()).dup();
+            for (int i = slotOffsets[slot]; i < slotOffsets[slot] + embeddingLength; i++)
+                isEmbeddingRow[i] = true;
+        }
+        oneHotRows = new float[isEmbeddingRow.length][];
+        for (int i = 0; i < isEmbeddingRow.length; i++) {
+            if (!isEmbeddingRow[i])
+                oneHotRows[i] = weights.getRow(i).castTo(DataType.FLOAT).toFloatVector();
+        }
+    }
+
+    /**
+     * Can the first layer of the network be projected?
+     */
+    public static boolean isApplicable(MultiLayerNetwork network) {
+        if (network.getnLayers() < 2)
+            return false;
+        Layer firstLayer = network.getLayerWiseConfigurations().getConf(0).getLayer();
+        return firstLayer instanceof DenseLayer;
+    }
+
+    /**
+     * Products of the embeddings of a sentence with the first layer weights.
+     *
+     * @param embeddings Embedding of each token of the sentence.
+     * @return For each embedding slot and token, the projection.
+     */
+    public float[][][] projectSentence(float[][] embeddings) {
+        final float[][][] projections = new float[slotWeights.length][][];
+        if (embeddings.length == 0) {
+            for (int slot = 0; slot < slotWeights.length; slot++)
+                projections[slot] = new float[0][];
+            return projections;
+        }
+        try (INDArray sentence = Nd4j.create(embeddings).castTo(dataType)) {
+            for (int slot = 0; slot < slotWeights.length; slot++) {
+                try (INDArray projected = sentence.mmul(slotWeights[slot])) {
+                    projections[slot] = projected.castTo(DataType.FLOAT).toFloatMatrix();
+                }
+            }
+        }
+        return projections;
+    }
+
+    /**
+     * Scores of output layer for configurations given in sparse form.
+     *
+     * @param features Sparse features of each configuration.
+     * @param projections Projections of the sentence of each configuration, from projectSentence.
+     */
+    public double[][] scores(List<SparseFeatures> features, List<float[][][]> projections) {
+        final float[][] preActivations = new float[features.size()][];
+        for (int i = 0; i < features.size(); i++)
+            preActivations[i] = preActivation(features.get(i), projections.get(i));
+        if (floatNetwork != null)
+            return floatNetwork.scoresFrom(0, preActivations, true);
+        try (INDArray firstLayerInput = Nd4j.create(preActivations).castTo(dataType)) {
+            INDArray hidden = activation.getActivation(firstLayerInput, false);
+            INDArray output = network.activateSelectedLayers(1, network.getnLayers() - 1, hidden);
+            return output.toDoubleMatrix();
+        }
+    }
+
+    private float[] preActivation(SparseFeatures features, float[][][] projections) {
+        final float[] z = bias.clone();
+        for (int i = 0; i < features.getNumOneHots(); i++)
+            add(z, oneHotRows[features.getOneHotIndex(i)]);
+        for (int slot = 0; slot < slotWeights.length; slot++) {
+            final EnhancedConstLeaf leaf = features.getSlotLeaf(slot);
+            if (leaf != null)
+                add(z, projections[slot][leaf.getIndex()]);
+        }
+        return z;
+    }
+
+    private static void add(float[] z, float[] row) {
+        for (int j = 0; j < z.length; j++)
+            z[j] += row[j];
+    }
+}
@@ -0,0 +1,316 @@
+package standrews.classification;
+
+import org.nd4j.linalg.activations.Activation;
+import standrews.constbase.EnhancedConstLeaf;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Stack of dense layers with weights quantized to 8-bit integers, for inference.
+ *
+ * Weights are quantized symmetrically with one scale per output unit. Inputs of each
+ * layer are quantized with one scale per layer, determined from the largest input seen
+ * in a calibration sample; larger inputs are clipped. Products are summed in integers
+ * and scaled back to floats before the bias and activation are applied.
+ *
+ * Inference is slower than with FloatNetwork, as loops over bytes are not vectorised;
+ * the gain is in the memory taken by the weights.
+ */
+public class QuantizedNetwork extends FloatNetwork {
+    private static final int LEVELS = 127;
+
+    /**
+     * Number of feature vectors for which each row of weights is used before moving on.
+     */
+    private static final int BLOCK_SIZE = 16;
+
+    /**
+     * For each layer, the quantized weights, by input and then output.
+     */
+    private final byte[][][] quantizedWeights;
+
+    /**
+     * For each layer and output unit, the value of one step of the quantized weights.
+     */
+    private final float[][] weightScales;
+
+    /**
+     * For each layer, the value of one step of the quantized inputs.
+     */
+    private final float[] inputScales;
+
+    /**
+     * @param network Network to be quantized.
+     * @param calibration Feature vectors from which the ranges of inputs of layers are determined.
+     */
+    public QuantizedNetwork(FloatNetwork network, float[][] calibration) {
+        super(network.weights.clone(), network.biases, network.activations);
+        final int nLayers = weights.length;
+        quantizedWeights = new byte[nLayers][][];
+        weightScales = new float[nLayers][];
+        inputScales = new float[nLayers];
+
+        float[][] x = calibration;
+        for (int l = 0; l < nLayers; l++) {
+            inputScales[l] = maxAbs(x) / LEVELS;
+            quantizeWeights(l);
+            if (l < nLayers - 1) {
+                x = network.preActivation(l, x);
+                activate(activations[l], x);
+            }
+        }
+        // only the quantized weights are kept
+        for (int l = 0; l < nLayers; l++)
+            weights[l] = null;
+    }
+
+    private QuantizedNetwork(byte[][][] quantizedWeights, float[][] weightScales, float[] inputScales,
+                             float[][] biases, Activation[] activations) {
+        super(placeholderWeights(quantizedWeights), biases, activations);
+        this.quantizedWeights = quantizedWeights;
+        this.weightScales = weightScales;
+        this.inputScales = inputScales;
+        for (int l = 0; l < weights.length; l++)
+            weights[l] = null;
+    }
+
+    /**
+     * Rows without elements, so that the shapes of the layers can be checked.
+     */
+    private static float[][][] placeholderWeights(byte[][][] quantizedWeights) {
+        final float[][][] weights = new float[quantizedWeights.length][][];
+        for (int l = 0; l < weights.length; l++)
+            weights[l] = new float[quantizedWeights[l].length][];
+        return weights;
+    }
+
+    /**
+     * Write quantized weights, scales, biases and activations of each layer.
+     */
+    public void save(String filePath) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath)))) {
+            out.writeInt(quantizedWeights.length);
+            for (int l = 0; l < quantizedWeights.length; l++) {
+                final byte[][] w = quantizedWeights[l];
+                final int nOut = biases[l].length;
+                out.writeUTF(activations[l].name());
+                out.writeInt(w.length);
+                out.writeInt(nOut);
+                out.writeFloat(inputScales[l]);
+                for (int j = 0; j < nOut; j++)
+                    out.writeFloat(weightScales[l][j]);
+                for (int j = 0; j < nOut; j++)
+                    out.writeFloat(biases[l][j]);
+                for (byte[] row : w)
+                    out.write(row);
+            }
+        }
+    }
+
+    /**
+     * Read network as written by save.
+     */
+    public static QuantizedNetwork load(String filePath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)))) {
+            final int nLayers = in.readInt();
+            final byte[][][] quantizedWeights = new byte[nLayers][][];
+            final float[][] weightScales = new float[nLayers][];
+            final float[] inputScales = new float[nLayers];
+            final float[][] biases = new float[nLayers][];
+            final Activation[] activations = new Activation[nLayers];
+            for (int l = 0; l < nLayers; l++) {
+                try {
+                    activations[l] = Activation.valueOf(in.readUTF());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Error: unknown activation in " + filePath, e);
+                }
+                final int nIn = in.readInt();
+                final int nOut = in.readInt();
+                inputScales[l] = in.readFloat();
+                weightScales[l] = new float[nOut];
+                for (int j = 0; j < nOut; j++)
+                    weightScales[l][j] = in.readFloat();
+                biases[l] = new float[nOut];
+                for (int j = 0; j < nOut; j++)
+                    biases[l][j] = in.readFloat();
+                quantizedWeights[l] = new byte[nIn][nOut];
+                for (byte[] row : quantizedWeights[l])
+                    in.readFully(row);
+            }
+            return new QuantizedNetwork(quantizedWeights, weightScales, inputScales, biases, activations);
+        }
+    }
+
+    private void quantizeWeights(int l) {
+        final float[][] w = weights[l];
+        final int nOut = biases[l].length;
+        final float[] scales = new float[nOut];
+        for (float[] row : w)
+            for (int j = 0; j < nOut; j++)
+                scales[j] = Math.max(scales[j], Math.abs(row[j]));
+        for (int j = 0; j < nOut; j++)
+            scales[j] /= LEVELS;
+        final byte[][] q = new byte[w.length][nOut];
+        for (int i = 0; i < w.length; i++)
+            for (int j = 0; j < nOut; j++)
+                q[i][j] = quantize(w[i][j], scales[j] == 0 ? 0 : 1 / scales[j]);
+        quantizedWeights[l] = q;
+        weightScales[l] = scales;
+    }
+
+    private static byte quantize(float v, float inverseScale) {
+        final int q = (int) (v * inverseScale + (v < 0 ? -0.5f : 0.5f));
+        return (byte) Math.max(-LEVELS, Math.min(LEVELS, q));
+    }
+
+    private static float maxAbs(float[][] x) {
+        float max = 0;
+        for (float[] row : x)
+            for (float v : row)
+                max = Math.max(max, Math.abs(v));
+        return max;
+    }
+
+    /**
+     * Number of bytes taken by the quantized weights.
+     */
+    public long getWeightBytes() {
+        long n = 0;
+        for (byte[][] w : quantizedWeights)
+            for (byte[] row : w)
+                n += row.length;
+        return n;
+    }
+
+    @Override
+    protected float[][] preActivation(int l, float[][] x) {
+        final byte[][] w = quantizedWeights[l];
+        final float[] b = biases[l];
+        final float[] scales = weightScales[l];
+        final float inputScale = inputScales[l];
+        final float inverseInputScale = inputScale == 0 ? 0 : 1 / inputScale;
+        final int nOut = b.length;
+        final float[][] z = new float[x.length][];
+        final byte[][] xq = new byte[BLOCK_SIZE][w.length];
+        final int[][] acc = new int[BLOCK_SIZE][nOut];
+        final int[] widened = new int[nOut];
+        for (int start = 0; start < x.length; start += BLOCK_SIZE) {
+            final int end = Math.min(start + BLOCK_SIZE, x.length);
+            for (int r = start; r < end; r++) {
+                final float[] xr = x[r];
+                final byte[] q = xq[r - start];
+                for (int i = 0; i < w.length; i++)
+                    q[i] = xr[i] == 0 ? 0 : quantize(xr[i], inverseInputScale);
+                Arrays.fill(acc[r - start], 0);
+            }
+            for (int i = 0; i < w.length; i++) {
+                final byte[] row = w[i];
+                int nNonZero = 0;
+                for (int r = start; r < end; r++)
+                    if (xq[r - start][i] != 0)
+                        nNonZero++;
+                if (nNonZero == 0)
+                    continue;
+                if (nNonZero == 1) {
+                    for (int r = start; r < end; r++) {
+                        final int xi = xq[r - start][i];
+                        if (xi != 0)
+                            multiplyAdd(xi, row, acc[r - start]);
+                    }
+                } else {
+                    // loops over bytes are not vectorised, so a row used more than once is widened first
+                    for (int j = 0; j < nOut; j++)
+                        widened[j] = row[j];
+                    for (int r = start; r < end; r++) {
+                        final int xi = xq[r - start][i];
+                        if (xi != 0)
+                            multiplyAdd(xi, widened, acc[r - start]);
+                    }
+                }
+            }
+            for (int r = start; r < end; r++) {
+                final int[] a = acc[r - start];
+                final float[] zr = new float[nOut];
+                for (int j = 0; j < nOut; j++)
+                    zr[j] = b[j] + a[j] * inputScale * scales[j];
+                z[r] = zr;
+            }
+        }
+        return z;
+    }
+
+    @Override
+    protected float[] sparsePreActivation(SparseFeatures features, int[] slotOffsets) {
+        final byte[][] w = quantizedWeights[0];
+        final float[] b = biases[0];
+        final float[] scales = weightScales[0];
+        final float inputScale = inputScales[0];
+        final float inverseInputScale = inputScale == 0 ? 0 : 1 / inputScale;
+        final int[] acc = new int[b.length];
+        final int one = quantize(1f, inverseInputScale);
+        for (int i = 0; i < features.getNumOneHots(); i++)
+            multiplyAdd(one, w[features.getOneHotIndex(i)], acc);
+        for (int slot = 0; slot < slotOffsets.length; slot++) {
+            final EnhancedConstLeaf leaf = features.getSlotLeaf(slot);
+            if (leaf == null)
+                continue;
+            final float[] embedding = leaf.getWordEmbedding();
+            for (int k = 0; k < embedding.length; k++) {
+                final int q = quantize(embedding[k], inverseInputScale);
+                if (q != 0)
+                    multiplyAdd(q, w[slotOffsets[slot] + k], acc);
+            }
+        }
+        final float[] z = new float[b.length];
+        for (int j = 0; j < z.length; j++)
+            z[j] = b[j] + acc[j] * inputScale * scales[j];
+        return z;
+    }
+
+    private static void multiplyAdd(int a, byte[] x, int[] y) {
+        for (int j = 0; j < y.length; j++)
+            y[j] += a * x[j];
+    }
+
+    private static void multiplyAdd(int a, int[] x, int[] y) {
+        for (int j = 0; j < y.length; j++)
+            y[j] += a * x[j];
+    }
+
+    /**
+     * Compare outputs with those of the network before quantization.
+     *
+     * @return Fraction of feature vectors with the same most probable output, mean total
+     * variation distance between outputs, and largest difference of any output.
+     */
+    public double[] drift(FloatNetwork reference, float[][] featureVectors) {
+        if (featureVectors.length == 0)
+            return new double[]{1, 0, 0};
+        final double[][] expected = reference.scores(featureVectors);
+        final double[][] actual = scores(featureVectors);
+        int agree = 0;
+        double distanceSum = 0;
+        double maxDifference = 0;
+        for (int r = 0; r < expected.length; r++) {
+            if (argMax(expected[r]) == argMax(actual[r]))
+                agree++;
+            double distance = 0;
+            for (int j = 0; j < expected[r].length; j++) {
+                final double difference = Math.abs(expected[r][j] - actual[r][j]);
+                distance += difference;
+                maxDifference = Math.max(maxDifference, difference);
+            }
+            distanceSum += distance / 2;
+        }
+        return new double[]{(double) agree / expected.length, distanceSum / expected.length, maxDifference};
+    }
+
+    private static int argMax(double[] v) {
+        int best = 0;
+        for (int j = 1; j < v.length; j++)
+            if (v[j] > v[best])
+                best = j;
+        return best;
+    }
+}
@@ -1,7 +1,7 @@
 package standrews.classification;
 
 public interface ResponseVectorGenerator {
-    double[] generateResponseVector(Object response);
+    float[] generateResponseVector(Object response);
 
     int getVectorSize();
 
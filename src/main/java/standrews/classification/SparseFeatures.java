@@ -0,0 +1,64 @@
+package standrews.classification;
+
+import standrews.constbase.EnhancedConstLeaf;
+
+import java.util.Arrays;
+
+/**
+ * Feature vector in sparse form: indices of the elements that are 1, and the leaf
+ * whose embedding fills each embedding slot, or null if the slot is blank.
+ * Can be reused for many configurations.
+ *
+ * Embeddings are referred to through the leaves rather than copied, so a copy made
+ * with compact is a small fraction of the size of the feature vector, and is used
+ * to hold observations until they are given to the network.
+ */
+public class SparseFeatures implements FeatureVectorGenerator.FeatureSink {
+    private int[] oneHotIndices = new int[32];
+    private int numOneHots = 0;
+    private final EnhancedConstLeaf[] slotLeaves = new EnhancedConstLeaf[FeatureVectorGenerator.getNumEmbeddingSlots()];
+
+    public SparseFeatures() {
+    }
+
+    private SparseFeatures(int[] oneHotIndices) {
+        this.oneHotIndices = oneHotIndices;
+        this.numOneHots = oneHotIndices.length;
+    }
+
+    /**
+     * Copy that takes no more space than needed.
+     */
+    public SparseFeatures compact() {
+        final SparseFeatures copy = new SparseFeatures(Arrays.copyOf(oneHotIndices, numOneHots));
+        System.arraycopy(slotLeaves, 0, copy.slotLeaves, 0, slotLeaves.length);
+        return copy;
+    }
+
+    public void clear() {
+        numOneHots = 0;
+        Arrays.fill(slotLeaves, null);
+    }
+
+    public void oneHot(int index) {
+        if (numOneHots == oneHotIndices.length)
+            oneHotIndices = Arrays.copyOf(oneHotIndices, Math.max(8, 2 * numOneHots));
+        oneHotIndices[numOneHots++] = index;
+    }
+
+    public void embedding(int slot, EnhancedConstLeaf leaf) {
+        slotLeaves[slot] = leaf;
+    }
+
+    public int getNumOneHots() {
+        return numOneHots;
+    }
+
+    public int getOneHotIndex(int i) {
+        return oneHotIndices[i];
+    }
+
+    public EnhancedConstLeaf getSlotLeaf(int slot) {
+        return slotLeaves[slot];
+    }
+}
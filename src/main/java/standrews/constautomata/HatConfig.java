@@ -18,7 +18,7 @@ public class HatConfig extends SimpleConfig {
     /**
      * Construct initial configuration for given sentence.
      */
-    public HatConfig(final String id, final ConstLeaf[] input, double[][] embeddings) {
+    public HatConfig(final String id, final ConstLeaf[] input, float[][] embeddings) {
         super(id, input, embeddings);
         hatIndex = 0;
     }
@@ -31,6 +31,22 @@ public class HatConfig extends SimpleConfig {
         hatIndex = config.hatIndex;
     }
 
+    /**
+     * Copy that shares nodes with the original, or deep copy.
+     */
+    protected HatConfig(final HatConfig config, final boolean shareNodes) {
+        super(config, shareNodes);
+        hatIndex = config.hatIndex;
+    }
+
+    /**
+     * Copy for exploring an alternative action, in constant time. The copy and the
+     * original share nodes, stack and input, and can be changed independently.
+     */
+    public HatConfig branch() {
+        return new HatConfig(this, true);
+    }
+
     /**
      * Get index of hat, indexed from left to right.
      *
@@ -47,6 +63,7 @@ public class HatConfig extends SimpleConfig {
      */
     public void setAbsoluteHatIndex(final int hatIndex) {
         this.hatIndex = hatIndex;
+        modificationCount++;
     }
 
     /**
@@ -54,6 +71,7 @@ public class HatConfig extends SimpleConfig {
      */
     public void setRelativeHatIndex(final int i) {
         this.hatIndex += i;
+        modificationCount++;
     }
 
     /**
@@ -61,6 +79,7 @@ public class HatConfig extends SimpleConfig {
      */
     public void decrementHatIndex() {
         hatIndex--;
+        modificationCount++;
     }
 
     /**
@@ -4,17 +4,69 @@
 
 package standrews.constautomata;
 
+import standrews.aux_.PersistentSequence;
 import standrews.constbase.*;
 
 import java.util.*;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+/**
+ * Configuration of a shift-reduce parser: a stack of partial trees, each with a state,
+ * and the remaining input.
+ *
+ * The stack is a persistent sequence and the input a list whose suffixes are shared,
+ * so a copy that shares nodes with the original takes constant time, and the copy and
+ * the original can afterwards be changed independently. Nodes on the stack are never
+ * changed; a transition that attaches a child replaces the parent on the stack by an
+ * extended copy, see ConstInternal.withChildLeft, which shares its subtrees.
+ */
 public class SimpleConfig {
     protected final String id;
-    protected final List<ConstNode> stack;
-    protected final List<String> states;
-    protected final List<EnhancedConstLeaf> input;
+    protected PersistentSequence<StackElement> stack;
+    protected InputSuffix input;
+
+    /**
+     * Element of stack with its state, and the number of its category, see Symbols,
+     * by which the stack is indexed.
+     */
+    protected static final class StackElement {
+        final ConstNode node;
+        final String state;
+        final int catId;
+
+        StackElement(final ConstNode node, final String state) {
+            if (node instanceof ConstInternal)
+                ((ConstInternal) node).markShared();
+            this.node = node;
+            this.state = state;
+            this.catId = node.getCatId();
+        }
+    }
+
+    private static PersistentSequence<StackElement> emptyStack() {
+        return PersistentSequence.empty(element -> element.catId);
+    }
+
+    /**
+     * Remaining input, from the first element on.
+     */
+    protected static final class InputSuffix {
+        final EnhancedConstLeaf first;
+        final InputSuffix rest;
+        final int length;
+
+        InputSuffix(final EnhancedConstLeaf first, final InputSuffix rest) {
+            this.first = first;
+            this.rest = rest;
+            this.length = rest == null ? 1 : rest.length + 1;
+        }
+    }
+
+    /**
+     * Number of changes made to configuration, so that anything computed from it
+     * can tell whether it is still up to date.
+     */
+    protected int modificationCount = 0;
 
     /**
      * Gold tree, for debugging.
@@ -23,44 +75,44 @@ public class SimpleConfig {
 
     public SimpleConfig(final String id, final EnhancedConstLeaf[] input, final String topState) {
         this.id = id;
-        this.stack = Stream.of(new ConstInternal())
-                .collect(Collectors.toCollection(ArrayList::new));
-        this.states = Stream.of(topState)
-                .map(String::new)
-                .collect(Collectors.toCollection(ArrayList::new));
-        this.input = Arrays.stream(input)
-                .map(EnhancedConstLeaf::new)
-                .collect(Collectors.toCollection(ArrayList::new));
+        this.stack = emptyStack().add(new StackElement(new ConstInternal(), topState));
+        for (int i = input.length - 1; i >= 0; i--)
+            this.input = new InputSuffix(new EnhancedConstLeaf(input[i]), this.input);
     }
 
-    public SimpleConfig(final String id, final ConstLeaf[] input, double[][] embeddings) {
+    public SimpleConfig(final String id, final ConstLeaf[] input, float[][] embeddings) {
         this.id = id;
-        this.stack = Stream.of(new ConstInternal())
-                .collect(Collectors.toCollection(ArrayList::new));
-        this.states = Stream.of("")
-                .map(String::new)
-                .collect(Collectors.toCollection(ArrayList::new));
-
-        this.input = new ArrayList<>();
-        for (int i = 0; i < input.length; i++) {
-            this.input.add(new EnhancedConstLeaf(input[i], embeddings[i]));
-        }
+        this.stack = emptyStack().add(new StackElement(new ConstInternal(), ""));
+        for (int i = input.length - 1; i >= 0; i--)
+            this.input = new InputSuffix(new EnhancedConstLeaf(input[i], embeddings[i]), this.input);
     }
 
     /**
      * Deep copy.
      */
     public SimpleConfig(final SimpleConfig config) {
+        this(config, false);
+    }
+
+    /**
+     * Copy that shares nodes, stack and input with the original, in constant time,
+     * or deep copy.
+     */
+    protected SimpleConfig(final SimpleConfig config, final boolean shareNodes) {
         this.id = config.id;
-        this.stack = config.stack.stream()
-                .map(ConstNode::copy)
-                .collect(Collectors.toCollection(ArrayList::new));
-        this.states = config.states.stream()
-                .map(String::new)
-                .collect(Collectors.toCollection(ArrayList::new));
-        this.input = config.input.stream()
-                .map(EnhancedConstLeaf::new)
-                .collect(Collectors.toCollection(ArrayList::new));
+        if (shareNodes) {
+            this.stack = config.stack;
+            this.input = config.input;
+        } else {
+            this.stack = PersistentSequence.of(config.stack.toList().stream()
+                    .map(e -> new StackElement(e.node.copy(), e.state))
+                    .collect(Collectors.toList()), element -> element.catId);
+            final List<EnhancedConstLeaf> leaves = new ArrayList<>();
+            for (InputSuffix suffix = config.input; suffix != null; suffix = suffix.rest)
+                leaves.add(suffix.first);
+            for (int i = leaves.size() - 1; i >= 0; i--)
+                this.input = new InputSuffix(new EnhancedConstLeaf(leaves.get(i)), this.input);
+        }
         this.goldTree = config.goldTree;
     }
 
@@ -70,7 +122,7 @@ public class SimpleConfig {
      * @return True if it is a final configuration.
      */
     public boolean isFinal() {
-        return (stack.size() == 1 && input.isEmpty());
+        return (stack.size() == 1 && input == null);
     }
 
     /**
@@ -89,14 +141,14 @@ public class SimpleConfig {
      * @return The element.
      */
     public ConstNode getStackLeft(final int i) {
-        return stack.get(i);
+        return stack.get(i).node;
     }
 
     /**
      * Get statte belonging to element from prefix.
      */
     public String getStateLeft(final int i) {
-        return states.get(i);
+        return stack.get(i).state;
     }
 
     /**
@@ -106,22 +158,52 @@ public class SimpleConfig {
      * @return The element.
      */
     public ConstNode getStackRight(final int i) {
-        return stack.get(stack.size() - 1 - i);
+        return stack.get(stack.size() - 1 - i).node;
     }
 
     /**
      * Get label belonging to element from prefix.
      */
     public String getStateRight(final int i) {
-        return states.get(stack.size() - 1 - i);
+        return stack.get(stack.size() - 1 - i).state;
+    }
+
+    /**
+     * Index from left to right of the first element of the stack at or after index from
+     * that has the category, or -1 if there is none.
+     */
+    public int stackIndexOfCat(final String cat, final int from) {
+        return stack.indexOf(Symbols.cats.lookup(cat), from);
+    }
+
+    /**
+     * Index from left to right of the last element of the stack before index before
+     * that has the category, or -1 if there is none.
+     */
+    public int lastStackIndexOfCat(final String cat, final int before) {
+        return stack.lastIndexOf(Symbols.cats.lookup(cat), before);
     }
 
     public String getId() {
         return id;
     }
 
+    /**
+     * Replace element of stack, indexed from left to right, keeping its state.
+     */
+    public void setStackLeft(final int i, final ConstNode node) {
+        stack = stack.set(i, new StackElement(node, stack.get(i).state));
+        modificationCount++;
+    }
+
+    public int getModificationCount() {
+        return modificationCount;
+    }
+
     public void setStateRight(final int i, final String state) {
-        states.set(stack.size() - 1 - i, state);
+        final int index = stack.size() - 1 - i;
+        stack = stack.set(index, new StackElement(stack.get(index).node, state));
+        modificationCount++;
     }
 
     public void addStackRight(final ConstNode node) {
@@ -129,8 +211,8 @@ public class SimpleConfig {
     }
 
     public void addStackRight(final ConstNode node, final String state) {
-        stack.add(node);
-        states.add(state);
+        stack = stack.add(new StackElement(node, state));
+        modificationCount++;
     }
 
     public void addStackRight(final ConstNode node,
@@ -140,8 +222,8 @@ public class SimpleConfig {
 
     public void addStackRight(final ConstNode node, final String state,
                               final int index) {
-        stack.add(index, node);
-        states.add(index, state);
+        stack = stack.insert(index, new StackElement(node, state));
+        modificationCount++;
     }
 
     /**
@@ -151,8 +233,10 @@ public class SimpleConfig {
      * @return The removed element.
      */
     public ConstNode removeStackLeft(final int i) {
-        states.remove(i);
-        return stack.remove(i);
+        final ConstNode node = stack.get(i).node;
+        stack = stack.remove(i);
+        modificationCount++;
+        return node;
     }
 
     /**
@@ -162,22 +246,20 @@ public class SimpleConfig {
      * @return The removed element.
      */
     public ConstNode removeStackRight(final int i) {
-        final int index = stack.size() - 1 - i;
-        states.remove(index);
-        return stack.remove(index);
+        return removeStackLeft(stack.size() - 1 - i);
     }
 
     public ArrayList<ConstNode> stackList() {
         final ArrayList<ConstNode> list = new ArrayList<>();
-        for (int i = 0; i < stackLength(); i++)
-            list.add(getStackLeft(i));
+        for (StackElement element : stack.toList())
+            list.add(element.node);
         return list;
     }
 
     public ArrayList<String> stateList() {
         final ArrayList<String> list = new ArrayList<>();
-        for (int i = 0; i < stackLength(); i++)
-            list.add(getStateLeft(i));
+        for (StackElement element : stack.toList())
+            list.add(element.state);
         return list;
     }
 
@@ -187,7 +269,7 @@ public class SimpleConfig {
      * @return The length of the input.
      */
     public int inputLength() {
-        return input.size();
+        return input == null ? 0 : input.length;
     }
 
     /**
@@ -197,7 +279,12 @@ public class SimpleConfig {
      * @return The element.
      */
     public EnhancedConstLeaf getInputLeft(final int i) {
-        return input.get(i);
+        if (i < 0 || i >= inputLength())
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + inputLength());
+        InputSuffix suffix = input;
+        for (int j = 0; j < i; j++)
+            suffix = suffix.rest;
+        return suffix.first;
     }
 
     /**
@@ -206,17 +293,21 @@ public class SimpleConfig {
      * @return The element.
      */
     public ConstLeaf removeInputLeft() {
-        return input.remove(0);
+        final EnhancedConstLeaf first = getInputLeft(0);
+        input = input.rest;
+        modificationCount++;
+        return first;
     }
 
     public void addInputLeft(EnhancedConstLeaf vertex) {
-        input.add(0, vertex);
+        input = new InputSuffix(vertex, input);
+        modificationCount++;
     }
 
     public Vector<ConstLeaf> inputList() {
         final Vector<ConstLeaf> list = new Vector<>();
-        for (int i = 0; i < inputLength(); i++)
-            list.add(getInputLeft(i));
+        for (InputSuffix suffix = input; suffix != null; suffix = suffix.rest)
+            list.add(suffix.first);
         return list;
     }
 
@@ -235,8 +326,7 @@ public class SimpleConfig {
         for (int i = 0; i < stackLength(); i++)
             for (ConstLeaf leaf : getStackLeft(i).getLeaves())
                 leaves.add(leaf);
-        for (int i = 0; i < inputLength(); i++)
-            leaves.add(getInputLeft(i));
+        leaves.addAll(inputList());
         for (ConstLeaf leaf : leaves) {
             tree.addLeaf(leaf.getForm(), leaf.getCat(), leaf.getLabel());
         }
@@ -278,15 +368,13 @@ public class SimpleConfig {
     @Override
     public String toString() {
         StringBuffer buf = new StringBuffer();
-        for (int i = 0; i < stack.size(); i++) {
-            ConstNode node = stack.get(i);
-            String state = states.get(i);
-            if (!state.equals(""))
-                buf.append(state + " ");
-            buf.append("" + node + "\n");
+        for (StackElement element : stack.toList()) {
+            if (!element.state.equals(""))
+                buf.append(element.state + " ");
+            buf.append("" + element.node + "\n");
         }
         buf.append("-------\n");
-        for (ConstLeaf leaf : input)
+        for (ConstLeaf leaf : inputList())
             buf.append("" + leaf + "\n");
         return buf.toString();
     }
@@ -4,15 +4,47 @@
 
 package standrews.constbase;
 
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * For convenience, tree with additional datastructures.
+ *
+ * Nodes are numbered densely, leaves first by their index and then internal nodes,
+ * so that the questions the static oracle asks about the tree, such as the parent
+ * of a node or the number of children of a node, are answered by array lookups.
  */
 public class ConstGraph extends ConstTree {
 
-    protected ConstInternal[] leafParents;
-    protected TreeMap<String, ConstInternal> internalParents;
+    /**
+     * Number of each internal node, by id.
+     */
+    protected Map<String, Integer> internalIndices;
+
+    /**
+     * Node with each number.
+     */
+    protected ConstNode[] indexedNodes;
+
+    /**
+     * For each node, number of parent, or -1 for a root.
+     */
+    protected int[] parents;
+
+    /**
+     * For each node, its position among the children of its parent.
+     */
+    protected int[] childPositions;
+
+    /**
+     * For each node, the number of children and the index of the head child.
+     * For leaves these are 0 and -1.
+     */
+    protected int[] childCounts;
+    protected int[] headIndices;
+
+    protected boolean[] isRoot;
 
     public ConstGraph(final ConstTree tree) {
         super(tree.getId());
@@ -23,33 +55,119 @@ public class ConstGraph extends ConstTree {
     }
 
     private void analyseParents() {
-        leafParents = new ConstInternal[leaves.size()];
-        internalParents = new TreeMap<>();
-        for (String id : getInternalIds()) {
-            ConstInternal parent = getInternal(id);
-            for (ConstNode child : parent.getChildren()) {
-                if (child instanceof ConstLeaf) {
-                    ConstLeaf leafChild = (ConstLeaf) child;
-                    leafParents[leafChild.getIndex()] = parent;
-                } else {
-                    ConstInternal internChild = (ConstInternal) child;
-                    internalParents.put(internChild.getId(), parent);
+        final int nLeaves = leaves.size();
+        final int nNodes = nLeaves + nodes.size();
+        internalIndices = new HashMap<>(2 * nodes.size());
+        indexedNodes = new ConstNode[nNodes];
+        parents = new int[nNodes];
+        childPositions = new int[nNodes];
+        childCounts = new int[nNodes];
+        headIndices = new int[nNodes];
+        isRoot = new boolean[nNodes];
+        for (ConstLeaf leaf : leaves)
+            indexedNodes[leaf.getIndex()] = leaf;
+        int i = nLeaves;
+        for (Map.Entry<String, ConstInternal> entry : nodes.entrySet()) {
+            internalIndices.put(entry.getKey(), i);
+            indexedNodes[i++] = entry.getValue();
+        }
+        Arrays.fill(parents, -1);
+        Arrays.fill(childPositions, -1);
+        Arrays.fill(headIndices, -1);
+        for (i = nLeaves; i < nNodes; i++) {
+            final ConstInternal parent = (ConstInternal) indexedNodes[i];
+            final ConstNode[] children = parent.getChildren();
+            childCounts[i] = children.length;
+            headIndices[i] = parent.getHeadIndex();
+            for (int pos = 0; pos < children.length; pos++) {
+                final int child = index(children[pos]);
+                if (child >= 0) {
+                    parents[child] = i;
+                    childPositions[child] = pos;
                 }
             }
         }
+        for (ConstNode root : roots) {
+            final int r = index(root);
+            if (r >= 0)
+                isRoot[r] = true;
+        }
     }
 
-    public ConstInternal getParent(ConstNode child) {
-        if (child instanceof ConstLeaf) {
-            ConstLeaf leafChild = (ConstLeaf) child;
-            return leafParents[leafChild.getIndex()];
+    /**
+     * Number of the node in this tree with the same index or id as the node,
+     * which may belong to a parse of the sentence of the tree. -1 if there is none.
+     */
+    public int index(final ConstNode node) {
+        if (node instanceof ConstLeaf) {
+            return ((ConstLeaf) node).getIndex();
         } else {
-            ConstInternal internChild = (ConstInternal) child;
-            String id = internChild.getId();
+            final String id = ((ConstInternal) node).getId();
             if (id == null)
-                return null;
-            else
-                return internalParents.get(id);
+                return -1;
+            final Integer i = internalIndices.get(id);
+            return i == null ? -1 : i;
         }
     }
+
+    public ConstNode getNode(final int i) {
+        return indexedNodes[i];
+    }
+
+    /**
+     * @return Number of parent, or -1 if the node is unknown or a root.
+     */
+    public int getParentIndex(final int i) {
+        return i < 0 ? -1 : parents[i];
+    }
+
+    public ConstInternal getParent(ConstNode child) {
+        final int parent = getParentIndex(index(child));
+        return parent < 0 ? null : (ConstInternal) indexedNodes[parent];
+    }
+
+    public boolean isRoot(final int i) {
+        return i >= 0 && isRoot[i];
+    }
+
+    /**
+     * Whether the second node is a child of the first.
+     */
+    public boolean isChild(final int parent, final int child) {
+        return parent >= 0 && child >= 0 && parents[child] == parent;
+    }
+
+    public boolean isHeadChild(final int i) {
+        final int parent = getParentIndex(i);
+        return parent >= 0 && headIndices[parent] == childPositions[i];
+    }
+
+    /**
+     * @return Number of children, 0 for a leaf or an unknown node.
+     */
+    public int getNumChildren(final int i) {
+        return i < 0 ? 0 : childCounts[i];
+    }
+
+    public int getNumRightChildren(final int i) {
+        return i < 0 || childCounts[i] == 0 ? 0 : childCounts[i] - headIndices[i] - 1;
+    }
+
+    /**
+     * Number of children of parent that would have been attached before child,
+     * as the length of ConstInternal.getPreviousChildren.
+     *
+     * @param leftFirst Whether left dependents are to be attached first.
+     */
+    public int getNumPreviousChildren(final int parent, final int child,
+                                      final boolean leftFirst) {
+        if (parent < 0 || childCounts[parent] == 0)
+            return 0;
+        final int head = headIndices[parent];
+        final int pos = isChild(parent, child) ? childPositions[child] : -1;
+        if (leftFirst)
+            return pos < head ? head - pos : pos;
+        else
+            return pos < head ? childCounts[parent] - pos - 1 : pos - head;
+    }
 }
@@ -6,6 +6,13 @@ package standrews.constbase;
 
 import java.util.*;
 
+/**
+ * Internal node of a constituent tree. Nodes are changed in place only while they are
+ * made, as when a treebank is read or a parser attaches children to a new node. Once a
+ * node is on the stack of a configuration, it may be shared with copies of the
+ * configuration and with nodes made later, so it is not changed again; withChildLeft
+ * and withChildRight make changed copies instead. See markShared.
+ */
 public class ConstInternal extends ConstNode {
 
     protected String id;
@@ -14,6 +21,13 @@ public class ConstInternal extends ConstNode {
 
     private String label;
 
+    /**
+     * Numbers of cat and label, see Symbols; -1 where these are null.
+     */
+    private int catId;
+
+    private int labelId;
+
     private List<ConstNode> children;
 
     /**
@@ -21,12 +35,33 @@ public class ConstInternal extends ConstNode {
      */
     private int headIndex;
 
+    /**
+     * Span of the node, kept up to date as children are attached, so that it can be
+     * read without walking the subtree: the leaves reached by always descending to the
+     * leftmost or to the rightmost child, the head leaf, and the indices of all leaves.
+     * Attaching a child relies on the span of the child being complete; a tree built
+     * in another order must afterwards be brought up to date with updateSpans.
+     */
+    private ConstLeaf leftmostLeaf;
+    private ConstLeaf rightmostLeaf;
+    private ConstLeaf headLeaf;
+    private int numLeaves;
+    private BitSet leafIndices;
+
+    /**
+     * Whether the node may be shared, after which it must not be changed, see markShared.
+     */
+    private boolean shared = false;
+
     public ConstInternal(String id, String cat, String label, List<ConstNode> children, int headIndex) {
         this.id = id;
         this.cat = cat;
         this.label = label;
+        this.catId = Symbols.cats.id(cat);
+        this.labelId = Symbols.labels.id(label);
         this.children = new ArrayList<>(children);
         this.headIndex = headIndex;
+        updateSpan();
     }
 
     public ConstInternal(String id, String cat, String label) {
@@ -42,8 +77,18 @@ public class ConstInternal extends ConstNode {
     }
 
     public ConstInternal(final ConstInternal old) {
-        this(old.id, old.cat, old.label,
-                new ArrayList<>(old.children), old.headIndex);
+        this.id = old.id;
+        this.cat = old.cat;
+        this.label = old.label;
+        this.catId = old.catId;
+        this.labelId = old.labelId;
+        this.children = new ArrayList<>(old.children);
+        this.headIndex = old.headIndex;
+        this.leftmostLeaf = old.leftmostLeaf;
+        this.rightmostLeaf = old.rightmostLeaf;
+        this.headLeaf = old.headLeaf;
+        this.numLeaves = old.numLeaves;
+        this.leafIndices = (BitSet) old.leafIndices.clone();
     }
 
     /**
@@ -53,11 +98,20 @@ public class ConstInternal extends ConstNode {
         this(null, null, null);
     }
 
+    /**
+     * Mark node as possibly shared between configurations, as when it is put on a stack.
+     * The methods that change the node assert that it is not marked. Copies are not marked.
+     */
+    public void markShared() {
+        shared = true;
+    }
+
     public boolean isTop() {
         return cat == null;
     }
 
     public void setId(final String id) {
+        assert !shared : "Shared node " + id + " changed; see markShared";
         this.id = id;
     }
 
@@ -66,41 +120,133 @@ public class ConstInternal extends ConstNode {
     }
 
     public void setCat(final String cat) {
+        assert !shared : "Shared node " + id + " changed; see markShared";
         this.cat = cat;
+        this.catId = Symbols.cats.id(cat);
     }
 
     public String getCat() {
         return cat;
     }
 
+    public int getCatId() {
+        return catId;
+    }
+
     public void setLabel(final String label) {
+        assert !shared : "Shared node " + id + " changed; see markShared";
         this.label = label;
+        this.labelId = Symbols.labels.id(label);
     }
 
     public String getLabel() {
         return label;
     }
 
+    public int getLabelId() {
+        return labelId;
+    }
+
     public void clearChildren() {
+        assert !shared : "Shared node " + id + " changed; see markShared";
         children.clear();
         headIndex = -1;
+        updateSpan();
     }
 
     public void addChildLeft(ConstNode child) {
+        assert !shared : "Shared node " + id + " changed; see markShared";
         children.add(0, child);
         headIndex++;
+        leftmostLeaf = child.getLeftmostLeaf();
+        if (children.size() == 1)
+            rightmostLeaf = child.getRightmostLeaf();
+        if (headIndex == 0)
+            headLeaf = child.getHeadLeaf();
+        addSpan(child);
     }
 
     public void addChildRight(ConstNode child) {
+        assert !shared : "Shared node " + id + " changed; see markShared";
         children.add(child);
-        if (headIndex < 0)
+        if (headIndex < 0) {
             headIndex = 0;
+            headLeaf = children.get(0).getHeadLeaf();
+        }
+        rightmostLeaf = child.getRightmostLeaf();
+        if (children.size() == 1)
+            leftmostLeaf = child.getLeftmostLeaf();
+        addSpan(child);
+    }
+
+    private void addSpan(ConstNode child) {
+        numLeaves += child.getNumLeaves();
+        if (child instanceof ConstLeaf)
+            leafIndices.set(((ConstLeaf) child).getIndex());
+        else
+            leafIndices.or(((ConstInternal) child).leafIndices);
+    }
+
+    /**
+     * Recompute span from the spans of the children.
+     */
+    private void updateSpan() {
+        leftmostLeaf = null;
+        rightmostLeaf = null;
+        headLeaf = null;
+        numLeaves = 0;
+        leafIndices = new BitSet();
+        if (children.isEmpty())
+            return;
+        leftmostLeaf = children.get(0).getLeftmostLeaf();
+        rightmostLeaf = children.get(children.size() - 1).getRightmostLeaf();
+        headLeaf = headChildLeaf();
+        for (ConstNode child : children)
+            addSpan(child);
+    }
+
+    /**
+     * Recompute spans of all nodes in the subtree, bottom-up.
+     */
+    public void updateSpans() {
+        for (ConstNode child : children)
+            if (child instanceof ConstInternal)
+                ((ConstInternal) child).updateSpans();
+        updateSpan();
+    }
+
+    /**
+     * Copy with child added at the left, leaving this node unchanged.
+     * The children are shared with this node. Takes time linear in the number of
+     * children, plus one word per 64 leaves for the copy of the leaf indices.
+     */
+    public ConstInternal withChildLeft(ConstNode child) {
+        final ConstInternal copy = new ConstInternal(this);
+        copy.addChildLeft(child);
+        return copy;
+    }
+
+    /**
+     * Copy with child added at the right, leaving this node unchanged. As withChildLeft.
+     */
+    public ConstInternal withChildRight(ConstNode child) {
+        final ConstInternal copy = new ConstInternal(this);
+        copy.addChildRight(child);
+        return copy;
     }
 
     public ConstNode[] getChildren() {
         return children.stream().toArray(ConstNode[]::new);
     }
 
+    public int getNumChildren() {
+        return children.size();
+    }
+
+    public int getNumRightChildren() {
+        return children.isEmpty() ? 0 : children.size() - headIndex - 1;
+    }
+
     public ConstNode getLeftMostChild() {
         return children.get(0);
     }
@@ -152,7 +298,17 @@ public class ConstInternal extends ConstNode {
     }
 
     public void setHeadIndex(int headIndex) {
+        assert !shared : "Shared node " + id + " changed; see markShared";
         this.headIndex = headIndex;
+        headLeaf = headChildLeaf();
+    }
+
+    /**
+     * Head leaf of head child, or null if the head index does not point to a child,
+     * which a head finder may leave for a node without children.
+     */
+    private ConstLeaf headChildLeaf() {
+        return headIndex >= 0 && headIndex < children.size() ? children.get(headIndex).getHeadLeaf() : null;
     }
 
     public int getHeadIndex() {
@@ -174,17 +330,72 @@ public class ConstInternal extends ConstNode {
     }
 
     public ConstLeaf getHeadLeaf() {
-        if (headIndex < 0)
-            return null;
-        else
-            return getHeadChild().getHeadLeaf();
+        return headLeaf;
     }
 
+    public ConstLeaf getLeftmostLeaf() {
+        return leftmostLeaf;
+    }
+
+    public ConstLeaf getRightmostLeaf() {
+        return rightmostLeaf;
+    }
+
+    public int getNumLeaves() {
+        return numLeaves;
+    }
+
+    /**
+     * Whether the leaf with the index is in the subtree.
+     */
+    public boolean dominates(final int leafIndex) {
+        return leafIndices.get(leafIndex);
+    }
+
+    /**
+     * Indices of the leaves in the subtree.
+     */
+    public BitSet getLeafIndices() {
+        return (BitSet) leafIndices.clone();
+    }
+
+    /**
+     * Whether the spans of all nodes in the subtree agree with their children, which
+     * holds unless a node was changed after it was attached; see ConstTree.
+     */
+    public boolean isSpanUpToDate() {
+        int n = 0;
+        final BitSet indices = new BitSet();
+        for (ConstNode child : children) {
+            if (child instanceof ConstInternal) {
+                if (!((ConstInternal) child).isSpanUpToDate())
+                    return false;
+                indices.or(((ConstInternal) child).leafIndices);
+            } else {
+                indices.set(((ConstLeaf) child).getIndex());
+            }
+            n += child.getNumLeaves();
+        }
+        if (children.isEmpty())
+            return leftmostLeaf == null && rightmostLeaf == null && headLeaf == null &&
+                    numLeaves == 0 && leafIndices.isEmpty();
+        return leftmostLeaf == children.get(0).getLeftmostLeaf() &&
+                rightmostLeaf == children.get(children.size() - 1).getRightmostLeaf() &&
+                headLeaf == headChildLeaf() && numLeaves == n && leafIndices.equals(indices);
+    }
+
+    /**
+     * Order children by their head leaves, which must be up to date.
+     */
     public void sortChildren() {
+        assert !shared : "Shared node " + id + " changed; see markShared";
+        assert children.stream().allMatch(c -> !(c instanceof ConstInternal) ||
+                ((ConstInternal) c).isSpanUpToDate()) : "Stale span below " + id + "; see ConstTree.updateSpans";
         ConstNode headChild = getHeadChild();
         Set<ConstNode> headedChildren = new TreeSet<>(children);
         children = new ArrayList<>(headedChildren);
         headIndex = children.indexOf(headChild);
+        updateSpan();
     }
 
     public String toString() {
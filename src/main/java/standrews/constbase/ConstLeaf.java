@@ -14,15 +14,29 @@ public class ConstLeaf extends ConstNode {
 
     private String label;
 
+    /**
+     * Numbers of cat and label, see Symbols.
+     */
+    private int catId;
+
+    private int labelId;
+
     public ConstLeaf(int index, String form, String cat, String label) {
         this.index = index;
         this.form = form;
         this.cat = cat;
         this.label = label;
+        this.catId = Symbols.cats.id(cat);
+        this.labelId = Symbols.labels.id(label);
     }
 
     public ConstLeaf(final ConstLeaf old) {
-        this(old.getIndex(), old.getForm(), old.getCat(), old.getLabel());
+        this.index = old.index;
+        this.form = old.form;
+        this.cat = old.cat;
+        this.label = old.label;
+        this.catId = old.catId;
+        this.labelId = old.labelId;
     }
 
     public boolean isTop() {
@@ -43,20 +57,30 @@ public class ConstLeaf extends ConstNode {
 
     public void setCat(final String cat) {
         this.cat = cat;
+        this.catId = Symbols.cats.id(cat);
     }
 
     public String getCat() {
         return cat;
     }
 
+    public int getCatId() {
+        return catId;
+    }
+
     public void setLabel(final String label) {
         this.label = label;
+        this.labelId = Symbols.labels.id(label);
     }
 
     public String getLabel() {
         return label;
     }
 
+    public int getLabelId() {
+        return labelId;
+    }
+
     public ConstLeaf[] getLeaves() {
         return new ConstLeaf[]{this};
     }
@@ -65,6 +89,18 @@ public class ConstLeaf extends ConstNode {
         return this;
     }
 
+    public ConstLeaf getLeftmostLeaf() {
+        return this;
+    }
+
+    public ConstLeaf getRightmostLeaf() {
+        return this;
+    }
+
+    public int getNumLeaves() {
+        return 1;
+    }
+
     public String toString() {
         return form + " " + cat + " " + label;
     }
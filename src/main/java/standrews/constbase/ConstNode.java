@@ -19,10 +19,29 @@ public abstract class ConstNode implements Comparable<ConstNode> {
 
     public abstract String getLabel();
 
+    /**
+     * Number of cat, see Symbols, or -1 if there is none.
+     */
+    public abstract int getCatId();
+
+    public abstract int getLabelId();
+
     public abstract ConstLeaf[] getLeaves();
 
     public abstract ConstLeaf getHeadLeaf();
 
+    /**
+     * Leaf reached by always descending to the leftmost child.
+     */
+    public abstract ConstLeaf getLeftmostLeaf();
+
+    /**
+     * Leaf reached by always descending to the rightmost child.
+     */
+    public abstract ConstLeaf getRightmostLeaf();
+
+    public abstract int getNumLeaves();
+
     public int getHeadLeafIndex() {
         ConstLeaf leaf = getHeadLeaf();
         return leaf == null ? -1 : leaf.getIndex();
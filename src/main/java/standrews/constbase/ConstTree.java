@@ -6,6 +6,17 @@ package standrews.constbase;
 
 import java.util.*;
 
+/**
+ * Tree of a sentence, with leaves and internal nodes.
+ *
+ * Internal nodes cache their spans, such as their leftmost and head leaves, which are
+ * updated as children are attached; see ConstInternal. These are correct only if every
+ * node is attached to its parent after its own subtree is complete, as when a tree is
+ * built bottom-up. Nodes do not know their parents, so changing a node that is already
+ * attached leaves the spans of its ancestors stale. A tree built in another order, such
+ * as by addParent while reading a treebank, or changed afterwards, must then be brought
+ * up to date with updateSpans. ConstInternal.isSpanUpToDate checks this.
+ */
 public class ConstTree {
 
     protected String id;
@@ -45,6 +56,16 @@ public class ConstTree {
         roots.add(node);
     }
 
+    /**
+     * Bring cached spans of internal nodes up to date, after the tree was built
+     * by attaching nodes before their own children.
+     */
+    public void updateSpans() {
+        for (ConstNode root : roots)
+            if (root instanceof ConstInternal)
+                ((ConstInternal) root).updateSpans();
+    }
+
     public List<ConstNode> getRoots() {
         return roots;
     }
@@ -70,6 +91,10 @@ public class ConstTree {
         return nodes.keySet();
     }
 
+    /**
+     * Attach node as rightmost child of internal node with the id. Spans of the
+     * ancestors of that node are not updated; see updateSpans.
+     */
     public void addParent(ConstNode node, String parentId) {
         ConstInternal parent = getInternal(parentId);
         parent.addChildRight(node);
@@ -128,11 +153,11 @@ public class ConstTree {
     public boolean hasCycle() {
         for (String id : getInternalIds()) {
             ConstInternal internal = getInternal(id);
-            String cat = internal.getCat();
-            while (internal.getChildren().length == 1 &&
-                    internal.getChildren()[0] instanceof ConstInternal) {
-                internal = (ConstInternal) internal.getChildren()[0];
-                if (internal.getCat().equals(cat)) {
+            final int cat = internal.getCatId();
+            while (internal.getNumChildren() == 1 &&
+                    internal.getLeftMostChild() instanceof ConstInternal) {
+                internal = (ConstInternal) internal.getLeftMostChild();
+                if (internal.getCatId() == cat) {
                     System.out.println(id);
                     return true;
                 }
@@ -146,12 +171,12 @@ public class ConstTree {
         ConstInternal descendant = null;
         for (String id : getInternalIds()) {
             ConstInternal internal = getInternal(id);
-            String cat = internal.getCat();
+            final int cat = internal.getCatId();
             descendant = internal;
-            while (descendant.getChildren().length == 1 &&
-                    descendant.getChildren()[0] instanceof ConstInternal) {
-                descendant = (ConstInternal) descendant.getChildren()[0];
-                if (descendant.getCat().equals(cat)) {
+            while (descendant.getNumChildren() == 1 &&
+                    descendant.getLeftMostChild() instanceof ConstInternal) {
+                descendant = (ConstInternal) descendant.getLeftMostChild();
+                if (descendant.getCatId() == cat) {
                     node = internal;
                     break;
                 }
@@ -175,6 +200,7 @@ public class ConstTree {
             for (ConstInternal l : links) {
                 nodes.remove(l.getId());
             }
+            updateSpans();
             return true;
         } else {
             return false;
@@ -68,6 +68,11 @@ public class ConstTreebank {
     }
 
     public void setupTreebankIterator(Random rng, double trainRatio, double validationRatio, int queueSize) throws ArithmeticException {
+        setupTreebankIterator(rng, trainRatio, validationRatio, queueSize, 1);
+    }
+
+    public void setupTreebankIterator(Random rng, double trainRatio, double validationRatio, int queueSize,
+                                      int loaderThreads) throws ArithmeticException {
         if (trainRatio + validationRatio >= 1.0) {
             throw new ArithmeticException("Error: trainRatio and validationRatio add up to more than 1 or more");
         }
@@ -92,9 +97,9 @@ public class ConstTreebank {
                 .sum();
 
         // set up train and test treebank iterators
-        trainTreebankIterator = new TreebankIterator(trainMiniBatchMetadataList, queueSize, rng);
-        validationTreebankIterator = new TreebankIterator(validationMiniBatchMetadataList, queueSize, rng);
-        testTreebankIterator = new TreebankIterator(testMiniBatchMetadataList, queueSize, rng);
+        trainTreebankIterator = new TreebankIterator(trainMiniBatchMetadataList, queueSize, loaderThreads, rng);
+        validationTreebankIterator = new TreebankIterator(validationMiniBatchMetadataList, queueSize, loaderThreads, rng);
+        testTreebankIterator = new TreebankIterator(testMiniBatchMetadataList, queueSize, loaderThreads, rng);
     }
 
     public void resetTreebankIterator(DatasetSplit datasetSplit) {
@@ -111,7 +116,7 @@ public class ConstTreebank {
         }
     }
 
-    public Optional<List<Pair<ConstTree, double[][]>>> getNextMiniBatch(DatasetSplit datasetSplit) {
+    public Optional<List<Pair<ConstTree, float[][]>>> getNextMiniBatch(DatasetSplit datasetSplit) {
         switch (datasetSplit) {
             case TRAIN:
                 return getNextMiniBatch(trainTreebankIterator);
@@ -124,14 +129,14 @@ public class ConstTreebank {
         }
     }
 
-    private Optional<List<Pair<ConstTree, double[][]>>> getNextMiniBatch(TreebankIterator treebankIterator) {
-        Optional<List<Pair<String, double[][]>>> idsAndEmbeddingsOptional = treebankIterator.next();
+    private Optional<List<Pair<ConstTree, float[][]>>> getNextMiniBatch(TreebankIterator treebankIterator) {
+        Optional<List<Pair<String, float[][]>>> idsAndEmbeddingsOptional = treebankIterator.next();
         if (idsAndEmbeddingsOptional.isEmpty()) {
             return Optional.empty();
         } else {
-            List<Pair<String, double[][]>> idsAndEmbeddings = idsAndEmbeddingsOptional.get();
+            List<Pair<String, float[][]>> idsAndEmbeddings = idsAndEmbeddingsOptional.get();
             List<ConstTree> miniBatchTrees = new ArrayList<>(idsAndEmbeddings.size());
-            for (Pair<String, double[][]> sentenceIdAndEmbedding: idsAndEmbeddings){
+            for (Pair<String, float[][]> sentenceIdAndEmbedding: idsAndEmbeddings){
                 miniBatchTrees.add(sentenceIdTreeMap.get(sentenceIdAndEmbedding.getKey()));
             }
 
@@ -2,21 +2,17 @@ package standrews.constbase;
 
 import javafx.util.Pair;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 
-public class DataLoaderThread implements Runnable {
-    private final BlockingQueue<List<Pair<String, double[][]>>> miniBatchQueue;
+public class DataLoaderThread implements Callable<List<Pair<String, float[][]>>> {
     private final MinibatchMetadata minibatchMetadata;
 
-    public DataLoaderThread(BlockingQueue<List<Pair<String, double[][]>>> miniBatchQueue,
-                            MinibatchMetadata minibatchMetadata) {
-        this.miniBatchQueue = miniBatchQueue;
+    public DataLoaderThread(MinibatchMetadata minibatchMetadata) {
         this.minibatchMetadata = minibatchMetadata;
-
     }
 
     @Override
-    public void run() {
-        miniBatchQueue.add(minibatchMetadata.loadEmbeddings());
+    public List<Pair<String, float[][]>> call() {
+        return minibatchMetadata.loadEmbeddings();
     }
 }
@@ -1,24 +1,24 @@
 package standrews.constbase;
 
 public class EnhancedConstLeaf extends ConstLeaf {
-    private final double[] wordEmbedding;
+    private final float[] wordEmbedding;
 
-    public EnhancedConstLeaf(ConstLeaf leaf, double[] wordEmbedding) {
-        super(leaf.getIndex(), leaf.getForm(), leaf.getCat(), leaf.getLabel());
+    public EnhancedConstLeaf(ConstLeaf leaf, float[] wordEmbedding) {
+        super(leaf);
         this.wordEmbedding = wordEmbedding;
     }
 
     public EnhancedConstLeaf(EnhancedConstLeaf old) {
-        super(old.getIndex(), old.getForm(), old.getCat(), old.getLabel());
+        super(old);
         this.wordEmbedding = old.wordEmbedding;
     }
 
-    public EnhancedConstLeaf(double[] wordEmbedding) {
+    public EnhancedConstLeaf(float[] wordEmbedding) {
         super(0, null, null, null);
         this.wordEmbedding = wordEmbedding;
     }
 
-    public double[] getWordEmbedding() {
+    public float[] getWordEmbedding() {
         return wordEmbedding;
     }
 }
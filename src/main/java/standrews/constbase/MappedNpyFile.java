@@ -0,0 +1,128 @@
+package standrews.constbase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Read-only memory mapping of an embeddings_N.npy file of shape
+ * (sentences, maximum sentence length, embedding length).
+ * The data stays in the page cache rather than on the heap, so it
+ * is read from disk once however many epochs use it.
+ */
+public class MappedNpyFile {
+    private static final byte[] magic = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+    private static final Pattern descrPattern = Pattern.compile("'descr'\\s*:\\s*'([<>|=])([fd])(\\d)'");
+    private static final Pattern fortranPattern = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+    private static final Pattern shapePattern = Pattern.compile("'shape'\\s*:\\s*\\(\\s*(\\d+)\\s*,\\s*(\\d+)\\s*,\\s*(\\d+)\\s*,?\\s*\\)");
+
+    private final String filePath;
+    private final int nSentences;
+    private final int maxLength;
+    private final int embeddingLength;
+    private final int itemSize;
+
+    /**
+     * Consecutive regions of the file, each holding whole sentences,
+     * as a single mapping cannot exceed 2GB.
+     */
+    private final MappedByteBuffer[] chunks;
+    private final int sentencesPerChunk;
+
+    public MappedNpyFile(String filePath) throws IOException {
+        this.filePath = filePath;
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            ByteBuffer preamble = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(preamble, 0);
+            preamble.flip();
+            for (byte b : magic) {
+                if (!preamble.hasRemaining() || preamble.get() != b)
+                    throw new IOException("Not an npy file: " + filePath);
+            }
+            int majorVersion = preamble.get();
+            preamble.get();
+            long headerLength;
+            int headerStart;
+            if (majorVersion == 1) {
+                headerLength = preamble.getShort() & 0xffff;
+                headerStart = 10;
+            } else {
+                headerLength = preamble.getInt() & 0xffffffffL;
+                headerStart = 12;
+            }
+
+            ByteBuffer headerBuffer = ByteBuffer.allocate((int) headerLength);
+            channel.read(headerBuffer, headerStart);
+            String header = new String(headerBuffer.array(), StandardCharsets.ISO_8859_1);
+
+            Matcher descr = descrPattern.matcher(header);
+            Matcher fortran = fortranPattern.matcher(header);
+            Matcher shape = shapePattern.matcher(header);
+            if (!descr.find() || !fortran.find() || !shape.find())
+                throw new IOException("Unsupported npy header in " + filePath + ": " + header);
+            if (fortran.group(1).equals("True"))
+                throw new IOException("Fortran order not supported: " + filePath);
+
+            ByteOrder order = descr.group(1).equals(">") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            itemSize = Integer.parseInt(descr.group(3));
+            if (itemSize != Float.BYTES && itemSize != Double.BYTES)
+                throw new IOException("Unsupported dtype in " + filePath + ": " + descr.group());
+
+            nSentences = Integer.parseInt(shape.group(1));
+            maxLength = Integer.parseInt(shape.group(2));
+            embeddingLength = Integer.parseInt(shape.group(3));
+
+            long dataStart = headerStart + headerLength;
+            long sentenceBytes = (long) maxLength * embeddingLength * itemSize;
+            sentencesPerChunk = (int) Math.max(1, Integer.MAX_VALUE / Math.max(1, sentenceBytes));
+            int nChunks = (nSentences + sentencesPerChunk - 1) / sentencesPerChunk;
+            chunks = new MappedByteBuffer[nChunks];
+            for (int c = 0; c < nChunks; c++) {
+                int sentencesInChunk = Math.min(sentencesPerChunk, nSentences - c * sentencesPerChunk);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+                        dataStart + c * sentencesPerChunk * sentenceBytes,
+                        sentencesInChunk * sentenceBytes);
+                chunk.order(order);
+                chunks[c] = chunk;
+            }
+        }
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public int getNSentences() {
+        return nSentences;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public int getEmbeddingLength() {
+        return embeddingLength;
+    }
+
+    /**
+     * View of the embeddings of one sentence. No data is copied.
+     *
+     * @param index Index of sentence within file.
+     * @param length Number of words in sentence.
+     * @return The view.
+     */
+    public SentenceEmbeddings getSentence(int index, int length) {
+        if (index < 0 || index >= nSentences || length > maxLength)
+            throw new IndexOutOfBoundsException("Sentence " + index + " of length " + length + " not in " + filePath);
+        int chunkIndex = index / sentencesPerChunk;
+        int offset = (index % sentencesPerChunk) * maxLength * embeddingLength * itemSize;
+        return new SentenceEmbeddings(chunks[chunkIndex], offset, length, embeddingLength, itemSize == Float.BYTES);
+    }
+}
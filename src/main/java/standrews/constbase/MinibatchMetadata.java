@@ -2,9 +2,6 @@ package standrews.constbase;
 
 import com.codepoetics.protonpack.StreamUtils;
 import javafx.util.Pair;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.indexing.NDArrayIndex;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -17,6 +14,7 @@ import java.util.stream.Stream;
 public class MinibatchMetadata {
     private final String embeddingsFilePath;
     private List<SentenceMetadata> sentenceMetadataList;
+    private MappedNpyFile embeddingsFile;
 
     public MinibatchMetadata(String fileDirectory, int fileNumber) {
         embeddingsFilePath = fileDirectory + "embeddings_" + fileNumber + ".npy";
@@ -46,16 +44,40 @@ public class MinibatchMetadata {
         return sentenceMetadataList.size();
     }
 
-    public List<Pair<String, double[][]>> loadEmbeddings() {
-        try (INDArray embeddingsMatrix = Nd4j.readNpy(embeddingsFilePath)) {
-            return sentenceMetadataList.stream()
-                    .map(sentenceMetadata ->
-                            new Pair<>(sentenceMetadata.getId(),
-                                    embeddingsMatrix.get(NDArrayIndex.point(sentenceMetadata.getIndex()),
-                                            NDArrayIndex.interval(0, sentenceMetadata.getLength()),
-                                            NDArrayIndex.all()
-                                    ).toDoubleMatrix()))
-                    .collect(Collectors.toList());
+    /**
+     * Memory map embeddings file on first use. The mapping is kept for later epochs.
+     */
+    private synchronized MappedNpyFile getEmbeddingsFile() {
+        if (embeddingsFile == null) {
+            try {
+                embeddingsFile = new MappedNpyFile(embeddingsFilePath);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
         }
+        return embeddingsFile;
+    }
+
+    /**
+     * Views of the embeddings of the sentences, without copying.
+     */
+    public List<Pair<String, SentenceEmbeddings>> loadEmbeddingViews() {
+        MappedNpyFile file = getEmbeddingsFile();
+        return sentenceMetadataList.stream()
+                .map(sentenceMetadata ->
+                        new Pair<>(sentenceMetadata.getId(),
+                                file.getSentence(sentenceMetadata.getIndex(), sentenceMetadata.getLength())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Embeddings of the sentences copied onto the heap. These are kept in single precision,
+     * which is what BERT produces; one-hot features are exact in single precision as well.
+     */
+    public List<Pair<String, float[][]>> loadEmbeddings() {
+        return loadEmbeddingViews().stream()
+                .map(idAndView -> new Pair<>(idAndView.getKey(), idAndView.getValue().toFloatMatrix()))
+                .collect(Collectors.toList());
     }
 }
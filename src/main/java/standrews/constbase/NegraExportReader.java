@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2019. University of St Andrews
+ */
+
+package standrews.constbase;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * Reads trees from a file in NEGRA export format one at a time.
+ * Lines are scanned once in a reused char buffer, without regular expressions.
+ * Categories, POS tags, labels and node ids are interned, so each distinct
+ * symbol is one String shared between all trees.
+ */
+public class NegraExportReader implements Iterator<ConstTree>, Closeable {
+    private static final int MAX_FIELDS = 16;
+
+    private final Reader reader;
+    private final char[] buffer = new char[1 << 16];
+    private int bufferPos = 0;
+    private int bufferEnd = 0;
+
+    /**
+     * Current line, without line terminator.
+     */
+    private char[] line = new char[256];
+    private int lineLength = 0;
+
+    /**
+     * Whitespace separated fields of current line.
+     */
+    private final int[] fieldStarts = new int[MAX_FIELDS];
+    private final int[] fieldEnds = new int[MAX_FIELDS];
+    private int nFields = 0;
+
+    private final SymbolTable symbols = new SymbolTable();
+
+    private ConstTree next = null;
+
+    public NegraExportReader(final String filename) throws IOException {
+        this(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8));
+    }
+
+    public NegraExportReader(final Reader reader) {
+        this.reader = reader;
+    }
+
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = readTree();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    public ConstTree next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        final ConstTree tree = next;
+        next = null;
+        return tree;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Read up to and including next sentence, skipping tables and comments.
+     *
+     * @return The tree, or null at end of file.
+     */
+    private ConstTree readTree() throws IOException {
+        while (readLine()) {
+            if (isMarker("BOS")) {
+                return readSentence();
+            } else if (isMarker("FORMAT")) {
+                // do nothing
+            } else if (isMarker("BOT ")) {
+                skipTable();
+            } else if (lineLength > 0 && line[0] == '%') {
+                // comment
+            } else {
+                logger().warning("Strange line: " + lineString());
+            }
+        }
+        return null;
+    }
+
+    private void skipTable() throws IOException {
+        while (readLine()) {
+            if (isMarker("EOT "))
+                return;
+        }
+    }
+
+    private ConstTree readSentence() throws IOException {
+        splitFields(0);
+        if (nFields < 2)
+            throw new IOException("Strange BOS start: " + lineString());
+        final ConstTree tree = new ConstTree(field(1));
+        while (readLine()) {
+            if (isMarker("EOS")) {
+                tree.updateSpans();
+                return tree;
+            } else if (isMarker("")) {
+                splitFields(1);
+                if (nFields < 5)
+                    throw new IOException("Strange sentence line: " + lineString());
+                final String id = symbol(0);
+                final String cat = symbol(1);
+                final String label = symbol(3);
+                final ConstInternal node = tree.addInternal(id, cat, label);
+                if (isRootParent(4))
+                    tree.addRoot(node);
+                else
+                    tree.addParent(node, symbol(4));
+            } else {
+                splitFields(0);
+                if (nFields < 5)
+                    throw new IOException("Strange sentence line: " + lineString());
+                final String form = field(0);
+                final String pos = symbol(1);
+                final String label = symbol(3);
+                final ConstLeaf node = tree.addLeaf(form, pos, label);
+                if (isRootParent(4))
+                    tree.addRoot(node);
+                else
+                    tree.addParent(node, symbol(4));
+            }
+        }
+        tree.updateSpans();
+        return tree;
+    }
+
+    /**
+     * Read next line into line buffer.
+     *
+     * @return False at end of file.
+     */
+    private boolean readLine() throws IOException {
+        lineLength = 0;
+        boolean any = false;
+        while (true) {
+            if (bufferPos == bufferEnd) {
+                bufferEnd = reader.read(buffer, 0, buffer.length);
+                bufferPos = 0;
+                if (bufferEnd <= 0) {
+                    bufferEnd = 0;
+                    return any;
+                }
+            }
+            any = true;
+            int end = bufferPos;
+            while (end < bufferEnd && buffer[end] != '\n')
+                end++;
+            append(bufferPos, end);
+            if (end < bufferEnd) {
+                bufferPos = end + 1;
+                if (lineLength > 0 && line[lineLength - 1] == '\r')
+                    lineLength--;
+                return true;
+            }
+            bufferPos = end;
+        }
+    }
+
+    private void append(final int from, final int to) {
+        final int n = to - from;
+        if (lineLength + n > line.length) {
+            char[] longer = new char[Math.max(2 * line.length, lineLength + n)];
+            System.arraycopy(line, 0, longer, 0, lineLength);
+            line = longer;
+        }
+        System.arraycopy(buffer, from, line, lineLength, n);
+        lineLength += n;
+    }
+
+    private boolean isMarker(final String mark) {
+        if (lineLength < mark.length() + 1 || line[0] != '#')
+            return false;
+        for (int i = 0; i < mark.length(); i++)
+            if (line[i + 1] != mark.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Split line from position into fields separated by whitespace.
+     * As before, leading whitespace gives an empty first field.
+     */
+    private void splitFields(final int from) {
+        nFields = 0;
+        int i = from;
+        if (i < lineLength && isWhitespace(line[i])) {
+            fieldStarts[0] = i;
+            fieldEnds[0] = i;
+            nFields++;
+        }
+        while (nFields < MAX_FIELDS) {
+            while (i < lineLength && isWhitespace(line[i]))
+                i++;
+            if (i == lineLength)
+                break;
+            fieldStarts[nFields] = i;
+            while (i < lineLength && !isWhitespace(line[i]))
+                i++;
+            fieldEnds[nFields] = i;
+            nFields++;
+        }
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+
+    private String field(final int i) {
+        return new String(line, fieldStarts[i], fieldEnds[i] - fieldStarts[i]);
+    }
+
+    private String symbol(final int i) {
+        return symbols.intern(line, fieldStarts[i], fieldEnds[i]);
+    }
+
+    private boolean isRootParent(final int i) {
+        return fieldEnds[i] - fieldStarts[i] == 1 && line[fieldStarts[i]] == '0';
+    }
+
+    private String lineString() {
+        return new String(line, 0, lineLength);
+    }
+
+    /**
+     * Strings looked up by their characters, without first making a String.
+     */
+    private static class SymbolTable {
+        private String[] table = new String[1024];
+        private int size = 0;
+
+        String intern(final char[] chars, final int start, final int end) {
+            int h = 0;
+            for (int i = start; i < end; i++)
+                h = 31 * h + chars[i];
+            int mask = table.length - 1;
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (table[slot] != null) {
+                if (matches(table[slot], chars, start, end))
+                    return table[slot];
+                slot = (slot + 1) & mask;
+            }
+            final String s = new String(chars, start, end - start);
+            table[slot] = s;
+            if (++size * 2 > table.length)
+                grow();
+            return s;
+        }
+
+        private static boolean matches(final String s, final char[] chars, final int start, final int end) {
+            if (s.length() != end - start)
+                return false;
+            for (int i = start; i < end; i++)
+                if (s.charAt(i - start) != chars[i])
+                    return false;
+            return true;
+        }
+
+        private void grow() {
+            final String[] old = table;
+            table = new String[2 * old.length];
+            final int mask = table.length - 1;
+            for (String s : old) {
+                if (s == null)
+                    continue;
+                final int h = s.hashCode();
+                int slot = (h ^ (h >>> 16)) & mask;
+                while (table[slot] != null)
+                    slot = (slot + 1) & mask;
+                table[slot] = s;
+            }
+        }
+    }
+
+    private Logger logger() {
+        final Logger log = Logger.getLogger(getClass().getName());
+        log.setParent(Logger.getGlobal());
+        return log;
+    }
+}
@@ -29,161 +29,44 @@ public class NegraTreebank extends ConstTreebank {
                          int numEmbeddingsFiles) {
         // parse trees in treebank
         sentenceIdTreeMap = new HashMap<>();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(
-                // new FileInputStream(filename), "iso-8859-1"))) {
-                new FileInputStream(filename), "utf-8"))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (isMarker(line, "BOS")) {
-                    ConstTree tree = readSentence(line, br);
-                    sentenceIdTreeMap.put("s" + tree.id, tree);
-                } else if (isMarker(line, "FORMAT")) {
-                    readFormat(line, br);
-                } else if (isMarker(line, "BOT ORIGIN")) {
-                    readOrigin(line, br);
-                } else if (isMarker(line, "BOT EDITOR")) {
-                    readEditor(line, br);
-                } else if (isMarker(line, "BOT WORDTAG")) {
-                    readWordTag(line, br);
-                } else if (isMarker(line, "BOT MORPHTAG")) {
-                    readMorphTag(line, br);
-                } else if (isMarker(line, "BOT NODETAG")) {
-                    readNodeTag(line, br);
-                } else if (isMarker(line, "BOT EDGETAG")) {
-                    readEdgeTag(line, br);
-                } else if (isMarker(line, "BOT SECEDGETAG")) {
-                    readSecedgeTag(line, br);
-                } else if (isComment(line)) {
-                    readComment(line);
-                } else {
-                    final Logger log = logger();
-                    log.warning("Strange line: " + line);
-                }
+        try (NegraExportReader reader = new NegraExportReader(filename)) {
+            while (reader.hasNext()) {
+                ConstTree tree = reader.next();
+                sentenceIdTreeMap.put("s" + tree.id, tree);
             }
-        } catch (IOException | IllegalArgumentException e) {
+        } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
             final Logger log = logger();
             log.severe("Could not read treebank, error reading file: " + filename + "\n" + e);
             System.exit(1);
         }
         this.trees = sentenceIdTreeMap.values().toArray(new ConstTree[0]);
 
-        // make list of minibatch metadata
-        miniBatchMetadataList = IntStream.range(0, numEmbeddingsFiles)
-                .mapToObj(i -> new MinibatchMetadata(embeddingsDirectory, i))
-                .collect(Collectors.toCollection(ArrayList::new));
+        readMiniBatchMetadata(embeddingsDirectory, numEmbeddingsFiles);
     }
 
-    private void readFormat(String line, BufferedReader br) throws IOException {
-        // do nothing
-    }
-
-    private ConstTree readSentence(String line, BufferedReader br) throws IOException {
-        String[] fields = line.split("\\s");
-        if (fields.length < 2)
-            throw new IOException("Strange BOS start: " + line);
-        String treeId = fields[1];
-        ConstTree tree = new ConstTree(treeId);
-        while ((line = br.readLine()) != null) {
-            if (isMarker(line, "EOS")) {
-                return tree;
-            } else if (isMarker(line, "")) {
-                line = line.replace("\n", "")
-                        .replaceAll("^#", "")
-                        .replaceAll("\\s+", "\t");
-                String[] interFields = line.split("\t");
-                if (interFields.length < 5)
-                    throw new IOException("Strange sentence line: " + line);
-                String id = interFields[0];
-                String cat = interFields[1];
-                String unk = interFields[2];
-                String label = interFields[3];
-                String parentId = interFields[4];
-                ConstInternal node = tree.addInternal(id, cat, label);
-                if (parentId.equals("0"))
-                    tree.addRoot(node);
-                else
-                    tree.addParent(node, parentId);
-
-            } else {
-                line = line.replace("\n", "")
-                        .replaceAll("\\s+", "\t");
-                String[] wordFields = line.split("\t");
-                if (wordFields.length < 5)
-                    throw new IOException("Strange sentence line: " + line);
-                String form = wordFields[0];
-                String pos = wordFields[1];
-                String unk = wordFields[2];
-                String label = wordFields[3];
-                String parentId = wordFields[4];
-                ConstLeaf node = tree.addLeaf(form, pos, label);
-                if (parentId.equals("0"))
-                    tree.addRoot(node);
-                else
-                    tree.addParent(node, parentId);
-            }
-        }
-        return tree;
-    }
-
-    private void readOrigin(String line, BufferedReader br) throws IOException {
-        while ((line = br.readLine()) != null) {
-            if (isMarker(line, "EOT ORIGIN"))
-                return;
-        }
-    }
-
-    private void readEditor(String line, BufferedReader br) throws IOException {
-        while ((line = br.readLine()) != null) {
-            if (isMarker(line, "EOT EDITOR"))
-                return;
-        }
-    }
-
-    private void readWordTag(String line, BufferedReader br) throws IOException {
-        while ((line = br.readLine()) != null) {
-            if (isMarker(line, "EOT WORDTAG"))
-                return;
-        }
-    }
-
-    private void readMorphTag(String line, BufferedReader br) throws IOException {
-        while ((line = br.readLine()) != null) {
-            if (isMarker(line, "EOT MORPHTAG"))
-                return;
-        }
-    }
-
-    private void readNodeTag(String line, BufferedReader br) throws IOException {
-        while ((line = br.readLine()) != null) {
-            if (isMarker(line, "EOT NODETAG"))
-                return;
-        }
-    }
-
-    private void readEdgeTag(String line, BufferedReader br) throws IOException {
-        while ((line = br.readLine()) != null) {
-            if (isMarker(line, "EOT EDGETAG"))
-                return;
-        }
-    }
-
-    private void readSecedgeTag(String line, BufferedReader br) throws IOException {
-        while ((line = br.readLine()) != null) {
-            if (isMarker(line, "EOT SECEDGETAG"))
-                return;
-        }
-    }
-
-    private void readComment(String line) {
-
-    }
+    /**
+     * Treebank of trees that have already been read, e.g. from a snapshot.
+     */
+    public NegraTreebank(String id,
+                         Set<String> poss,
+                         Set<String> cats,
+                         Set<String> labels,
+                         ConstTree[] trees,
+                         String embeddingsDirectory,
+                         int numEmbeddingsFiles) {
+        super(id, poss, cats, labels, trees);
+        sentenceIdTreeMap = new HashMap<>();
+        for (ConstTree tree : trees)
+            sentenceIdTreeMap.put("s" + tree.id, tree);
 
-    private boolean isMarker(String line, String mark) {
-        return line.startsWith("#" + mark);
+        readMiniBatchMetadata(embeddingsDirectory, numEmbeddingsFiles);
     }
 
-    private boolean isComment(String line) {
-        return line.startsWith("%");
+    private void readMiniBatchMetadata(String embeddingsDirectory, int numEmbeddingsFiles) {
+        // make list of minibatch metadata
+        miniBatchMetadataList = IntStream.range(0, numEmbeddingsFiles)
+                .mapToObj(i -> new MinibatchMetadata(embeddingsDirectory, i))
+                .collect(Collectors.toCollection(ArrayList::new));
     }
 
     public void write(final String filename) {
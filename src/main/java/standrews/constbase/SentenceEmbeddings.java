@@ -0,0 +1,89 @@
+package standrews.constbase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only view of the word embeddings of one sentence inside a memory mapped file.
+ * Only absolute reads are done on the shared buffer, so views can be used from several threads.
+ */
+public class SentenceEmbeddings {
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int length;
+    private final int embeddingLength;
+    private final boolean isFloat;
+
+    public SentenceEmbeddings(ByteBuffer buffer, int offset, int length, int embeddingLength, boolean isFloat) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.embeddingLength = embeddingLength;
+        this.isFloat = isFloat;
+    }
+
+    /**
+     * Number of words in the sentence.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public int getEmbeddingLength() {
+        return embeddingLength;
+    }
+
+    public double get(int word, int i) {
+        int index = word * embeddingLength + i;
+        return isFloat
+                ? buffer.getFloat(offset + index * Float.BYTES)
+                : buffer.getDouble(offset + index * Double.BYTES);
+    }
+
+    /**
+     * Copy embedding of word into part of given array.
+     */
+    public void copyEmbedding(int word, double[] target, int targetOffset) {
+        int base = word * embeddingLength;
+        if (isFloat) {
+            for (int i = 0; i < embeddingLength; i++)
+                target[targetOffset + i] = buffer.getFloat(offset + (base + i) * Float.BYTES);
+        } else {
+            for (int i = 0; i < embeddingLength; i++)
+                target[targetOffset + i] = buffer.getDouble(offset + (base + i) * Double.BYTES);
+        }
+    }
+
+    /**
+     * Copy embedding of word into part of given array, narrowing double files to float.
+     */
+    public void copyEmbedding(int word, float[] target, int targetOffset) {
+        int base = word * embeddingLength;
+        if (isFloat) {
+            for (int i = 0; i < embeddingLength; i++)
+                target[targetOffset + i] = buffer.getFloat(offset + (base + i) * Float.BYTES);
+        } else {
+            for (int i = 0; i < embeddingLength; i++)
+                target[targetOffset + i] = (float) buffer.getDouble(offset + (base + i) * Double.BYTES);
+        }
+    }
+
+    /**
+     * Copy embeddings onto heap, one row per word.
+     */
+    public float[][] toFloatMatrix() {
+        float[][] matrix = new float[length][embeddingLength];
+        for (int word = 0; word < length; word++)
+            copyEmbedding(word, matrix[word], 0);
+        return matrix;
+    }
+
+    /**
+     * Copy embeddings onto heap, one row per word.
+     */
+    public double[][] toDoubleMatrix() {
+        double[][] matrix = new double[length][embeddingLength];
+        for (int word = 0; word < length; word++)
+            copyEmbedding(word, matrix[word], 0);
+        return matrix;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2019. University of St Andrews
+ */
+
+package standrews.constbase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Numbering of symbols, so that they can be compared and used as array indices as ints.
+ * Categories, which include parts of speech as the categories of leaves, are numbered
+ * apart from labels, so that each numbering stays small. Numbers are dense, from 0, in
+ * order of first use, and are never reused. Nodes are given the numbers of their
+ * symbols when they are made, so for a treebank as it is read; being global, the
+ * numbering is shared between the parts of a treebank and the parses of its sentences.
+ *
+ * The numberings are never reset, so they grow with every treebank read in the process.
+ * Tables indexed by number, such as those of FeatureVectorGenerator, are made for the
+ * numbers there are at the time, and take larger numbers to be symbols they do not know.
+ */
+public final class Symbols {
+    /**
+     * Numbering of categories and parts of speech.
+     */
+    public static final Symbols cats = new Symbols();
+
+    /**
+     * Numbering of labels.
+     */
+    public static final Symbols labels = new Symbols();
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final List<String> symbols = new ArrayList<>();
+
+    private Symbols() {
+    }
+
+    /**
+     * Number of symbol, which is assigned if the symbol is new. -1 for null.
+     */
+    public int id(final String symbol) {
+        if (symbol == null)
+            return -1;
+        final Integer id = ids.get(symbol);
+        return id != null ? id : assign(symbol);
+    }
+
+    private synchronized int assign(final String symbol) {
+        final Integer id = ids.get(symbol);
+        if (id != null)
+            return id;
+        symbols.add(symbol);
+        ids.put(symbol, symbols.size() - 1);
+        return symbols.size() - 1;
+    }
+
+    /**
+     * Number of symbol, or -1 if it has none yet.
+     */
+    public int lookup(final String symbol) {
+        if (symbol == null)
+            return -1;
+        final Integer id = ids.get(symbol);
+        return id == null ? -1 : id;
+    }
+
+    public synchronized String symbol(final int id) {
+        return symbols.get(id);
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
@@ -131,6 +131,7 @@ public class TigerTreebank extends ConstTreebank {
                 public void endElement(String uri, String localName, String qName) {
                     if (qName.equals("s")) {
                         // System.out.println("multipleroot");
+                        tree.updateSpans();
                         writer.println(NegraTreebank.treeToString(tree));
 						/*
 						writer.println("#BOS " + idS);
@@ -3,34 +3,67 @@ package standrews.constbase;
 import javafx.util.Pair;
 
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.*;
 
 public class TreebankIterator {
     private final List<MinibatchMetadata> miniBatchMetadataList;
     private int miniBatchesFetched;
     private int miniBatchesReturned;
-    private final BlockingQueue<List<Pair<String, double[][]>>> miniBatchQueue;
     private final Random rng;
 
+    /**
+     * Minibatches being loaded, in the order in which they are to be returned.
+     * Its capacity bounds how many minibatches are held in memory ahead of the consumer.
+     */
+    private final BlockingQueue<Future<List<Pair<String, float[][]>>>> miniBatchQueue;
+
+    /**
+     * Background threads that load the embeddings of minibatches. They are daemon threads
+     * and end when idle, so none outlive the loads of an epoch.
+     */
+    private final ThreadPoolExecutor loaderPool;
+
+    private final static long loaderKeepAliveSeconds = 1;
+
     public TreebankIterator(List<MinibatchMetadata> miniBatchMetadataList, int queueSize, Random rng) {
+        this(miniBatchMetadataList, queueSize, 1, rng);
+    }
+
+    public TreebankIterator(List<MinibatchMetadata> miniBatchMetadataList, int queueSize, int loaderThreads, Random rng) {
+        if (queueSize < 1 || loaderThreads < 1) {
+            throw new IllegalArgumentException("Error: queueSize and loaderThreads must be positive");
+        }
+
         this.miniBatchMetadataList = miniBatchMetadataList;
         this.rng = rng;
 
-        reset();
+        miniBatchQueue = new ArrayBlockingQueue<>(queueSize);
+        loaderPool = new ThreadPoolExecutor(loaderThreads, loaderThreads,
+                loaderKeepAliveSeconds, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "treebank-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        loaderPool.allowCoreThreadTimeOut(true);
 
-        miniBatchQueue = new ArrayBlockingQueue<>(queueSize+1);
-        for (int i = 0; i < queueSize; i++) {
-            if (canFetchNextBatch()) {
-                fetchNextBatch();
-            }
-        }
+        reset();
     }
 
+    /**
+     * Discard minibatches that are loaded or being loaded, reshuffle, and start loading
+     * from the beginning of the new order.
+     */
     public void reset() {
+        Future<List<Pair<String, float[][]>>> pending;
+        while ((pending = miniBatchQueue.poll()) != null) {
+            pending.cancel(true);
+        }
+
         miniBatchesFetched = 0;
         miniBatchesReturned = 0;
         Collections.shuffle(miniBatchMetadataList, rng);
+
+        fillQueue();
     }
 
     private boolean hasNext() {
@@ -41,28 +74,39 @@ public class TreebankIterator {
         return miniBatchesFetched < miniBatchMetadataList.size();
     }
 
-    public Optional<List<Pair<String, double[][]>>> next() {
+    public Optional<List<Pair<String, float[][]>>> next() {
         if (hasNext()) {
-            if (canFetchNextBatch()) {
-                fetchNextBatch();
-            }
-
             try {
-                List<Pair<String, double[][]>> miniBatch = miniBatchQueue.take();
+                List<Pair<String, float[][]>> miniBatch = miniBatchQueue.take().get();
                 miniBatchesReturned++;
+                fillQueue();
                 Collections.shuffle(miniBatch, rng);
                 return Optional.of(miniBatch);
             } catch (InterruptedException e) {
                 e.printStackTrace();
                 return Optional.empty();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                System.exit(1);
+                return Optional.empty();
             }
         }
         return Optional.empty();
     }
 
+    /**
+     * Submit loads until the queue is full or all minibatches have been submitted.
+     * Only called from the consuming thread, so the queue never blocks on insertion.
+     */
+    private void fillQueue() {
+        while (canFetchNextBatch() && miniBatchQueue.remainingCapacity() > 0) {
+            fetchNextBatch();
+        }
+    }
+
     private void fetchNextBatch() {
-        DataLoaderThread dataLoaderThread = new DataLoaderThread(miniBatchQueue, miniBatchMetadataList.get(miniBatchesFetched));
-        dataLoaderThread.run();
+        DataLoaderThread dataLoaderThread = new DataLoaderThread(miniBatchMetadataList.get(miniBatchesFetched));
+        miniBatchQueue.add(loaderPool.submit(dataLoaderThread));
 
         miniBatchesFetched++;
     }
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2019. University of St Andrews
+ */
+
+package standrews.constbase;
+
+import standrews.constbase.heads.HeadFinder;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of a treebank after cycles have been removed, heads have been found
+ * and symbols have been gathered. Reading it avoids parsing the export file and
+ * preprocessing the trees again.
+ *
+ * The snapshot records the length and checksum of the source file and the head finder
+ * with a checksum of its class files. If any of these differ, the snapshot is ignored.
+ */
+public class TreebankSnapshot {
+    private static final int MAGIC = 0x54424e4b;
+    private static final int VERSION = 1;
+
+    private final String snapshotPath;
+    private final String sourcePath;
+    private final HeadFinder finder;
+
+    public TreebankSnapshot(String snapshotPath, String sourcePath, HeadFinder finder) {
+        this.snapshotPath = snapshotPath;
+        this.sourcePath = sourcePath;
+        this.finder = finder;
+    }
+
+    /**
+     * Snapshot next to source file, one per head finder.
+     */
+    public TreebankSnapshot(String sourcePath, HeadFinder finder) {
+        this(sourcePath + "." + finder.getClass().getSimpleName() + ".snapshot", sourcePath, finder);
+    }
+
+    /**
+     * Read treebank from snapshot.
+     *
+     * @return The treebank, or empty if there is no snapshot or it is out of date.
+     */
+    public Optional<NegraTreebank> read(String embeddingsDirectory, int numEmbeddingsFiles) {
+        final File file = new File(snapshotPath);
+        if (!file.exists())
+            return Optional.empty();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger().info("Ignoring snapshot of different format: " + snapshotPath);
+                return Optional.empty();
+            }
+            final long sourceLength = in.readLong();
+            final long sourceChecksum = in.readLong();
+            final String finderName = in.readUTF();
+            final long finderChecksum = in.readLong();
+            if (sourceLength != new File(sourcePath).length() ||
+                    sourceChecksum != sourceChecksum() ||
+                    !finderName.equals(finder.getClass().getName()) ||
+                    finderChecksum != finderChecksum()) {
+                logger().info("Ignoring out of date snapshot: " + snapshotPath);
+                return Optional.empty();
+            }
+
+            final String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++)
+                strings[i] = in.readUTF();
+
+            final String id = readString(in, strings);
+            final Set<String> poss = readSymbols(in, strings);
+            final Set<String> cats = readSymbols(in, strings);
+            final Set<String> labels = readSymbols(in, strings);
+            final ConstTree[] trees = new ConstTree[in.readInt()];
+            for (int i = 0; i < trees.length; i++)
+                trees[i] = readTree(in, strings);
+
+            return Optional.of(new NegraTreebank(id, poss, cats, labels, trees,
+                    embeddingsDirectory, numEmbeddingsFiles));
+        } catch (IOException e) {
+            logger().warning("Could not read snapshot " + snapshotPath + ": " + e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Write snapshot of treebank.
+     */
+    public void write(ConstTreebank bank) {
+        final Map<String, Integer> strings = new LinkedHashMap<>();
+        intern(strings, bank.getId());
+        bank.getPoss().forEach(s -> intern(strings, s));
+        bank.getCats().forEach(s -> intern(strings, s));
+        bank.getLabels().forEach(s -> intern(strings, s));
+        for (ConstTree tree : bank.getTrees()) {
+            intern(strings, tree.getId());
+            for (ConstLeaf leaf : tree.getLeaves()) {
+                intern(strings, leaf.getForm());
+                intern(strings, leaf.getCat());
+                intern(strings, leaf.getLabel());
+            }
+            for (String internalId : tree.getInternalIds()) {
+                final ConstInternal internal = tree.getInternal(internalId);
+                intern(strings, internal.getId());
+                intern(strings, internal.getCat());
+                intern(strings, internal.getLabel());
+            }
+        }
+
+        final File file = new File(snapshotPath);
+        final File tmpFile = new File(snapshotPath + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(new File(sourcePath).length());
+            out.writeLong(sourceChecksum());
+            out.writeUTF(finder.getClass().getName());
+            out.writeLong(finderChecksum());
+
+            out.writeInt(strings.size());
+            for (String s : strings.keySet())
+                out.writeUTF(s);
+
+            writeString(out, strings, bank.getId());
+            writeSymbols(out, strings, bank.getPoss());
+            writeSymbols(out, strings, bank.getCats());
+            writeSymbols(out, strings, bank.getLabels());
+            out.writeInt(bank.getTrees().length);
+            for (ConstTree tree : bank.getTrees())
+                writeTree(out, strings, tree);
+        } catch (IOException e) {
+            logger().warning("Could not write snapshot " + snapshotPath + ": " + e);
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(file)) {
+            file.delete();
+            if (!tmpFile.renameTo(file))
+                logger().warning("Could not write snapshot " + snapshotPath);
+        }
+    }
+
+    private static void intern(Map<String, Integer> strings, String s) {
+        if (s != null)
+            strings.putIfAbsent(s, strings.size());
+    }
+
+    private static void writeString(DataOutputStream out, Map<String, Integer> strings, String s) throws IOException {
+        out.writeInt(s == null ? -1 : strings.get(s));
+    }
+
+    private static String readString(DataInputStream in, String[] strings) throws IOException {
+        final int i = in.readInt();
+        return i < 0 ? null : strings[i];
+    }
+
+    private static void writeSymbols(DataOutputStream out, Map<String, Integer> strings, Set<String> symbols) throws IOException {
+        out.writeInt(symbols.size());
+        for (String s : symbols)
+            writeString(out, strings, s);
+    }
+
+    private static Set<String> readSymbols(DataInputStream in, String[] strings) throws IOException {
+        final Set<String> symbols = new TreeSet<>();
+        final int n = in.readInt();
+        for (int i = 0; i < n; i++)
+            symbols.add(readString(in, strings));
+        return symbols;
+    }
+
+    /**
+     * Leaves are written first, then internal nodes with their labels, then children and roots.
+     * A node is referred to by the index of a leaf, or by -1 minus the index of an internal node.
+     */
+    private static void writeTree(DataOutputStream out, Map<String, Integer> strings, ConstTree tree) throws IOException {
+        writeString(out, strings, tree.getId());
+        final ConstLeaf[] leaves = tree.getLeaves();
+        out.writeInt(leaves.length);
+        for (ConstLeaf leaf : leaves) {
+            writeString(out, strings, leaf.getForm());
+            writeString(out, strings, leaf.getCat());
+            writeString(out, strings, leaf.getLabel());
+        }
+        final List<ConstInternal> internals = new ArrayList<>();
+        final Map<ConstInternal, Integer> internalIndices = new IdentityHashMap<>();
+        for (String internalId : tree.getInternalIds()) {
+            final ConstInternal internal = tree.getInternal(internalId);
+            internalIndices.put(internal, internals.size());
+            internals.add(internal);
+        }
+        out.writeInt(internals.size());
+        for (ConstInternal internal : internals) {
+            writeString(out, strings, internal.getId());
+            writeString(out, strings, internal.getCat());
+            writeString(out, strings, internal.getLabel());
+        }
+        for (ConstInternal internal : internals) {
+            out.writeInt(internal.getHeadIndex());
+            final ConstNode[] children = internal.getChildren();
+            out.writeInt(children.length);
+            for (ConstNode child : children)
+                out.writeInt(reference(child, internalIndices));
+        }
+        out.writeInt(tree.getRoots().size());
+        for (ConstNode root : tree.getRoots())
+            out.writeInt(reference(root, internalIndices));
+    }
+
+    private static ConstTree readTree(DataInputStream in, String[] strings) throws IOException {
+        final ConstTree tree = new ConstTree(readString(in, strings));
+        final ConstLeaf[] leaves = new ConstLeaf[in.readInt()];
+        for (int i = 0; i < leaves.length; i++) {
+            final String form = readString(in, strings);
+            final String pos = readString(in, strings);
+            final String label = readString(in, strings);
+            leaves[i] = tree.addLeaf(form, pos, label);
+        }
+        final ConstInternal[] internals = new ConstInternal[in.readInt()];
+        for (int i = 0; i < internals.length; i++) {
+            final String id = readString(in, strings);
+            final String cat = readString(in, strings);
+            final String label = readString(in, strings);
+            internals[i] = tree.addInternal(id, cat, label);
+        }
+        for (ConstInternal internal : internals) {
+            final int headIndex = in.readInt();
+            final int nChildren = in.readInt();
+            for (int j = 0; j < nChildren; j++)
+                internal.addChildRight(dereference(in.readInt(), leaves, internals));
+            internal.setHeadIndex(headIndex);
+        }
+        final int nRoots = in.readInt();
+        for (int i = 0; i < nRoots; i++)
+            tree.addRoot(dereference(in.readInt(), leaves, internals));
+        tree.updateSpans();
+        return tree;
+    }
+
+    private static int reference(ConstNode node, Map<ConstInternal, Integer> internalIndices) {
+        if (node instanceof ConstLeaf)
+            return ((ConstLeaf) node).getIndex();
+        else
+            return -1 - internalIndices.get(node);
+    }
+
+    private static ConstNode dereference(int ref, ConstLeaf[] leaves, ConstInternal[] internals) {
+        return ref >= 0 ? leaves[ref] : internals[-1 - ref];
+    }
+
+    private long sourceChecksum() throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(sourcePath)) {
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                crc.update(buffer, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Checksum of the class files of the head finder and its superclasses,
+     * so that a change to the head rules invalidates the snapshot.
+     */
+    private long finderChecksum() throws IOException {
+        final CRC32 crc = new CRC32();
+        for (Class<?> c = finder.getClass(); c != null && HeadFinder.class.isAssignableFrom(c); c = c.getSuperclass()) {
+            try (InputStream in = c.getResourceAsStream(c.getSimpleName() + ".class")) {
+                if (in != null)
+                    crc.update(in.readAllBytes());
+            }
+        }
+        return crc.getValue();
+    }
+
+    private Logger logger() {
+        final Logger log = Logger.getLogger(getClass().getName());
+        log.setParent(Logger.getGlobal());
+        return log;
+    }
+}
@@ -30,45 +30,39 @@ public abstract class HeadFinder {
 
     protected abstract int getHeadIndex(ConstInternal node);
 
-    protected int nLabel(ConstInternal node, String lab) {
-        return nLabel(node, new String[]{lab});
-    }
-
-    protected int nLabel(ConstInternal node, String[] labs) {
+    /**
+     * Number of children with any of the labels, given by their numbers, see labels.
+     */
+    protected int nLabel(ConstInternal node, int[] labs) {
         int n = 0;
         for (ConstNode child : node.getChildren()) {
-            for (String lab : labs) {
-                if (child.getLabel().equals(lab))
+            for (int id : labs) {
+                if (child.getLabelId() == id)
                     n++;
             }
         }
         return n;
     }
 
-    protected int nCat(ConstInternal node, String cat) {
-        return nCat(node, new String[]{cat});
-    }
-
-    protected int nCat(ConstInternal node, String[] cats) {
+    /**
+     * Number of children with any of the categories, given by their numbers, see cats.
+     */
+    protected int nCat(ConstInternal node, int[] cats) {
         int n = 0;
         for (ConstNode child : node.getChildren()) {
-            for (String cat : cats) {
-                if (child.getCat().equals(cat))
+            for (int id : cats) {
+                if (child.getCatId() == id)
                     n++;
             }
         }
         return n;
     }
 
-    protected int firstWithLabel(ConstInternal node, String lab) {
-        return firstWithLabel(node, new String[]{lab});
-    }
-
-    protected int firstWithLabel(ConstInternal node, String[] labs) {
+    protected int firstWithLabel(ConstInternal node, int[] labs) {
         int i = 0;
         for (ConstNode child : node.getChildren()) {
-            for (String lab : labs) {
-                if (child.getLabel().equals(lab))
+            for (int id : labs) {
+                if (child.getLabelId() == id)
                     return i;
             }
             i++;
@@ -76,15 +70,11 @@ public abstract class HeadFinder {
         return -1;
     }
 
-    protected int firstWithCat(ConstInternal node, String cat) {
-        return firstWithCat(node, new String[]{cat});
-    }
-
-    protected int firstWithCat(ConstInternal node, String[] cats) {
+    protected int firstWithCat(ConstInternal node, int[] cats) {
         int i = 0;
         for (ConstNode child : node.getChildren()) {
-            for (String cat : cats) {
-                if (child.getCat().equals(cat))
+            for (int id : cats) {
+                if (child.getCatId() == id)
                     return i;
             }
             i++;
@@ -92,6 +82,29 @@ public abstract class HeadFinder {
         return -1;
     }
 
+    /**
+     * Numbers of labels, see Symbols.labels, for the rules of a head finder, which are
+     * made once rather than per node. Labels are numbered here if they are new, so
+     * that the numbers stay valid for nodes made later.
+     */
+    protected static int[] labels(String... labs) {
+        return ids(Symbols.labels, labs);
+    }
+
+    /**
+     * As labels, for categories and parts of speech, see Symbols.cats.
+     */
+    protected static int[] cats(String... cats) {
+        return ids(Symbols.cats, cats);
+    }
+
+    private static int[] ids(Symbols numbering, String[] symbols) {
+        final int[] ids = new int[symbols.length];
+        for (int i = 0; i < symbols.length; i++)
+            ids[i] = numbering.id(symbols[i]);
+        return ids;
+    }
+
     protected void printLeaves(ConstLeaf[] leaves) {
         for (ConstLeaf leaf : leaves)
             System.err.print(leaf.getForm() + " ");
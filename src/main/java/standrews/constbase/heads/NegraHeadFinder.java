@@ -9,12 +9,34 @@ import standrews.constbase.*;
 import java.util.stream.Stream;
 
 public class NegraHeadFinder extends HeadFinder {
+    private static final int[] hdLabel = labels("HD");
+    private static final int[] cjLabel = labels("CJ");
+    private static final int[] dhLabel = labels("DH");
+    private static final int[] npHeads1 = cats("NN", "NE", "MPN", "CNP", "NP", "NM");
+    private static final int[] npHeads2 = cats("PPER", "PIS", "CARD", "AP", "PRELS", "PIAT", "PDS", "PIDAT",
+            "FM", "PPOSAT", "TRUNC");
+    private static final int[] npHeads3 = cats("ADJA", "MTA", "CAP", "PRF", "ADV", "XY");
+    private static final int[] npHeads4 = cats("ART", "PP", "KOKOM");
+    private static final int[] ppHeads1 = cats("APPR", "APPRART", "PROAV", "APPO", "CAC", "KOUS", "KOUI",
+            "PTKA", "ISU", "MPN");
+    private static final int[] ppHeads2 = cats("CPP", "FM", "ADV", "ADJD", "ADJA", "KOKOM");
+    private static final int[] ppHeads3 = cats("AP", "CARD");
+    private static final int[] mpnHeads1 = cats("MPN", "FM", "NE");
+    private static final int[] mpnHeads2 = cats("NN", "CARD", "XY");
+    private static final int[] csHeads1 = cats("S", "CS");
+    private static final int[] csHeads2 = cats("VVFIN");
+    private static final int[] nmHeads1 = cats("CARD", "NN");
+    private static final int[] mtaHeads1 = cats("NE", "NN");
+    private static final int[] mtaHeads2 = cats("TRUNC");
+    private static final int[] isuHeads1 = cats("NN");
+    private static final int[] qlHeads1 = cats("CARD");
+    private static final int[] chHeads1 = cats("NE");
 
     protected int getHeadIndex(ConstInternal node) {
-        if (nLabel(node, "HD") == 1) {
-            return firstWithLabel(node, "HD");
-        } else if (nLabel(node, "HD") > 1) {
-            return firstWithLabel(node, "HD");
+        if (nLabel(node, hdLabel) == 1) {
+            return firstWithLabel(node, hdLabel);
+        } else if (nLabel(node, hdLabel) > 1) {
+            return firstWithLabel(node, hdLabel);
         } else if (node.getCat().equals("VP")) {
             return 0;
         } else if (node.getCat().equals("S")) {
@@ -26,87 +48,68 @@ public class NegraHeadFinder extends HeadFinder {
         } else if (Stream.of("CPP", "CVP", "CNP", "CAP", "CAVP",
                         "CO", "CAC", "CVZ", "CCP").
                 anyMatch(s -> s.equals(node.getCat()))) {
-            if (nLabel(node, "CJ") > 0)
-                return firstWithLabel(node, "CJ");
+            if (nLabel(node, cjLabel) > 0)
+                return firstWithLabel(node, cjLabel);
             return 0;
         } else if (node.getCat().equals("CVP")) {
-            if (nLabel(node, "CJ") > 0)
-                return firstWithLabel(node, "CJ");
+            if (nLabel(node, cjLabel) > 0)
+                return firstWithLabel(node, cjLabel);
             return 0;
         } else if (node.getCat().equals("NP")) {
-            String[] heads1 = new String[]{"NN", "NE", "MPN", "CNP", "NP", "NM"};
-            String[] heads2 = new String[]{"PPER", "PIS", "CARD", "AP",
-                    "PRELS", "PIAT", "PDS", "PIDAT", "FM", "PPOSAT", "TRUNC"};
-            String[] heads3 = new String[]{"ADJA", "MTA", "CAP", "PRF", "ADV", "XY"};
-            String[] heads4 = new String[]{"ART", "PP", "KOKOM"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
-            if (nCat(node, heads2) > 0)
-                return firstWithCat(node, heads2);
-            if (nCat(node, heads3) > 0)
-                return firstWithCat(node, heads3);
-            if (nCat(node, heads4) > 0)
-                return firstWithCat(node, heads4);
+            if (nCat(node, npHeads1) > 0)
+                return firstWithCat(node, npHeads1);
+            if (nCat(node, npHeads2) > 0)
+                return firstWithCat(node, npHeads2);
+            if (nCat(node, npHeads3) > 0)
+                return firstWithCat(node, npHeads3);
+            if (nCat(node, npHeads4) > 0)
+                return firstWithCat(node, npHeads4);
             return 0;
         } else if (node.getCat().equals("PP")) {
-            String[] heads1 = new String[]{"APPR", "APPRART", "PROAV", "APPO", "CAC",
-                    "KOUS", "KOUI", "PTKA", "ISU", "MPN"};
-            String[] heads2 = new String[]{"CPP", "FM", "ADV", "ADJD", "ADJA", "KOKOM"};
-            String[] heads3 = new String[]{"AP", "CARD"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
-            if (nCat(node, heads2) > 0)
-                return firstWithCat(node, heads2);
-            if (nCat(node, heads3) > 0)
-                return firstWithCat(node, heads3);
+            if (nCat(node, ppHeads1) > 0)
+                return firstWithCat(node, ppHeads1);
+            if (nCat(node, ppHeads2) > 0)
+                return firstWithCat(node, ppHeads2);
+            if (nCat(node, ppHeads3) > 0)
+                return firstWithCat(node, ppHeads3);
             return 0;
         } else if (node.getCat().equals("MPN")) {
-            String[] heads1 = new String[]{"MPN", "FM", "NE"};
-            String[] heads2 = new String[]{"NN", "CARD", "XY"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
-            if (nCat(node, heads2) > 0)
-                return firstWithCat(node, heads2);
+            if (nCat(node, mpnHeads1) > 0)
+                return firstWithCat(node, mpnHeads1);
+            if (nCat(node, mpnHeads2) > 0)
+                return firstWithCat(node, mpnHeads2);
             return 0;
         } else if (node.getCat().equals("CS")) {
-            String[] heads1 = new String[]{"S", "CS"};
-            String[] heads2 = new String[]{"VVFIN"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
-            if (nCat(node, heads2) > 0)
-                return firstWithCat(node, heads2);
+            if (nCat(node, csHeads1) > 0)
+                return firstWithCat(node, csHeads1);
+            if (nCat(node, csHeads2) > 0)
+                return firstWithCat(node, csHeads2);
             return 0;
         } else if (node.getCat().equals("NM")) {
-            String[] heads1 = new String[]{"CARD", "NN"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
+            if (nCat(node, nmHeads1) > 0)
+                return firstWithCat(node, nmHeads1);
             return 0;
         } else if (node.getCat().equals("MTA")) {
-            String[] heads1 = new String[]{"NE", "NN"};
-            String[] heads2 = new String[]{"TRUNC"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
-            if (nCat(node, heads2) > 0)
-                return firstWithCat(node, heads2);
+            if (nCat(node, mtaHeads1) > 0)
+                return firstWithCat(node, mtaHeads1);
+            if (nCat(node, mtaHeads2) > 0)
+                return firstWithCat(node, mtaHeads2);
             return 0;
         } else if (node.getCat().equals("DL")) {
-            if (nLabel(node, "DH") > 0)
-                return firstWithLabel(node, "DH");
+            if (nLabel(node, dhLabel) > 0)
+                return firstWithLabel(node, dhLabel);
             return 0;
         } else if (node.getCat().equals("ISU")) {
-            String[] heads1 = new String[]{"NN"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
+            if (nCat(node, isuHeads1) > 0)
+                return firstWithCat(node, isuHeads1);
             return 0;
         } else if (node.getCat().equals("QL")) {
-            String[] heads1 = new String[]{"CARD"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
+            if (nCat(node, qlHeads1) > 0)
+                return firstWithCat(node, qlHeads1);
             return 0;
         } else if (node.getCat().equals("CH")) {
-            String[] heads1 = new String[]{"NE"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
+            if (nCat(node, chHeads1) > 0)
+                return firstWithCat(node, chHeads1);
             return 0;
         } else if (node.getCat().equals("--")) {
             return 0;
@@ -11,11 +11,39 @@ import standrews.constbase.ConstNode;
 import java.util.stream.Stream;
 
 public class TigerHeadFinder extends HeadFinder {
+    private static final int[] hdLabel = labels("HD");
+    private static final int[] cjLabel = labels("CJ");
+    private static final int[] dhLabel = labels("DH");
+    private static final int[] npHeads1 = cats("NN", "NE", "CNP", "NP", "PN", "NM");
+    private static final int[] npHeads2 = cats("PPER", "PIS", "CARD", "AP", "PWS", "PRELS", "PIAT", "PDS",
+            "FM", "PPOSAT", "TRUNC");
+    private static final int[] npHeads3 = cats("ADJA", "MTA", "CAP", "PRF", "ADV", "XY", "CH");
+    private static final int[] npHeads4 = cats("ART", "PP", "KOKOM", "S");
+    private static final int[] pnHeads1 = cats("NP", "CNP", "NE", "NN", "FM");
+    private static final int[] pnHeads2 = cats("S", "CS", "PP", "CPP", "CARD", "VP", "ADJD", "ADJA", "VVPP",
+            "AP", "CH", "CO", "CAP", "XY", "TRUNC", "VVINF", "AVP", "ADV");
+    private static final int[] ppHeads1 = cats("APPR", "APPRART", "PROAV", "APPO", "CAC", "KOUS", "KOUI",
+            "PTKA", "ISU");
+    private static final int[] ppHeads2 = cats("CPP", "CAVP", "FM", "ADV", "ADJD", "ADJA", "KOKOM");
+    private static final int[] ppHeads3 = cats("AP", "ART", "CARD", "PP", "NN", "NM", "NE");
+    private static final int[] ppHeads4 = cats("VP", "PDS");
+    private static final int[] csHeads1 = cats("S", "CS");
+    private static final int[] csHeads2 = cats("VVFIN", "VVIMP");
+    private static final int[] nmHeads1 = cats("CARD", "NN");
+    private static final int[] mtaHeads1 = cats("NE", "NN");
+    private static final int[] mtaHeads2 = cats("TRUNC");
+    private static final int[] isuHeads1 = cats("NN");
+    private static final int[] isuHeads2 = cats("PIS", "ADJD");
+    private static final int[] isuHeads3 = cats("ADV", "$.");
+    private static final int[] qlHeads1 = cats("CARD");
+    private static final int[] chHeads1 = cats("NE");
+    private static final int[] chHeads2 = cats("FM", "ITJ", "ADV", "CARD");
+
     protected int getHeadIndex(ConstInternal node) {
-        if (nLabel(node, "HD") == 1) {
-            return firstWithLabel(node, "HD");
-        } else if (nLabel(node, "HD") > 1) {
-            return firstWithLabel(node, "HD");
+        if (nLabel(node, hdLabel) == 1) {
+            return firstWithLabel(node, hdLabel);
+        } else if (nLabel(node, hdLabel) > 1) {
+            return firstWithLabel(node, hdLabel);
         } else if (node.getCat().equals("VP")) {
             return 0;
         } else if (node.getCat().equals("S")) {
@@ -27,97 +55,72 @@ public class TigerHeadFinder extends HeadFinder {
         } else if (Stream.of("CPP", "CVP", "CNP", "CAP", "CAVP",
                         "CO", "CAC", "CVZ", "CCP").
                 anyMatch(s -> s.equals(node.getCat()))) {
-            if (nLabel(node, "CJ") > 0)
-                return firstWithLabel(node, "CJ");
+            if (nLabel(node, cjLabel) > 0)
+                return firstWithLabel(node, cjLabel);
             return 0;
         } else if (node.getCat().equals("NP")) {
-            String[] heads1 = new String[]{"NN", "NE", "CNP", "NP", "PN", "NM"};
-            String[] heads2 = new String[]{"PPER", "PIS", "CARD", "AP", "PWS",
-                    "PRELS", "PIAT", "PDS", "FM", "PPOSAT", "TRUNC"};
-            String[] heads3 = new String[]{"ADJA", "MTA", "CAP", "PRF", "ADV", "XY", "CH"};
-            String[] heads4 = new String[]{"ART", "PP", "KOKOM", "S"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
-            if (nCat(node, heads2) > 0)
-                return firstWithCat(node, heads2);
-            if (nCat(node, heads3) > 0)
-                return firstWithCat(node, heads3);
-            if (nCat(node, heads4) > 0)
-                return firstWithCat(node, heads4);
+            if (nCat(node, npHeads1) > 0)
+                return firstWithCat(node, npHeads1);
+            if (nCat(node, npHeads2) > 0)
+                return firstWithCat(node, npHeads2);
+            if (nCat(node, npHeads3) > 0)
+                return firstWithCat(node, npHeads3);
+            if (nCat(node, npHeads4) > 0)
+                return firstWithCat(node, npHeads4);
             return 0;
         } else if (node.getCat().equals("PN")) {
-            String[] heads1 = new String[]{"NP", "CNP", "NE", "NN", "FM"};
-            String[] heads2 = new String[]{"S", "CS", "PP", "CPP", "CARD",
-                    "VP", "ADJD", "ADJA", "VVPP", "AP", "CH", "CO", "CAP", "XY",
-                    "TRUNC", "VVINF", "AVP", "ADV"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
-            if (nCat(node, heads2) > 0)
-                return firstWithCat(node, heads2);
+            if (nCat(node, pnHeads1) > 0)
+                return firstWithCat(node, pnHeads1);
+            if (nCat(node, pnHeads2) > 0)
+                return firstWithCat(node, pnHeads2);
             return 0;
         } else if (node.getCat().equals("PP")) {
-            String[] heads1 = new String[]{"APPR", "APPRART", "PROAV", "APPO", "CAC",
-                    "KOUS", "KOUI", "PTKA", "ISU"};
-            String[] heads2 = new String[]{"CPP", "CAVP", "FM", "ADV", "ADJD", "ADJA", "KOKOM"};
-            String[] heads3 = new String[]{"AP", "ART", "CARD", "PP", "NN", "NM", "NE"};
-            String[] heads4 = new String[]{"VP", "PDS"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
-            if (nCat(node, heads2) > 0)
-                return firstWithCat(node, heads2);
-            if (nCat(node, heads3) > 0)
-                return firstWithCat(node, heads3);
-            if (nCat(node, heads4) > 0)
-                return firstWithCat(node, heads4);
+            if (nCat(node, ppHeads1) > 0)
+                return firstWithCat(node, ppHeads1);
+            if (nCat(node, ppHeads2) > 0)
+                return firstWithCat(node, ppHeads2);
+            if (nCat(node, ppHeads3) > 0)
+                return firstWithCat(node, ppHeads3);
+            if (nCat(node, ppHeads4) > 0)
+                return firstWithCat(node, ppHeads4);
             return 0;
         } else if (node.getCat().equals("CS")) {
-            String[] heads1 = new String[]{"S", "CS"};
-            String[] heads2 = new String[]{"VVFIN", "VVIMP"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
-            if (nCat(node, heads2) > 0)
-                return firstWithCat(node, heads2);
+            if (nCat(node, csHeads1) > 0)
+                return firstWithCat(node, csHeads1);
+            if (nCat(node, csHeads2) > 0)
+                return firstWithCat(node, csHeads2);
             return 0;
         } else if (node.getCat().equals("NM")) {
-            String[] heads1 = new String[]{"CARD", "NN"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
+            if (nCat(node, nmHeads1) > 0)
+                return firstWithCat(node, nmHeads1);
             return 0;
         } else if (node.getCat().equals("MTA")) {
-            String[] heads1 = new String[]{"NE", "NN"};
-            String[] heads2 = new String[]{"TRUNC"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
-            if (nCat(node, heads2) > 0)
-                return firstWithCat(node, heads2);
+            if (nCat(node, mtaHeads1) > 0)
+                return firstWithCat(node, mtaHeads1);
+            if (nCat(node, mtaHeads2) > 0)
+                return firstWithCat(node, mtaHeads2);
             return 0;
         } else if (node.getCat().equals("DL")) {
-            if (nLabel(node, "DH") > 0)
-                return firstWithLabel(node, "DH");
+            if (nLabel(node, dhLabel) > 0)
+                return firstWithLabel(node, dhLabel);
             return 0;
         } else if (node.getCat().equals("ISU")) {
-            String[] heads1 = new String[]{"NN"};
-            String[] heads2 = new String[]{"PIS", "ADJD"};
-            String[] heads3 = new String[]{"ADV", "$."};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
-            if (nCat(node, heads2) > 0)
-                return firstWithCat(node, heads2);
-            if (nCat(node, heads3) > 0)
-                return firstWithCat(node, heads3);
+            if (nCat(node, isuHeads1) > 0)
+                return firstWithCat(node, isuHeads1);
+            if (nCat(node, isuHeads2) > 0)
+                return firstWithCat(node, isuHeads2);
+            if (nCat(node, isuHeads3) > 0)
+                return firstWithCat(node, isuHeads3);
             return 0;
         } else if (node.getCat().equals("QL")) {
-            String[] heads1 = new String[]{"CARD"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
+            if (nCat(node, qlHeads1) > 0)
+                return firstWithCat(node, qlHeads1);
             return 0;
         } else if (node.getCat().equals("CH")) {
-            String[] heads1 = new String[]{"NE"};
-            String[] heads2 = new String[]{"FM", "ITJ", "ADV", "CARD"};
-            if (nCat(node, heads1) > 0)
-                return firstWithCat(node, heads1);
-            if (nCat(node, heads2) > 0)
-                return firstWithCat(node, heads2);
+            if (nCat(node, chHeads1) > 0)
+                return firstWithCat(node, chHeads1);
+            if (nCat(node, chHeads2) > 0)
+                return firstWithCat(node, chHeads2);
             return 0;
         } else {
             System.err.println(node.getCat());
@@ -5,18 +5,33 @@
 package standrews.constextract;
 
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.common.primitives.Pair;
+import org.nd4j.linalg.api.buffer.DataType;
+import standrews.aux_.PhaseMetrics;
+import standrews.classification.ActionResponseVectorGenerator;
+import standrews.classification.CatResponseVectorGenerator;
 import standrews.classification.FeatureVectorGenerator;
 import standrews.classification.FellowResponseVectorGenerator;
 import standrews.classification.MLP;
 import standrews.classification.MLPFactory;
+import standrews.classification.MultiHeadMLP;
+import standrews.classification.ProjectedFirstLayer;
+import standrews.classification.ResponseVectorGenerator;
+import standrews.classification.SparseFeatures;
 import standrews.constautomata.HatConfig;
+import standrews.constbase.ConstLeaf;
+import standrews.constbase.EnhancedConstLeaf;
 import standrews.constmethods.HatParser;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
-public class HatExtractor extends SimpleExtractor {
+public class HatExtractor extends SimpleExtractor implements HatObserver {
     public static final String shift = HatParser.shift;
     public static final String reduceUpHat = HatParser.reduceUpHat;
     public static final String reduceToHat = HatParser.reduceToHat;
@@ -27,14 +42,58 @@ public class HatExtractor extends SimpleExtractor {
      */
     private MLP fellowClassifier;
 
+    /**
+     * If not null, network with hidden layers shared by the action, category and fellow
+     * classifiers, which are then its heads. See MultiHeadMLP.
+     */
+    private MultiHeadMLP sharedClassifier = null;
+
+    private static final int actionHead = 0;
+    private static final int catHead = 1;
+    private static final int fellowHead = 2;
+
+    /**
+     * Projected first layers of the classifiers if these are used for inference, otherwise null.
+     */
+    private Map<MLP, ProjectedFirstLayer> projectedLayers = null;
+
+    /**
+     * Projections of embeddings of sentences being parsed, by sentence id and classifier.
+     */
+    private final Map<String, Map<MLP, float[][][]>> sentenceProjections = new HashMap<>();
+
     public HatExtractor(final FeatureVectorGenerator featureVectorGenerator,
                         final MLPFactory mlpFactory, int networkMiniBatchSize, double tol, int patience) {
         super(featureVectorGenerator, mlpFactory, networkMiniBatchSize, tol, patience);
 
         this.fellowClassifier = mlpFactory.makeMLP(new FellowResponseVectorGenerator(), networkMiniBatchSize, tol, patience);
+        fellowClassifier.setFeatureVectorGenerator(featureVectorGenerator);
 //		completeHatClassifiers(treebank);
     }
 
+    /**
+     * Extractor whose classifiers are the heads of one network, made by makeSharedClassifier.
+     */
+    public HatExtractor(final FeatureVectorGenerator featureVectorGenerator, final MultiHeadMLP sharedClassifier) {
+        super(featureVectorGenerator, sharedClassifier.getHead(actionHead), sharedClassifier.getHead(catHead));
+        this.fellowClassifier = sharedClassifier.getHead(fellowHead);
+        this.sharedClassifier = sharedClassifier;
+        sharedClassifier.setFeatureVectorGenerator(featureVectorGenerator);
+    }
+
+    /**
+     * Network with hidden layers shared by heads for action, category and fellow.
+     */
+    public static MultiHeadMLP makeSharedClassifier(final FeatureVectorGenerator featureVectorGenerator,
+                                                    final MLPFactory mlpFactory, int networkMiniBatchSize,
+                                                    double tol, int patience) {
+        return mlpFactory.makeMultiHeadMLP(new ResponseVectorGenerator[]{
+                        new ActionResponseVectorGenerator(),
+                        new CatResponseVectorGenerator(featureVectorGenerator.getCatIndexMap()),
+                        new FellowResponseVectorGenerator()},
+                new String[]{"action", "category", "fellow"}, networkMiniBatchSize, tol, patience);
+    }
+
     public HatExtractor(final FeatureVectorGenerator featureVectorGenerator,
                         int networkMiniBatchSize, double tol, int patience,
                         String actionFilePath,
@@ -47,6 +106,7 @@ public class HatExtractor extends SimpleExtractor {
             this.fellowClassifier = new MLP(MultiLayerNetwork.load(new File(fellowFilePath), false),
                     new FellowResponseVectorGenerator(), networkMiniBatchSize, tol, patience,
                     new File("C:\\my_stuff\\dissertation\\discontinuous_parser_windows\\tmp\\fellowValidationLosses.csv"));
+            fellowClassifier.setFeatureVectorGenerator(featureVectorGenerator);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -54,16 +114,36 @@ public class HatExtractor extends SimpleExtractor {
     }
 
     public void train() {
+        if (sharedClassifier != null) {
+            sharedClassifier.train();
+            return;
+        }
         super.train();
         fellowClassifier.train();
     }
 
+    /**
+     * Sums of the losses of the observations for the three classifiers, which are computed
+     * at the same time if training concurrently.
+     */
     public List<Double> validateMiniBatch() {
-        double actionLossScore = actionClassifier.validateMiniBatch();
-        double catLossScore = catClassifier.validateMiniBatch();
-        double fellowLossScore = fellowClassifier.validateMiniBatch();
+        if (sharedClassifier != null) {
+            final double[] lossScores = sharedClassifier.validateMiniBatch();
+            return List.of(actionClassifier.isTraining() ? lossScores[actionHead] : 0,
+                    catClassifier.isTraining() ? lossScores[catHead] : 0,
+                    fellowClassifier.isTraining() ? lossScores[fellowHead] : 0);
+        }
+        final Future<Double> actionLossScore = actionClassifier.startValidateMiniBatch();
+        final Future<Double> catLossScore = catClassifier.startValidateMiniBatch();
+        final Future<Double> fellowLossScore = fellowClassifier.startValidateMiniBatch();
 
-        return List.of(actionLossScore, catLossScore, fellowLossScore);
+        try {
+            return List.of(MLP.await(actionLossScore), MLP.await(catLossScore), MLP.await(fellowLossScore));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return null;
+        }
     }
 
     public MLP getFellowClassifier() {
@@ -72,22 +152,53 @@ public class HatExtractor extends SimpleExtractor {
 
     public void extract(final HatConfig config, final String[] action) {
 //		final Features actionFeats = extract(config);
-        final double[] featureVector = featureVectorGenerator.generateFeatureVector(config);
-        actionClassifier.addObservation(featureVector, action[0]);
+        final SparseFeatures features = new SparseFeatures();
+        PhaseMetrics.get().start(PhaseMetrics.Phase.FEATURES);
+        try {
+            featureVectorGenerator.generateSparseFeatures(config, features);
+        } finally {
+            PhaseMetrics.get().end();
+        }
+        addObservation(features.compact(), action[0], secondaryResponse(config, action));
+    }
+
+    /**
+     * Add observation to the action classifier, and to the category or fellow classifier
+     * if the action needs one.
+     *
+     * @param features Compact sparse features, shared between the classifiers.
+     * @param response Category or compressed fellow index, as from secondaryResponse.
+     */
+    public void addObservation(final SparseFeatures features, final String action, final Object response) {
+        PhaseMetrics.get().countConfiguration();
+        if (sharedClassifier != null) {
+            sharedClassifier.addObservation(features, new Object[]{action,
+                    action.equals(reduceUpHat) ? response : null,
+                    action.equals(reduceToHat) || action.equals(reduceFromHat) ? response : null});
+            return;
+        }
+        actionClassifier.addObservation(features, action);
+        if (action.equals(reduceUpHat)) {
+            catClassifier.addObservation(features, response);
+        } else if (action.equals(reduceToHat) || action.equals(reduceFromHat)) {
+            fellowClassifier.addObservation(features, response);
+        }
+    }
+
+    /**
+     * The response of the category or fellow classifier for the action, or null if neither applies.
+     */
+    public static Object secondaryResponse(final HatConfig config, final String[] action) {
         if (action[0].equals(reduceUpHat)) {
-//			final Features catFeats = extract(config);
-            catClassifier.addObservation(featureVector, action[1]);
+            return action[1];
         } else if (action[0].equals(reduceToHat) || action[0].equals(reduceFromHat)) {
             int fellowIndex = Integer.parseInt(action[1]);
-            final int compressedFellowIndex = HatParser.actionToCompression(config, action[0], fellowIndex);
-//			final Features fellowFeats = extract(config);
-//			fellowFeats.putString("action", action[0]);
-
-            fellowClassifier.addObservation(featureVector, compressedFellowIndex);
+            return HatParser.actionToCompression(config, action[0], fellowIndex);
         }
+        return null;
     }
 
-    protected double[] extract(final HatConfig config) {
+    protected float[] extract(final HatConfig config) {
 //		final Features feats = super.extract(config);
 //		extractHatCats(feats, config);
 //		extractHatPoss(feats, config);
@@ -104,9 +215,33 @@ public class HatExtractor extends SimpleExtractor {
         return	featureVectorGenerator.generateFeatureVector(config);
     }
 
+    /**
+     * Save the classifiers, or the network shared by them to the first file only; the
+     * category and fellow files are then not written, and a shared network cannot be
+     * loaded as separate classifiers.
+     */
     public void saveClassifiers(String actionFilePath, String catFilePath, String fellowFilePath) throws IOException {
-        super.saveClassifiers(actionFilePath, catFilePath);
-        fellowClassifier.save(fellowFilePath);
+        if (sharedClassifier != null) {
+            sharedClassifier.save(actionFilePath);
+            logger().fine("Shared network saved to " + actionFilePath + "; not to " + catFilePath + " or " + fellowFilePath);
+            return;
+        }
+        final Future<?> actionSaved = actionClassifier.startSave(actionFilePath);
+        final Future<?> catSaved = catClassifier.startSave(catFilePath);
+        final Future<?> fellowSaved = fellowClassifier.startSave(fellowFilePath);
+        MLP.await(actionSaved);
+        MLP.await(catSaved);
+        MLP.await(fellowSaved);
+    }
+
+    /**
+     * As for SimpleExtractor; has no effect if the classifiers share one network.
+     */
+    public void setConcurrentTraining(final boolean concurrent) {
+        if (sharedClassifier != null)
+            return;
+        super.setConcurrentTraining(concurrent);
+        fellowClassifier.setConcurrentTraining(concurrent);
     }
 
 //	protected void completeHatClassifiers(ConstTreebank treebank) {
@@ -134,12 +269,21 @@ public class HatExtractor extends SimpleExtractor {
 //		}
 //	}
 
+    public void setReferenceDataType(DataType referenceDataType) {
+        super.setReferenceDataType(referenceDataType);
+        fellowClassifier.setReferenceDataType(referenceDataType);
+    }
+
     public void startValidating() {
+        if (sharedClassifier != null)
+            sharedClassifier.startValidating();
         super.startValidating();
         fellowClassifier.startValidating();
     }
 
     public void stopValidating() {
+        if (sharedClassifier != null)
+            sharedClassifier.stopValidating();
         super.stopValidating();
         fellowClassifier.stopValidating();
     }
@@ -148,12 +292,291 @@ public class HatExtractor extends SimpleExtractor {
         return super.isTraining() || fellowClassifier.isTraining();
     }
 
+    /**
+     * Use projected first layers for inference, see ProjectedFirstLayer, or stop doing so.
+     * The projections are made from the classifiers in their current state, so this
+     * should be done after training. Not done if the classifiers share one network.
+     */
+    public void setProjectedInference(final boolean projected) {
+        sentenceProjections.clear();
+        projectedLayers = null;
+        if (projected && sharedClassifier == null) {
+            final Map<MLP, ProjectedFirstLayer> layers = new IdentityHashMap<>();
+            for (MLP classifier : List.of(actionClassifier, catClassifier, fellowClassifier)) {
+                final ProjectedFirstLayer layer = classifier.makeProjectedFirstLayer(featureVectorGenerator);
+                if (layer == null) {
+                    logger().warning("Could not project first layers of classifiers");
+                    return;
+                }
+                layers.put(classifier, layer);
+            }
+            projectedLayers = layers;
+        }
+    }
+
+    /**
+     * Do inference with plain Java copies of the classifiers, see FloatNetwork, or stop doing so.
+     * As with projection, this should be done after training.
+     */
+    public void setFloatInference(final boolean floatInference) {
+        if (sharedClassifier != null) {
+            sharedClassifier.setFloatInference(floatInference);
+            return;
+        }
+        for (MLP classifier : List.of(actionClassifier, catClassifier, fellowClassifier))
+            classifier.setFloatInference(floatInference);
+        setProjectedInference(projectedLayers != null);
+    }
+
+    /**
+     * Start keeping samples of the feature vectors observed by the classifiers, for quantization.
+     */
+    public void startCalibrating(final int sampleSize) {
+        for (MLP classifier : List.of(actionClassifier, catClassifier, fellowClassifier))
+            classifier.startCalibrating(sampleSize);
+    }
+
+    /**
+     * Quantize the classifiers, calibrated on the samples, and report how much their outputs drift.
+     * Inference is then done with the quantized classifiers. Their networks are released,
+     * so they should be saved before, and first layers are no longer projected.
+     */
+    public void quantize() {
+        if (sharedClassifier != null) {
+            logger().warning("Could not quantize classifiers that share one network");
+            return;
+        }
+        final String[] names = {"action", "category", "fellow"};
+        final List<MLP> classifiers = List.of(actionClassifier, catClassifier, fellowClassifier);
+        for (int i = 0; i < classifiers.size(); i++) {
+            final double[] drift = classifiers.get(i).quantize();
+            if (drift == null)
+                logger().warning("Could not quantize " + names[i] + " classifier");
+            else
+                logger().info("Quantized " + names[i] + " classifier; same best label: " + drift[0] +
+                        "; mean total variation distance: " + drift[1] + "; max difference: " + drift[2]);
+        }
+        setProjectedInference(projectedLayers != null);
+    }
+
+    /**
+     * If first layers are projected, compute projections of the sentence's embeddings.
+     */
+    @Override
+    public void startSentence(final HatConfig config) {
+        if (projectedLayers != null)
+            sentenceProjections(config);
+    }
+
+    @Override
+    public void endSentence(final HatConfig config) {
+        sentenceProjections.remove(config.getId());
+    }
+
+    private Map<MLP, float[][][]> sentenceProjections(final HatConfig config) {
+        return sentenceProjections.computeIfAbsent(config.getId(), id -> {
+            final Set<ConstLeaf> leaves = new TreeSet<>();
+            for (int i = 0; i < config.stackLength(); i++)
+                leaves.addAll(Arrays.asList(config.getStackLeft(i).getLeaves()));
+            for (int i = 0; i < config.inputLength(); i++)
+                leaves.add(config.getInputLeft(i));
+            final float[][] embeddings = new float[leaves.size()][];
+            for (ConstLeaf leaf : leaves)
+                embeddings[leaf.getIndex()] = ((EnhancedConstLeaf) leaf).getWordEmbedding();
+            final Map<MLP, float[][][]> projections = new IdentityHashMap<>();
+            projectedLayers.forEach((classifier, layer) -> projections.put(classifier, layer.projectSentence(embeddings)));
+            return projections;
+        });
+    }
+
+    /**
+     * Are the classifiers given sparse features rather than feature vectors? This is so
+     * if first layers are projected, or if all classifiers are run in plain Java.
+     */
+    private boolean sparseInputs() {
+        if (sharedClassifier != null)
+            return sharedClassifier.isFloatInference();
+        return projectedLayers != null || (actionClassifier.isFloatInference() &&
+                catClassifier.isFloatInference() && fellowClassifier.isFloatInference());
+    }
+
+    /**
+     * Inputs of the classifiers for configurations: feature vectors, or sparse features.
+     */
+    private class Inputs {
+        private final List<HatConfig> configs;
+        private final float[][] featureVectors;
+        private final List<SparseFeatures> sparseFeatures;
+
+        /**
+         * If the classifiers share one network, the output of each head for all configurations,
+         * once computed.
+         */
+        private double[][][] sharedScores = null;
+
+        Inputs(final List<HatConfig> configs) {
+            this.configs = configs;
+            if (!sparseInputs()) {
+                featureVectors = new float[configs.size()][];
+                for (int i = 0; i < configs.size(); i++)
+                    featureVectors[i] = featureVectorGenerator.generateFeatureVector(configs.get(i));
+                sparseFeatures = null;
+            } else {
+                featureVectors = null;
+                sparseFeatures = new ArrayList<>(configs.size());
+                for (HatConfig config : configs) {
+                    final SparseFeatures features = new SparseFeatures();
+                    featureVectorGenerator.generateSparseFeatures(config, features);
+                    sparseFeatures.add(features);
+                }
+            }
+        }
+
+        /**
+         * Inputs for one of the configurations of other inputs.
+         */
+        Inputs(final Inputs inputs, final int i) {
+            this.configs = List.of(inputs.configs.get(i));
+            this.featureVectors = inputs.featureVectors == null ? null : new float[][]{inputs.featureVectors[i]};
+            this.sparseFeatures = inputs.sparseFeatures == null ? null : List.of(inputs.sparseFeatures.get(i));
+            if (inputs.sharedScores != null) {
+                sharedScores = new double[inputs.sharedScores.length][][];
+                for (int h = 0; h < sharedScores.length; h++)
+                    sharedScores[h] = new double[][]{inputs.sharedScores[h][i]};
+            }
+        }
+
+        /**
+         * Output of each head of the shared network for all configurations, computed with
+         * one pass through the shared layers the first time any head is asked for.
+         */
+        private double[][][] sharedScores() {
+            if (sharedScores == null)
+                sharedScores = sparseFeatures == null ? sharedClassifier.scores(featureVectors) :
+                        sharedClassifier.scores(sparseFeatures, featureVectorGenerator);
+            return sharedScores;
+        }
+
+        /**
+         * Output of classifier for the configurations with the given indices, or for all if null.
+         */
+        double[][] scores(final MLP classifier, final List<Integer> indices) {
+            final List<Integer> selected = indices != null ? indices :
+                    IntStream.range(0, configs.size()).boxed().collect(Collectors.toList());
+            if (sharedClassifier != null) {
+                final double[][] headScores = sharedScores()[classifier == actionClassifier ? actionHead :
+                        classifier == catClassifier ? catHead : fellowHead];
+                return selected.stream().map(i -> headScores[i]).toArray(double[][]::new);
+            } else if (sparseFeatures == null) {
+                return classifier.scores(selected.stream().map(i -> featureVectors[i]).toArray(float[][]::new));
+            } else if (projectedLayers == null) {
+                final List<SparseFeatures> features = new ArrayList<>(selected.size());
+                for (int i : selected)
+                    features.add(sparseFeatures.get(i));
+                return classifier.scores(features, featureVectorGenerator);
+            } else {
+                final List<SparseFeatures> features = new ArrayList<>(selected.size());
+                final List<float[][][]> projections = new ArrayList<>(selected.size());
+                for (int i : selected) {
+                    features.add(sparseFeatures.get(i));
+                    projections.add(sentenceProjections(configs.get(i)).get(classifier));
+                }
+                return projectedLayers.get(classifier).scores(features, projections);
+            }
+        }
+    }
+
     @Override
     public Iterator<String[]> predict(final HatConfig config) {
 //		final Features actionFeats = extract(config);
-        final double[] featureVector = featureVectorGenerator.generateFeatureVector(config);
-        final String[] acs = (String[]) actionClassifier.predictAll(featureVector);
-        return new ActionIterator(config, acs);
+        final Inputs inputs = new Inputs(List.of(config));
+        final String[] acs = (String[]) actionClassifier.labels(inputs.scores(actionClassifier, null))[0];
+        return new ActionIterator(config, acs, inputs);
+    }
+
+    /**
+     * Rank actions for all configurations with one call of the action classifier.
+     * Where the best action needs a category or fellow, these are also found with
+     * one call of the category or fellow classifier for all such configurations.
+     * Any other category or fellow is determined only if the iterator gets to it.
+     */
+    @Override
+    public List<Iterator<String[]>> predict(final List<HatConfig> configs) {
+        final int n = configs.size();
+        final Inputs inputs = new Inputs(configs);
+        final Object[][] acss = actionClassifier.labels(inputs.scores(actionClassifier, null));
+
+        final List<Integer> catIndices = new ArrayList<>();
+        final List<Integer> fellowIndices = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            final String best = (String) acss[i][0];
+            if (best.equals(reduceUpHat))
+                catIndices.add(i);
+            else if (best.equals(reduceToHat) || best.equals(reduceFromHat))
+                fellowIndices.add(i);
+        }
+        final String[] cats = new String[n];
+        if (!catIndices.isEmpty()) {
+            final Object[][] catss = catClassifier.labels(inputs.scores(catClassifier, catIndices));
+            for (int j = 0; j < catIndices.size(); j++)
+                cats[catIndices.get(j)] = (String) catss[j][0];
+        }
+        final Integer[][] fellowss = new Integer[n][];
+        if (!fellowIndices.isEmpty()) {
+            final Object[][] predicted = fellowClassifier.labels(inputs.scores(fellowClassifier, fellowIndices));
+            for (int j = 0; j < fellowIndices.size(); j++)
+                fellowss[fellowIndices.get(j)] = (Integer[]) predicted[j];
+        }
+
+        final List<Iterator<String[]>> actions = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            final ActionIterator iterator = new ActionIterator(configs.get(i), (String[]) acss[i], new Inputs(inputs, i));
+            iterator.cat = cats[i];
+            iterator.fellowRanking = fellowss[i];
+            actions.add(iterator);
+        }
+        return actions;
+    }
+
+    /**
+     * All actions for each configuration, with log-probabilities. The log-probability
+     * of a reduction with a category or fellow adds that of the category or fellow.
+     * Each classifier is called once for all configurations.
+     *
+     * @param nCats How many of the most probable categories to consider.
+     */
+    public List<List<Pair<String[], Double>>> scoreActions(final List<HatConfig> configs, final int nCats) {
+        final int n = configs.size();
+        final Inputs inputs = new Inputs(configs);
+        final List<Pair<Object[], double[]>> acss = actionClassifier.ranked(inputs.scores(actionClassifier, null));
+        final List<Pair<Object[], double[]>> catss = catClassifier.ranked(inputs.scores(catClassifier, null));
+        final List<Pair<Object[], double[]>> fellowss = fellowClassifier.ranked(inputs.scores(fellowClassifier, null));
+
+        final List<List<Pair<String[], Double>>> scored = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            final List<Pair<String[], Double>> actions = new ArrayList<>();
+            final Object[] acs = acss.get(i).getKey();
+            final double[] acProbs = acss.get(i).getValue();
+            for (int a = 0; a < acs.length; a++) {
+                final String ac = (String) acs[a];
+                final double acLogProb = Math.log(acProbs[a]);
+                if (ac.equals(shift)) {
+                    actions.add(new Pair<>(new String[]{ac}, acLogProb));
+                } else if (ac.equals(reduceUpHat)) {
+                    final Object[] cats = catss.get(i).getKey();
+                    final double[] catProbs = catss.get(i).getValue();
+                    for (int c = 0; c < Math.min(nCats, cats.length); c++)
+                        actions.add(new Pair<>(new String[]{ac, (String) cats[c]}, acLogProb + Math.log(catProbs[c])));
+                } else {
+                    final Object[] fellows = fellowss.get(i).getKey();
+                    final double[] fellowProbs = fellowss.get(i).getValue();
+                    for (int f = 0; f < fellows.length; f++)
+                        actions.add(new Pair<>(new String[]{ac, fellows[f].toString()}, acLogProb + Math.log(fellowProbs[f])));
+                }
+            }
+            scored.add(actions);
+        }
+        return scored;
     }
 
     private class ActionIterator implements Iterator<String[]> {
@@ -162,9 +585,49 @@ public class HatExtractor extends SimpleExtractor {
         private String ac = null;
         private LinkedList<Integer> fellows;
         private String[] action = null;
-        public ActionIterator(final HatConfig config, String[] acs) {
+
+        /**
+         * Inputs used for action, reused for category and fellow
+         * as long as configuration is unchanged.
+         */
+        private Inputs inputs;
+        private int modificationCount;
+
+        /**
+         * Category and ranked fellows if already predicted for this configuration, otherwise null.
+         */
+        private String cat = null;
+        private Integer[] fellowRanking = null;
+
+        public ActionIterator(final HatConfig config, String[] acs, Inputs inputs) {
             this.config = config;
             this.acs = new LinkedList(Arrays.asList(acs));
+            this.inputs = inputs;
+            this.modificationCount = config.getModificationCount();
+        }
+
+        private Inputs inputs() {
+            if (modificationCount != config.getModificationCount()) {
+                inputs = new Inputs(List.of(config));
+                modificationCount = config.getModificationCount();
+                cat = null;
+                fellowRanking = null;
+            }
+            return inputs;
+        }
+
+        private String cat() {
+            final Inputs inputs = inputs();
+            if (cat == null)
+                cat = (String) catClassifier.labels(inputs.scores(catClassifier, null))[0][0];
+            return cat;
+        }
+
+        private Integer[] fellowRanking() {
+            final Inputs inputs = inputs();
+            if (fellowRanking == null)
+                fellowRanking = (Integer[]) fellowClassifier.labels(inputs.scores(fellowClassifier, null))[0];
+            return fellowRanking;
         }
 
         @Override
@@ -180,15 +643,11 @@ public class HatExtractor extends SimpleExtractor {
                     ac = null;
                     return true;
                 } else if (ac.equals(reduceUpHat)) {
-                    final double[] catFeats = extract(config);
-                    final String cat = (String) catClassifier.predict(catFeats);
-                    action = new String[]{ac, cat};
+                    action = new String[]{ac, cat()};
                     ac = null;
                     return true;
                 } else {
-                    final double[] fellowFeats = extract(config);
-                    final Integer[] fs = (Integer[]) fellowClassifier.predictAll(fellowFeats);
-                    fellows = new LinkedList<>(Arrays.asList(fs));
+                    fellows = new LinkedList<>(Arrays.asList(fellowRanking()));
                 }
             }
             if (fellows.isEmpty()) {
@@ -414,4 +873,9 @@ public class HatExtractor extends SimpleExtractor {
 //		classifier.addResponseValue(HatParser.compressionRight(null));
 //	}
 
+    private Logger logger() {
+        final Logger log = Logger.getLogger(getClass().getName());
+        log.setParent(Logger.getGlobal());
+        return log;
+    }
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2019. University of St Andrews
+ */
+
+package standrews.constextract;
+
+import standrews.aux_.PhaseMetrics;
+import standrews.classification.FeatureVectorGenerator;
+import standrews.classification.SparseFeatures;
+import standrews.constautomata.HatConfig;
+import standrews.constmethods.HatParser;
+
+import java.util.ArrayList;
+
+/**
+ * Holds observations of the static oracle, with their features, until they are
+ * passed on to the classifiers of an extractor. Lets the oracle and feature generation
+ * run on a worker thread while the classifiers are only touched by one thread.
+ */
+public class HatObservationBuffer implements HatObserver {
+    private final FeatureVectorGenerator featureVectorGenerator;
+
+    private final ArrayList<SparseFeatures> features = new ArrayList<>();
+    private final ArrayList<String> actions = new ArrayList<>();
+    /**
+     * Category or compressed fellow index where the action needs one, otherwise null.
+     */
+    private final ArrayList<Object> responses = new ArrayList<>();
+
+    public HatObservationBuffer(final FeatureVectorGenerator featureVectorGenerator) {
+        this.featureVectorGenerator = featureVectorGenerator;
+    }
+
+    public void extract(final HatConfig config, final String[] action) {
+        final SparseFeatures configFeatures = new SparseFeatures();
+        PhaseMetrics.get().start(PhaseMetrics.Phase.FEATURES);
+        try {
+            featureVectorGenerator.generateSparseFeatures(config, configFeatures);
+            features.add(configFeatures.compact());
+        } finally {
+            PhaseMetrics.get().end();
+        }
+        actions.add(action[0]);
+        responses.add(HatExtractor.secondaryResponse(config, action));
+    }
+
+    public int size() {
+        return actions.size();
+    }
+
+    /**
+     * Pass observations to extractor in the order in which they were made, and empty buffer.
+     */
+    public void drainTo(final HatExtractor extractor) {
+        for (int i = 0; i < actions.size(); i++)
+            extractor.addObservation(features.get(i), actions.get(i), responses.get(i));
+        features.clear();
+        actions.clear();
+        responses.clear();
+    }
+}
@@ -0,0 +1,14 @@
+/*
+ * Copyright (c) 2019. University of St Andrews
+ */
+
+package standrews.constextract;
+
+import standrews.constautomata.HatConfig;
+
+/**
+ * Receives the configurations and gold actions produced by the static oracle.
+ */
+public interface HatObserver {
+    void extract(HatConfig config, String[] action);
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2019. University of St Andrews
+ */
+
+package standrews.constextract;
+
+import standrews.aux_.PhaseMetrics;
+import standrews.classification.FeatureVectorGenerator;
+import standrews.classification.SparseFeatures;
+import standrews.constautomata.HatConfig;
+import standrews.constbase.ConstLeaf;
+import standrews.constbase.DatasetSplit;
+import standrews.constbase.EnhancedConstLeaf;
+import standrews.constmethods.HatParser;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Observations of the static oracle written to shard files once, and read back in every
+ * epoch instead of running the oracle and generating features again.
+ *
+ * A shard holds a number of sentences. For each sentence the embeddings are written once,
+ * followed by its observations, each with the indices of its one-hot features, the index
+ * of the token in each embedding slot, the action and the response of the category or
+ * fellow classifier. Feature vectors are made from these only when the network is given
+ * a minibatch, as for observations made directly. Shards can be compressed, and embeddings
+ * can be stored in half precision. Uncompressed shards are memory-mapped when read.
+ */
+public class ObservationShards {
+    private static final int MAGIC = 0x4f425348;
+    private static final int VERSION = 1;
+
+    private static final byte END_OF_SHARD = 0;
+    private static final byte SENTENCE = 1;
+    private static final byte END_OF_SENTENCE = -1;
+
+    private static final byte NO_RESPONSE = 0;
+    private static final byte CAT_RESPONSE = 1;
+    private static final byte FELLOW_RESPONSE = 2;
+
+    private final String directory;
+    private final int sentencesPerShard;
+    private final boolean compress;
+    private final boolean halfPrecision;
+    private final FeatureVectorGenerator featureVectorGenerator;
+
+    /**
+     * If not null, shards of the training split and the observations within them are read in random order.
+     */
+    private Random shuffleRandom = null;
+
+    private final Map<DatasetSplit, Integer> numShards = new EnumMap<>(DatasetSplit.class);
+
+    public ObservationShards(final String directory, final int sentencesPerShard,
+                             final boolean compress, final boolean halfPrecision,
+                             final FeatureVectorGenerator featureVectorGenerator) {
+        this.directory = directory;
+        this.sentencesPerShard = sentencesPerShard;
+        this.compress = compress;
+        this.halfPrecision = halfPrecision;
+        this.featureVectorGenerator = featureVectorGenerator;
+    }
+
+    /**
+     * Shuffle the training observations as they are read, see read.
+     */
+    public void setShuffle(final Random random) {
+        shuffleRandom = random;
+    }
+
+    public boolean isWritten(final DatasetSplit split) {
+        return numShards.containsKey(split);
+    }
+
+    private File shardFile(final DatasetSplit split, final int i) {
+        return new File(directory, split.name().toLowerCase() + String.format("-%05d", i) +
+                (compress ? ".shard.gz" : ".shard"));
+    }
+
+    /**
+     * Writer of the shards of a split, replacing any written before.
+     */
+    public Writer writer(final DatasetSplit split) throws IOException {
+        new File(directory).mkdirs();
+        numShards.remove(split);
+        return new Writer(split);
+    }
+
+    /**
+     * Receives the observations of one sentence after another, as given by sentence.
+     */
+    public class Writer implements HatObserver, Closeable {
+        private final DatasetSplit split;
+        private final SparseFeatures features = new SparseFeatures();
+        private DataOutputStream out = null;
+        private int nShards = 0;
+        private int nSentencesInShard = 0;
+        private boolean inSentence = false;
+
+        private Writer(final DatasetSplit split) {
+            this.split = split;
+        }
+
+        /**
+         * Start sentence, whose observations follow.
+         */
+        public void sentence(final String id, final float[][] embeddings) throws IOException {
+            endSentence();
+            if (out == null || nSentencesInShard == sentencesPerShard)
+                startShard();
+            out.writeByte(SENTENCE);
+            out.writeUTF(id);
+            out.writeInt(embeddings.length);
+            out.writeInt(embeddings.length == 0 ? 0 : embeddings[0].length);
+            for (float[] embedding : embeddings)
+                for (float v : embedding) {
+                    if (halfPrecision)
+                        out.writeShort(toHalf(v));
+                    else
+                        out.writeFloat(v);
+                }
+            nSentencesInShard++;
+            inSentence = true;
+        }
+
+        public void extract(final HatConfig config, final String[] action) {
+            PhaseMetrics.get().countConfiguration();
+            PhaseMetrics.get().start(PhaseMetrics.Phase.FEATURES);
+            try {
+                featureVectorGenerator.generateSparseFeatures(config, features);
+            } finally {
+                PhaseMetrics.get().end();
+            }
+            try {
+                out.writeByte(Arrays.asList(HatParser.actionNames).indexOf(action[0]));
+                final Object response = HatExtractor.secondaryResponse(config, action);
+                if (response instanceof String) {
+                    out.writeByte(CAT_RESPONSE);
+                    out.writeUTF((String) response);
+                } else if (response instanceof Integer) {
+                    out.writeByte(FELLOW_RESPONSE);
+                    out.writeInt((Integer) response);
+                } else {
+                    out.writeByte(NO_RESPONSE);
+                }
+                out.writeShort(features.getNumOneHots());
+                for (int i = 0; i < features.getNumOneHots(); i++)
+                    out.writeInt(features.getOneHotIndex(i));
+                for (int slot = 0; slot < FeatureVectorGenerator.getNumEmbeddingSlots(); slot++) {
+                    final EnhancedConstLeaf leaf = features.getSlotLeaf(slot);
+                    out.writeInt(leaf == null ? -1 : leaf.getIndex());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void endSentence() throws IOException {
+            if (inSentence)
+                out.writeByte(END_OF_SENTENCE);
+            inSentence = false;
+        }
+
+        private void startShard() throws IOException {
+            endShard();
+            final OutputStream file = new FileOutputStream(shardFile(split, nShards++));
+            out = new DataOutputStream(new BufferedOutputStream(compress ? new GZIPOutputStream(file, 1 << 16) : file, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(halfPrecision);
+            nSentencesInShard = 0;
+        }
+
+        private void endShard() throws IOException {
+            if (out == null)
+                return;
+            endSentence();
+            out.writeByte(END_OF_SHARD);
+            out.close();
+            out = null;
+        }
+
+        public void close() throws IOException {
+            endShard();
+            numShards.put(split, nShards);
+        }
+    }
+
+    /**
+     * Observation read from a shard.
+     */
+    private static class Observation {
+        final SparseFeatures features;
+        final String action;
+        final Object response;
+
+        Observation(final SparseFeatures features, final String action, final Object response) {
+            this.features = features;
+            this.action = action;
+            this.response = response;
+        }
+    }
+
+    /**
+     * Pass the observations of a split to the extractor. When shuffling, which is done for
+     * the training split only, shards are read in random order and the observations of each
+     * shard are passed in random order. Other splits are read in order, in groups of sentences.
+     *
+     * @param sentencesPerGroup Number of sentences after which afterGroup is run, unless shuffling.
+     * @param afterGroup Run after each group of sentences, and after each shard.
+     */
+    public void read(final DatasetSplit split, final HatExtractor extractor,
+                     final int sentencesPerGroup, final Runnable afterGroup) throws IOException {
+        final boolean shuffle = shuffleRandom != null && split == DatasetSplit.TRAIN;
+        final List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < numShards.getOrDefault(split, 0); i++)
+            order.add(i);
+        if (shuffle)
+            Collections.shuffle(order, shuffleRandom);
+        for (int i : order) {
+            try (DataInputStream in = open(shardFile(split, i))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    throw new IOException("Not a shard of this version: " + shardFile(split, i));
+                final boolean half = in.readBoolean();
+                final List<Observation> observations = new ArrayList<>();
+                int nSentences = 0;
+                while (in.readByte() == SENTENCE) {
+                    readSentence(in, half, observations);
+                    if (!shuffle && ++nSentences % sentencesPerGroup == 0) {
+                        pass(observations, extractor);
+                        afterGroup.run();
+                    }
+                }
+                if (shuffle)
+                    Collections.shuffle(observations, shuffleRandom);
+                pass(observations, extractor);
+                afterGroup.run();
+            }
+        }
+    }
+
+    private static void pass(final List<Observation> observations, final HatExtractor extractor) {
+        for (Observation observation : observations)
+            extractor.addObservation(observation.features, observation.action, observation.response);
+        observations.clear();
+    }
+
+    private void readSentence(final DataInputStream in, final boolean half,
+                              final List<Observation> observations) throws IOException {
+        PhaseMetrics.get().countSentence();
+        in.readUTF();
+        final int nTokens = in.readInt();
+        final int embeddingLength = in.readInt();
+        final EnhancedConstLeaf[] leaves = new EnhancedConstLeaf[nTokens];
+        for (int i = 0; i < nTokens; i++) {
+            final float[] embedding = new float[embeddingLength];
+            for (int k = 0; k < embeddingLength; k++)
+                embedding[k] = half ? fromHalf(in.readShort()) : in.readFloat();
+            leaves[i] = new EnhancedConstLeaf(new ConstLeaf(i, null, null, null), embedding);
+        }
+        final int nSlots = FeatureVectorGenerator.getNumEmbeddingSlots();
+        byte actionIndex;
+        while ((actionIndex = in.readByte()) != END_OF_SENTENCE) {
+            final String action = HatParser.actionNames[actionIndex];
+            final Object response;
+            switch (in.readByte()) {
+                case CAT_RESPONSE:
+                    response = in.readUTF();
+                    break;
+                case FELLOW_RESPONSE:
+                    response = in.readInt();
+                    break;
+                default:
+                    response = null;
+                    break;
+            }
+            final SparseFeatures features = new SparseFeatures();
+            final int nOneHots = in.readShort();
+            for (int i = 0; i < nOneHots; i++)
+                features.oneHot(in.readInt());
+            for (int slot = 0; slot < nSlots; slot++) {
+                final int token = in.readInt();
+                if (token >= 0)
+                    features.embedding(slot, leaves[token]);
+            }
+            observations.add(new Observation(features.compact(), action, response));
+        }
+    }
+
+    private DataInputStream open(final File file) throws IOException {
+        if (compress)
+            return new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16), 1 << 16));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new DataInputStream(new ByteBufferInputStream(buffer));
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read(final byte[] b, final int off, final int len) {
+            if (!buffer.hasRemaining())
+                return -1;
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+
+    /**
+     * IEEE half precision, rounding to nearest.
+     */
+    static short toHalf(final float f) {
+        final int bits = Float.floatToIntBits(f);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int value = (bits & 0x7fffffff) + 0x1000;
+        if (value >= 0x47800000) {
+            if ((bits & 0x7fffffff) >= 0x47800000) {
+                if (value < 0x7f800000)
+                    return (short) (sign | 0x7c00);
+                return (short) (sign | 0x7c00 | (bits & 0x007fffff) >>> 13);
+            }
+            return (short) (sign | 0x7bff);
+        }
+        if (value >= 0x38800000)
+            return (short) (sign | value - 0x38000000 >>> 13);
+        if (value < 0x33000000)
+            return (short) sign;
+        final int exponent = (bits & 0x7fffffff) >>> 23;
+        return (short) (sign | ((bits & 0x7fffff | 0x800000) + (0x800000 >>> exponent - 102) >>> 126 - exponent));
+    }
+
+    static float fromHalf(final short h) {
+        int mantissa = h & 0x03ff;
+        int exponent = h & 0x7c00;
+        if (exponent == 0x7c00) {
+            exponent = 0x3fc00;
+        } else if (exponent != 0) {
+            exponent += 0x1c000;
+        } else if (mantissa != 0) {
+            exponent = 0x1c400;
+            do {
+                mantissa <<= 1;
+                exponent -= 0x400;
+            } while ((mantissa & 0x400) == 0);
+            mantissa &= 0x3ff;
+        }
+        return Float.intBitsToFloat((h & 0x8000) << 16 | (exponent | mantissa) << 13);
+    }
+}
@@ -5,15 +5,19 @@
 package standrews.constextract;
 
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataType;
 import standrews.classification.*;
 import standrews.constautomata.HatConfig;
 import standrews.constmethods.SimpleParser;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
 
 public class SimpleExtractor {
     public static final String shift = SimpleParser.shift;
@@ -66,9 +70,18 @@ public class SimpleExtractor {
         this.mlpFactory = mlpFactory;
         this.actionClassifier = mlpFactory.makeMLP(new ActionResponseVectorGenerator(), networkMiniBatchSize, tol, patience);
         this.catClassifier = mlpFactory.makeMLP(new CatResponseVectorGenerator(featureVectorGenerator.getCatIndexMap()), networkMiniBatchSize, tol, patience);
+        actionClassifier.setFeatureVectorGenerator(featureVectorGenerator);
+        catClassifier.setFeatureVectorGenerator(featureVectorGenerator);
 //		completeClassifiers(treebank);
     }
 
+    protected SimpleExtractor(final FeatureVectorGenerator featureVectorGenerator,
+                              final MLP actionClassifier, final MLP catClassifier) {
+        this.featureVectorGenerator = featureVectorGenerator;
+        this.actionClassifier = actionClassifier;
+        this.catClassifier = catClassifier;
+    }
+
     public SimpleExtractor(final FeatureVectorGenerator featureVectorGenerator, int networkMiniBatchSize, double tol, int patience,
                         String actionFilePath,
                         String catFilePath) {
@@ -81,6 +94,8 @@ public class SimpleExtractor {
             this.catClassifier = new MLP(MultiLayerNetwork.load(new File(catFilePath), false),
                     new CatResponseVectorGenerator(featureVectorGenerator.getCatIndexMap()), networkMiniBatchSize, tol, patience,
                     new File("C:\\my_stuff\\dissertation\\discontinuous_parser_windows\\tmp\\categoryValidationLosses.csv"));
+            actionClassifier.setFeatureVectorGenerator(featureVectorGenerator);
+            catClassifier.setFeatureVectorGenerator(featureVectorGenerator);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -114,17 +129,29 @@ public class SimpleExtractor {
 
     public void extract(final HatConfig config, final String[] action) {
 //		final Features actionFeats = extract(config);
-        final double[] featureVector = featureVectorGenerator.generateFeatureVector(config);
-        actionClassifier.addObservation(Arrays.copyOf(featureVector, featureVector.length), action[0]);
+        final SparseFeatures features = new SparseFeatures();
+        featureVectorGenerator.generateSparseFeatures(config, features);
+        actionClassifier.addObservation(features.compact(), action[0]);
         if (action.length > 1) {
 //			final Features catFeats = extract(config);
-            catClassifier.addObservation(Arrays.copyOf(featureVector, featureVector.length), action[1]);
+            catClassifier.addObservation(features.compact(), action[1]);
         }
     }
 
     public void saveClassifiers(String actionFilePath, String catFilePath) throws IOException {
-        actionClassifier.save(actionFilePath);
-        catClassifier.save(catFilePath);
+        final Future<?> actionSaved = actionClassifier.startSave(actionFilePath);
+        final Future<?> catSaved = catClassifier.startSave(catFilePath);
+        MLP.await(actionSaved);
+        MLP.await(catSaved);
+    }
+
+    /**
+     * Train each classifier on a thread of its own, or stop doing so once what was
+     * given to the threads is done. See MLP.setConcurrentTraining.
+     */
+    public void setConcurrentTraining(final boolean concurrent) {
+        actionClassifier.setConcurrentTraining(concurrent);
+        catClassifier.setConcurrentTraining(concurrent);
     }
 
 //	protected Features extract(final SimpleConfig config) {
@@ -157,6 +184,14 @@ public class SimpleExtractor {
 //		makeAllRightCats(classifier, treebank);
 //	}
 
+    /**
+     * Also compute validation losses in given data type, to compare against.
+     */
+    public void setReferenceDataType(DataType referenceDataType) {
+        actionClassifier.setReferenceDataType(referenceDataType);
+        catClassifier.setReferenceDataType(referenceDataType);
+    }
+
     public void startValidating() {
         actionClassifier.startValidating();
         catClassifier.startValidating();
@@ -173,11 +208,35 @@ public class SimpleExtractor {
 
     public Iterator<String[]> predict(final HatConfig config) {
 //		final Features actionFeats = extract(config);
-        final double[] featureVector = featureVectorGenerator.generateFeatureVector(config);
+        final float[] featureVector = featureVectorGenerator.generateFeatureVector(config);
         final String[] acs = (String[]) actionClassifier.predictAll(featureVector);
         return new ActionIterator(config, acs);
     }
 
+    /**
+     * Called with the initial configuration of a sentence before it is parsed,
+     * so that anything needed for the whole sentence can be computed once.
+     */
+    public void startSentence(final HatConfig config) {
+    }
+
+    /**
+     * Called with the final configuration of a sentence after it has been parsed.
+     */
+    public void endSentence(final HatConfig config) {
+    }
+
+    /**
+     * Ranked actions for each of several configurations.
+     * Subclasses may score all configurations together.
+     */
+    public List<Iterator<String[]>> predict(final List<HatConfig> configs) {
+        final List<Iterator<String[]>> actions = new ArrayList<>(configs.size());
+        for (HatConfig config : configs)
+            actions.add(predict(config));
+        return actions;
+    }
+
     private class ActionIterator implements Iterator<String[]> {
         private final HatConfig config;
         private final LinkedList<String> acs;
@@ -201,7 +260,7 @@ public class SimpleExtractor {
                 return new String[]{ac};
             } else {
 //				final Features catFeats = extract(config);
-                final double[] featureVector = featureVectorGenerator.generateFeatureVector(config);
+                final float[] featureVector = featureVectorGenerator.generateFeatureVector(config);
                 final String cat = (String) catClassifier.predict(featureVector);
                 return new String[]{ac, cat};
             }
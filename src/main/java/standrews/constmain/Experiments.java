@@ -4,7 +4,9 @@
 
 package standrews.constmain;
 
+import org.nd4j.linalg.api.buffer.DataType;
 import standrews.aux_.LogHandler;
+import standrews.aux_.PhaseMetrics;
 import standrews.aux_.TimerMilli;
 import standrews.classification.FeatureSpecification;
 import standrews.classification.FeatureVectorGenerator;
@@ -12,6 +14,7 @@ import standrews.classification.MLPFactory;
 import standrews.constbase.*;
 import standrews.constbase.heads.*;
 import standrews.constextract.HatExtractor;
+import standrews.constextract.ObservationShards;
 import standrews.constextract.WholeHatExtractor;
 
 import java.io.FileNotFoundException;
@@ -19,6 +22,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.invoke.MethodHandles;
+import java.util.Optional;
 import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
@@ -46,10 +50,9 @@ public class Experiments {
 //    }
 
     public static ConstTreebank tigerBank(String path, String headSide, Random rng, int numEmbeddingsFiles, double trainRatio, double validationRatio,
-                                          int treebankIteratorQueueSize) throws ArithmeticException {
+                                          int treebankIteratorQueueSize, int treebankIteratorLoaderThreads,
+                                          boolean useTreebankSnapshot) throws ArithmeticException {
         String embeddingsDirectory = "../datasets/tiger2.1_bert_corrected_embeddings/";
-        ConstTreebank bank = new NegraTreebank(path, embeddingsDirectory, numEmbeddingsFiles);
-        bank.removeCycles();
         HeadFinder finder = new TigerHeadFinder();
         switch (headSide) {
             case "left":
@@ -59,9 +62,21 @@ public class Experiments {
                 finder = new RightHeadFinder();
                 break;
         }
-        finder.makeHeadedTreebank(bank);
-        bank.gatherSymbols();
-        bank.setupTreebankIterator(rng, trainRatio, validationRatio, treebankIteratorQueueSize);
+        TreebankSnapshot snapshot = new TreebankSnapshot(path, finder);
+        Optional<NegraTreebank> snapshotBank = useTreebankSnapshot ?
+                snapshot.read(embeddingsDirectory, numEmbeddingsFiles) : Optional.empty();
+        ConstTreebank bank;
+        if (snapshotBank.isPresent()) {
+            bank = snapshotBank.get();
+        } else {
+            bank = new NegraTreebank(path, embeddingsDirectory, numEmbeddingsFiles);
+            bank.removeCycles();
+            finder.makeHeadedTreebank(bank);
+            bank.gatherSymbols();
+            if (useTreebankSnapshot)
+                snapshot.write(bank);
+        }
+        bank.setupTreebankIterator(rng, trainRatio, validationRatio, treebankIteratorQueueSize, treebankIteratorLoaderThreads);
         return bank;
     }
 
@@ -176,7 +191,15 @@ public class Experiments {
             final boolean measureTrainLoss, int[] hiddenLayers, int nAttentionHeads, int attentionHeadSize,
             int maxEpochs, int networkMiniBatchSize,
             double learningRate, double dropoutRate, double tol, int patience, int seed,
-            boolean loadClassifiers, boolean startWithValidation) {
+            boolean loadClassifiers, boolean startWithValidation,
+            DataType networkDataType, DataType referenceDataType, int observerThreads,
+            boolean quantize, int calibrationSampleSize, boolean cacheOracleTraces,
+            boolean useObservationShards, boolean compressShards, boolean halfPrecisionShards,
+            boolean phaseMetrics, boolean concurrentClassifiers,
+            boolean sharedHiddenLayers) {
+        if (loadClassifiers && sharedHiddenLayers)
+            throw new IllegalArgumentException("Error: classifiers with shared hidden layers cannot be loaded; " +
+                    "set loadClassifiers or sharedHiddenLayers to false");
         final MLPFactory mlpFactory = new MLPFactory(
                 featureVectorGenerator.getVectorLength(),
                 hiddenLayers,
@@ -184,7 +207,8 @@ public class Experiments {
                 attentionHeadSize,
                 learningRate,
                 dropoutRate,
-                seed);
+                seed,
+                networkDataType);
         final HatExtractor extractor;
         if (loadClassifiers) {
             extractor = new HatExtractor(
@@ -195,6 +219,9 @@ public class Experiments {
                     actionFilePath,
                     catFilePath,
                     fellowFilePath);
+        } else if (sharedHiddenLayers) {
+            extractor = new HatExtractor(featureVectorGenerator, HatExtractor.makeSharedClassifier(
+                    featureVectorGenerator, mlpFactory, networkMiniBatchSize, tol, patience));
         } else {
             extractor = new HatExtractor(
                     featureVectorGenerator,
@@ -203,13 +230,39 @@ public class Experiments {
                     tol,
                     patience);
         }
+        extractor.setReferenceDataType(referenceDataType);
 
         final SimpleTrainer trainer = new SimpleTrainer(featureVectorGenerator, maxEpochs, tmp, measureTrainLoss);
         trainer.setLeftDependentsFirst(leftFirst);
+        trainer.setObserverThreads(observerThreads);
+        trainer.setCacheOracleTraces(cacheOracleTraces);
+        if (useObservationShards) {
+            ObservationShards shards = new ObservationShards(tmp + "shards/", 500,
+                    compressShards, halfPrecisionShards, featureVectorGenerator);
+            shards.setShuffle(new Random(seed));
+            trainer.setObservationShards(shards);
+        }
+        PhaseMetrics.get().setEnabled(phaseMetrics);
+        extractor.setConcurrentTraining(concurrentClassifiers);
         trainer.train(treebank,
                 actionFilePath,
                 catFilePath,
                 fellowFilePath, n, extractor, startWithValidation);
+        extractor.setConcurrentTraining(false);
+        if (quantize) {
+            // the networks are released when quantized
+            try {
+                extractor.saveClassifiers(actionFilePath, catFilePath, fellowFilePath);
+            } catch (IOException e) {
+                fail("Failed saving model before quantization: " + e);
+            }
+            trainer.calibrateQuantization(treebank, extractor, calibrationSampleSize);
+            try {
+                extractor.saveClassifiers(actionFilePath, catFilePath, fellowFilePath);
+            } catch (IOException e) {
+                fail("Failed saving quantized model: " + e);
+            }
+        }
 //        if (nDone != n)
 //            fail("" + lang + ": processed " + nDone + " of " + n);
         return extractor;
@@ -271,16 +324,28 @@ public class Experiments {
             final boolean measureTrainLoss, int[] hiddenLayers, int nAttentionHeads, int attentionHeadSize,
             int maxEpochs, int networkMiniBatchSize,
             double learningRate, double dropoutRate, double tol, int patience, int seed, boolean loadClassifiers,
-            boolean startWithValidation) {
+            boolean startWithValidation, DataType networkDataType, DataType referenceDataType,
+            int observerThreads, int parseBatchSize, int beamWidth, boolean projectedInference, boolean floatInference,
+            boolean quantize, int calibrationSampleSize, boolean cacheOracleTraces,
+            boolean useObservationShards, boolean compressShards, boolean halfPrecisionShards,
+            boolean phaseMetrics, boolean concurrentClassifiers,
+            boolean sharedHiddenLayers) {
         FeatureVectorGenerator featureVectorGenerator = new FeatureVectorGenerator(treebank);
         final HatExtractor extractor = trainHat(lang, treebank,
                 actionFilePath,
                 catFilePath,
                 fellowFilePath, nTrain, featureVectorGenerator, leftFirst,
                 measureTrainLoss, hiddenLayers, nAttentionHeads, attentionHeadSize, maxEpochs, networkMiniBatchSize, learningRate, dropoutRate, tol,
-                patience, seed, loadClassifiers, startWithValidation);
+                patience, seed, loadClassifiers, startWithValidation, networkDataType, referenceDataType,
+                observerThreads, quantize, calibrationSampleSize, cacheOracleTraces,
+                useObservationShards, compressShards, halfPrecisionShards,
+                phaseMetrics, concurrentClassifiers, sharedHiddenLayers);
 
+        extractor.setProjectedInference(projectedInference);
+        extractor.setFloatInference(floatInference);
         final HatTester tester = new HatTester(featureVectorGenerator);
+        tester.setParseBatchSize(parseBatchSize);
+        tester.setBeamWidth(beamWidth);
         tester.test(treebank, goldFile, parsedFile, actionFilePath, catFilePath, fellowFilePath, nTrain, nTest, extractor);
     }
 
@@ -331,7 +396,12 @@ public class Experiments {
             final boolean measureTrainLoss,
             final boolean goldPos, int[] hiddenLayers, int nAttentionHeads, int attentionHeadSize, int maxEpochs, int networkMiniBatchSize,
             double learningRate, double dropoutRate, double tol, int patience, int seed, boolean loadClassifiers,
-            boolean startWithValidation) {
+            boolean startWithValidation, DataType networkDataType, DataType referenceDataType,
+            int observerThreads, int parseBatchSize, int beamWidth, boolean projectedInference, boolean floatInference,
+            boolean quantize, int calibrationSampleSize, boolean cacheOracleTraces,
+            boolean useObservationShards, boolean compressShards, boolean halfPrecisionShards,
+            boolean phaseMetrics, boolean concurrentClassifiers,
+            boolean sharedHiddenLayers) {
         final TimerMilli timer = new TimerMilli();
         timer.start();
         trainTestHat(lang, treebank,
@@ -342,7 +412,11 @@ public class Experiments {
                 measureTrainLoss,
                 hiddenLayers, nAttentionHeads, attentionHeadSize,
                 maxEpochs, networkMiniBatchSize,
-                learningRate, dropoutRate, tol, patience, seed, loadClassifiers, startWithValidation);
+                learningRate, dropoutRate, tol, patience, seed, loadClassifiers, startWithValidation,
+                networkDataType, referenceDataType, observerThreads, parseBatchSize, beamWidth,
+                projectedInference, floatInference, quantize, calibrationSampleSize, cacheOracleTraces,
+                useObservationShards, compressShards, halfPrecisionShards,
+                phaseMetrics, concurrentClassifiers, sharedHiddenLayers);
         timer.stop();
         final String report = "Hat took " + timer.seconds() + " s";
         reportFine(report);
@@ -406,6 +480,7 @@ public class Experiments {
         double trainRatio = 0.7;
         double validationRatio = 0.15;  // testRatio = 1 - trainRatio - validationRatio
         int[] hiddenLayers = new int[]{512, 512, 512};
+        boolean sharedHiddenLayers = false;  // one network with hidden layers shared by action, category and fellow heads
         int nAttentionHeads = 0;
         int attentionHeadSize = 512;
         int maxEpochs = 200;  // change to 200 in final run
@@ -415,11 +490,28 @@ public class Experiments {
         int patience = 10;  // change to 10 in final run
         int seed = 123;
         int networkMiniBatchSize = 128;
+        DataType networkDataType = DataType.FLOAT;
+        DataType referenceDataType = null;  // e.g. DataType.DOUBLE to report validation loss in both precisions
+        int observerThreads = 4;  // threads running the oracle and feature generation in training; 1 is sequential
+        boolean concurrentClassifiers = false;  // action, category and fellow networks are fitted and scored on threads of their own
+        boolean cacheOracleTraces = true;  // oracle actions are computed in the first epoch and replayed in later ones
+        boolean useObservationShards = false;  // observations are written to tmp/shards once and read in every epoch
+        boolean compressShards = false;  // gzip shards rather than memory-map them
+        boolean halfPrecisionShards = false;  // store embeddings in shards as 16-bit floats
+        boolean phaseMetrics = false;  // time, CPU and allocation per phase of training, per epoch in tmp/phaseMetrics.csv and .json
+        int parseBatchSize = 1;  // sentences parsed in lockstep during testing; 1 parses one by one
+        int beamWidth = 1;  // greater than 1 for beam search in testing, instead of greedy lockstep parsing
+        boolean projectedInference = false;  // in testing, embeddings are multiplied by first layer weights once per sentence
+        boolean floatInference = true;  // in testing, dense networks are run in plain Java rather than through ND4J
+        boolean quantize = false;  // after training, dense layers are quantized to 8 bits for testing; saves memory, but is slower than floatInference
+        int calibrationSampleSize = 20000;  // validation feature vectors per classifier to calibrate and check quantization
 
         boolean loadClassifiers = false;
         boolean startWithValidation = false;
         
         int treebankIteratorQueueSize = 32;
+        int treebankIteratorLoaderThreads = 2;
+        boolean useTreebankSnapshot = true;  // preprocessed treebank is cached next to bankPath
         // *************END OF configuration variables***************
 
         Random rng = new Random(seed);
@@ -434,7 +526,8 @@ public class Experiments {
 //                break;
             case "tiger":
                 // Tiger has 50472 trees. 80% is 40377.
-                treebank = tigerBank(bankPath, headSide, rng, numEmbeddingsFiles, trainRatio, validationRatio, treebankIteratorQueueSize);
+                treebank = tigerBank(bankPath, headSide, rng, numEmbeddingsFiles, trainRatio, validationRatio,
+                        treebankIteratorQueueSize, treebankIteratorLoaderThreads, useTreebankSnapshot);
                 lang = "de";
                 nTrain = 800;
                 nTest = 200;
@@ -462,7 +555,11 @@ public class Experiments {
         final boolean goldPos = true;
         doTrainingAndTestingHat(lang, treebank, nTrain, nTest, leftFirst, measureTrainLoss, goldPos, hiddenLayers,
                 nAttentionHeads, attentionHeadSize, maxEpochs, networkMiniBatchSize, learningRate, dropoutRate, tol,
-                patience, seed, loadClassifiers, startWithValidation);
+                patience, seed, loadClassifiers, startWithValidation, networkDataType, referenceDataType,
+                observerThreads, parseBatchSize, beamWidth, projectedInference, floatInference,
+                quantize, calibrationSampleSize, cacheOracleTraces,
+                useObservationShards, compressShards, halfPrecisionShards,
+                phaseMetrics, concurrentClassifiers, sharedHiddenLayers);
 
 //        if (method.equals("simple")) {
 //			doTrainingAndTestingSimple(lang, treebank, nTrain, nTest,
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2019. University of St Andrews
+ */
+
+package standrews.constmain;
+
+import standrews.aux_.TimerNano;
+import standrews.classification.FeatureVectorGenerator;
+import standrews.classification.SparseFeatures;
+import standrews.constautomata.HatConfig;
+import standrews.constbase.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures cost per configuration of feature vector generation, comparing the
+ * generator writing into a reused float array with the former implementation that
+ * built boxed lists. Configurations are made from random sentences, so no
+ * treebank, embeddings files or network are needed.
+ */
+public class FeatureVectorBenchmark {
+    private static final int nPoss = 55;
+    private static final int nCats = 25;
+
+    private final Random rng;
+    private final ConstTreebank treebank;
+    private final FeatureVectorGenerator generator;
+    private final BoxedFeatureVectorGenerator boxedGenerator;
+
+    public FeatureVectorBenchmark(final long seed) {
+        rng = new Random(seed);
+        Set<String> poss = new TreeSet<>();
+        for (int i = 0; i < nPoss; i++)
+            poss.add("POS" + i);
+        Set<String> cats = new TreeSet<>();
+        for (int i = 0; i < nCats; i++)
+            cats.add("CAT" + i);
+        treebank = new ConstTreebank("", poss, cats, new TreeSet<>(), new ConstTree[0]);
+        generator = new FeatureVectorGenerator(treebank);
+        boxedGenerator = new BoxedFeatureVectorGenerator(treebank);
+    }
+
+    /**
+     * Walk through configurations of a random sentence, shifting words and
+     * now and then putting the top of the stack under a new constituent.
+     * The visitor is called for every configuration.
+     */
+    private void walkConfigs(final HatConfig config, final Runnable visitor) {
+        final String[] cats = treebank.getCats().toArray(new String[0]);
+        visitor.run();
+        while (config.inputLength() > 0) {
+            config.addStackRight(config.removeInputLeft());
+            config.setAbsoluteHatIndex(config.stackLength() - 1);
+            visitor.run();
+            if (config.stackLength() > 2 && rng.nextBoolean()) {
+                final ConstNode left = config.removeStackRight(1);
+                final ConstNode right = config.removeStackRight(0);
+                final ConstInternal parent = new ConstInternal("", cats[rng.nextInt(cats.length)]);
+                parent.addChildRight(left);
+                parent.addChildRight(right);
+                config.addStackRight(parent);
+                config.setAbsoluteHatIndex(config.stackLength() - 1);
+                visitor.run();
+            }
+        }
+    }
+
+    private HatConfig randomConfig(final int length) {
+        final String[] poss = treebank.getPoss().toArray(new String[0]);
+        final ConstLeaf[] leaves = new ConstLeaf[length];
+        final float[][] embeddings = new float[length][FeatureVectorGenerator.getEmbeddingVectorLength()];
+        for (int i = 0; i < length; i++) {
+            leaves[i] = new ConstLeaf(i, "w" + i, poss[rng.nextInt(poss.length)], "--");
+            for (int j = 0; j < embeddings[i].length; j++)
+                embeddings[i][j] = (float) rng.nextGaussian();
+        }
+        return new HatConfig("", leaves, embeddings);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getCurrentThreadAllocatedBytes();
+    }
+
+    public void run(final int nSentences, final int sentenceLength) {
+        final float[] buffer = new float[generator.getVectorLength()];
+        final long[] nConfigs = new long[1];
+        final double[] checksum = new double[2];
+
+        // check that both produce the same vectors, and that the sparse form
+        // describes the same vector, which also warms up
+        final SparseFeatures sparse = new SparseFeatures();
+        final int[] slotOffsets = generator.getEmbeddingSlotOffsets();
+        for (int s = 0; s < nSentences / 10 + 1; s++) {
+            final HatConfig config = randomConfig(sentenceLength);
+            walkConfigs(config, () -> {
+                generator.generateFeatureVector(config, buffer, 0);
+                final double[] boxed = boxedGenerator.generateFeatureVector(config);
+                if (boxed.length != buffer.length)
+                    throw new IllegalStateException("Length " + boxed.length + " != " + buffer.length);
+                for (int i = 0; i < boxed.length; i++)
+                    if ((float) boxed[i] != buffer[i])
+                        throw new IllegalStateException("Feature vectors differ at " + i);
+
+                generator.generateSparseFeatures(config, sparse);
+                final float[] fromSparse = new float[buffer.length];
+                for (int i = 0; i < sparse.getNumOneHots(); i++)
+                    fromSparse[sparse.getOneHotIndex(i)] = 1f;
+                for (int slot = 0; slot < slotOffsets.length; slot++)
+                    if (sparse.getSlotLeaf(slot) != null)
+                        System.arraycopy(sparse.getSlotLeaf(slot).getWordEmbedding(), 0, fromSparse, slotOffsets[slot],
+                                FeatureVectorGenerator.getEmbeddingVectorLength());
+                if (!Arrays.equals(fromSparse, buffer))
+                    throw new IllegalStateException("Sparse features differ from feature vector");
+            });
+        }
+
+        final TimerNano boxedTimer = new TimerNano();
+        final TimerNano bufferTimer = new TimerNano();
+        long boxedBytes = 0;
+        long bufferBytes = 0;
+        for (int s = 0; s < nSentences; s++) {
+            final HatConfig config = randomConfig(sentenceLength);
+            final long seed = rng.nextLong();
+            final HatConfig copy = randomConfigCopy(config);
+
+            rng.setSeed(seed);
+            long before = allocatedBytes();
+            boxedTimer.start();
+            walkConfigs(config, () -> {
+                checksum[0] += boxedGenerator.generateFeatureVector(config)[0];
+                nConfigs[0]++;
+            });
+            boxedTimer.stop();
+            boxedBytes += allocatedBytes() - before;
+
+            rng.setSeed(seed);
+            before = allocatedBytes();
+            bufferTimer.start();
+            walkConfigs(copy, () -> {
+                generator.generateFeatureVector(copy, buffer, 0);
+                checksum[1] += buffer[0];
+            });
+            bufferTimer.stop();
+            bufferBytes += allocatedBytes() - before;
+        }
+
+        System.out.println("configurations: " + nConfigs[0] + "; vector length: " + buffer.length);
+        System.out.println("boxed lists:  " + 1e9 * boxedTimer.seconds() / nConfigs[0] + " ns, " +
+                boxedBytes / nConfigs[0] + " bytes per configuration");
+        System.out.println("float buffer: " + 1e9 * bufferTimer.seconds() / nConfigs[0] + " ns, " +
+                bufferBytes / nConfigs[0] + " bytes per configuration");
+        System.out.println("checksums: " + checksum[0] + " " + checksum[1]);
+    }
+
+    private HatConfig randomConfigCopy(final HatConfig config) {
+        final int length = config.inputLength();
+        final ConstLeaf[] leaves = new ConstLeaf[length];
+        final float[][] embeddings = new float[length][];
+        for (int i = 0; i < length; i++) {
+            leaves[i] = config.getInputLeft(i);
+            embeddings[i] = config.getInputLeft(i).getWordEmbedding();
+        }
+        return new HatConfig("", leaves, embeddings);
+    }
+
+    public static void main(String[] args) {
+        final int nSentences = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int sentenceLength = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        new FeatureVectorBenchmark(123).run(nSentences, sentenceLength);
+    }
+
+    /**
+     * The generator as it was, building boxed lists of features.
+     */
+    private static class BoxedFeatureVectorGenerator {
+        private final Map<String, Integer> posIndexMap = new HashMap<>();
+        private final Map<String, Integer> catAndPosIndexMap = new HashMap<>();
+        private final int embeddingVectorLength = FeatureVectorGenerator.getEmbeddingVectorLength();
+        private final int posVectorLength;
+        private final int embeddingAndPosVectorLength;
+        private final Double[] blankEmbeddingsAndPosVector;
+        private final Double[] blankCategoryVector;
+
+        BoxedFeatureVectorGenerator(final ConstTreebank treebank) {
+            List<String> poss = new ArrayList<>(treebank.getPoss());
+            for (int i = 0; i < poss.size(); i++) {
+                posIndexMap.put(poss.get(i), i);
+                catAndPosIndexMap.put(poss.get(i), i);
+            }
+            List<String> categories = new ArrayList<>(treebank.getCats());
+            for (int i = 0; i < categories.size(); i++)
+                catAndPosIndexMap.put(categories.get(i), poss.size() + i);
+            posVectorLength = posIndexMap.size();
+            embeddingAndPosVectorLength = embeddingVectorLength + posVectorLength;
+            blankEmbeddingsAndPosVector = new Double[embeddingAndPosVectorLength];
+            Arrays.fill(blankEmbeddingsAndPosVector, 0.0);
+            blankCategoryVector = new Double[catAndPosIndexMap.size()];
+            Arrays.fill(blankCategoryVector, 0.0);
+        }
+
+        double[] generateFeatureVector(HatConfig config) {
+            List<Double> features = new ArrayList<>();
+            features.addAll(getHatFeatures(config));
+            features.addAll(getStackFeatures(config));
+            features.addAll(getInputBufferFeatures(config));
+            return features.stream().mapToDouble(x -> x).toArray();
+        }
+
+        private List<Double> getHatFeatures(HatConfig config) {
+            List<Double> hatFeatures = new ArrayList<>();
+            if (config.hatExists()) {
+                ConstNode hatNode = config.getStackHat(0);
+                hatFeatures.addAll(oneHotEncodeCategory(hatNode));
+                hatFeatures.add(0.0);
+                hatFeatures.addAll(getLeftmostAndRightmostDependentEmbeddingsAndPos(hatNode));
+            } else {
+                for (int i = 0; i < catAndPosIndexMap.size(); i++)
+                    hatFeatures.add(0.0);
+                hatFeatures.add(1.0);
+                hatFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
+                hatFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
+            }
+            return hatFeatures;
+        }
+
+        private List<Double> oneHotEncodeCategory(ConstNode node) {
+            Double[] categoryVector = new Double[catAndPosIndexMap.size()];
+            Arrays.fill(categoryVector, 0.0);
+            categoryVector[catAndPosIndexMap.get(node.getCat())] = 1.0;
+            return Arrays.asList(categoryVector);
+        }
+
+        private List<Double> getStackFeatures(HatConfig config) {
+            List<Double> stackFeatures = new ArrayList<>();
+            if (config.stackLength() > 1) {
+                ConstNode topOfStack = config.getStackRight(0);
+                stackFeatures.addAll(getLeftmostAndRightmostDependentEmbeddingsAndPos(topOfStack));
+                stackFeatures.addAll(oneHotEncodeCategory(topOfStack));
+                if (config.stackLength() > 2) {
+                    ConstNode secondTopOfStack = config.getStackRight(1);
+                    stackFeatures.addAll(getLeftmostAndRightmostDependentEmbeddingsAndPos(secondTopOfStack));
+                    stackFeatures.addAll(oneHotEncodeCategory(secondTopOfStack));
+                } else {
+                    stackFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
+                    stackFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
+                    stackFeatures.addAll(Arrays.asList(blankCategoryVector.clone()));
+                }
+            } else {
+                for (int i = 0; i < 4; i++)
+                    stackFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
+                stackFeatures.addAll(Arrays.asList(blankCategoryVector.clone()));
+                stackFeatures.addAll(Arrays.asList(blankCategoryVector.clone()));
+            }
+            return stackFeatures;
+        }
+
+        private List<Double> getInputBufferFeatures(HatConfig config) {
+            List<Double> inputBufferFeatures = new ArrayList<>();
+            if (config.inputLength() > 1) {
+                inputBufferFeatures.addAll(Arrays.asList(getEmbeddingsAndPos(config.getInputLeft(0))));
+                if (config.inputLength() > 2)
+                    inputBufferFeatures.addAll(Arrays.asList(getEmbeddingsAndPos(config.getInputLeft(1))));
+                else
+                    inputBufferFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
+            } else {
+                inputBufferFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
+                inputBufferFeatures.addAll(Arrays.asList(blankEmbeddingsAndPosVector.clone()));
+            }
+            return inputBufferFeatures;
+        }
+
+        private List<Double> getLeftmostAndRightmostDependentEmbeddingsAndPos(ConstNode node) {
+            ConstNode left = node;
+            while (left instanceof ConstInternal)
+                left = ((ConstInternal) left).getLeftMostChild();
+            ConstNode right = node;
+            while (right instanceof ConstInternal)
+                right = ((ConstInternal) right).getRightMostChild();
+            return Stream.concat(Arrays.stream(getEmbeddingsAndPos((EnhancedConstLeaf) left)),
+                            Arrays.stream(getEmbeddingsAndPos((EnhancedConstLeaf) right)))
+                    .collect(Collectors.toList());
+        }
+
+        private Double[] getEmbeddingsAndPos(EnhancedConstLeaf node) {
+            double[] embeddingAndPosVector = new double[embeddingAndPosVectorLength];
+            embeddingAndPosVector[posIndexMap.get(node.getCat())] = 1.0;
+            float[] wordEmbeddingVector = node.getWordEmbedding();
+            for (int i = 0; i < embeddingVectorLength; i++)
+                embeddingAndPosVector[posVectorLength + i] = wordEmbeddingVector[i];
+            return Arrays.stream(embeddingAndPosVector).boxed().toArray(Double[]::new);
+        }
+    }
+}
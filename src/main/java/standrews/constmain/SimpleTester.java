@@ -11,6 +11,7 @@ import standrews.constextract.HatExtractor;
 import standrews.constextract.SimpleExtractor;
 import standrews.constbase.ConstTree;
 import standrews.constbase.ConstTreebank;
+import standrews.constmethods.DeterministicParser;
 import standrews.constmethods.HatParser;
 
 import java.io.FileNotFoundException;
@@ -18,6 +19,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.logging.Logger;
@@ -25,10 +27,28 @@ import java.util.logging.Logger;
 public class SimpleTester {
     protected FeatureVectorGenerator featureVectorGenerator;
 
+    /**
+     * Number of sentences parsed in lockstep. If 1, sentences are parsed one by one.
+     */
+    protected int parseBatchSize = 1;
+
     public SimpleTester(final FeatureVectorGenerator featureVectorGenerator) {
         this.featureVectorGenerator = featureVectorGenerator;
     }
 
+    /**
+     * Width of beam in parsing. If 1, parsing is greedy.
+     */
+    protected int beamWidth = 1;
+
+    public void setParseBatchSize(final int parseBatchSize) {
+        this.parseBatchSize = Math.max(1, parseBatchSize);
+    }
+
+    public void setBeamWidth(final int beamWidth) {
+        this.beamWidth = Math.max(1, beamWidth);
+    }
+
 	/*
 	public int test(final ConstTreebank treebank,
 					final ConstTreebank treebankParsed,
@@ -64,18 +84,40 @@ public class SimpleTester {
 
         reportFine("Testing model");
 
-        Optional<List<Pair<ConstTree, double[][]>>> miniBatchOptional = treebank.getNextMiniBatch(DatasetSplit.TEST);
+        Optional<List<Pair<ConstTree, float[][]>>> miniBatchOptional = treebank.getNextMiniBatch(DatasetSplit.TEST);
         while (miniBatchOptional.isPresent()) {
-            List<Pair<ConstTree, double[][]>> miniBatch = miniBatchOptional.get();
-
-            for (Pair<ConstTree, double[][]> treeAndEmbeddings: miniBatch) {
-                ConstTree tree = treeAndEmbeddings.getKey();
-                double[][] embeddings = treeAndEmbeddings.getValue();
-
-                HatParser parser = makeParser(tree);
-                ConstTree parsed = parser.parse(extractor, embeddings);
-
-                parsedWriter.println(parsed);
+            List<Pair<ConstTree, float[][]>> miniBatch = miniBatchOptional.get();
+
+            if (beamWidth > 1) {
+                for (Pair<ConstTree, float[][]> treeAndEmbeddings : miniBatch) {
+                    HatParser parser = makeParser(treeAndEmbeddings.getKey());
+                    ConstTree parsed = parser.parseBeam(extractor, treeAndEmbeddings.getValue(), beamWidth);
+
+                    parsedWriter.println(parsed);
+                }
+            } else if (parseBatchSize <= 1) {
+                for (Pair<ConstTree, float[][]> treeAndEmbeddings : miniBatch) {
+                    ConstTree tree = treeAndEmbeddings.getKey();
+                    float[][] embeddings = treeAndEmbeddings.getValue();
+
+                    HatParser parser = makeParser(tree);
+                    ConstTree parsed = parser.parse(extractor, embeddings);
+
+                    parsedWriter.println(parsed);
+                }
+            } else {
+                for (int start = 0; start < miniBatch.size(); start += parseBatchSize) {
+                    final List<Pair<ConstTree, float[][]>> chunk =
+                            miniBatch.subList(start, Math.min(start + parseBatchSize, miniBatch.size()));
+                    final List<HatParser> parsers = new ArrayList<>(chunk.size());
+                    final List<float[][]> embeddings = new ArrayList<>(chunk.size());
+                    for (Pair<ConstTree, float[][]> treeAndEmbeddings : chunk) {
+                        parsers.add(makeParser(treeAndEmbeddings.getKey()));
+                        embeddings.add(treeAndEmbeddings.getValue());
+                    }
+                    for (ConstTree parsed : DeterministicParser.parseBatch(extractor, parsers, embeddings))
+                        parsedWriter.println(parsed);
+                }
             }
 
             miniBatchOptional = treebank.getNextMiniBatch(DatasetSplit.TEST);
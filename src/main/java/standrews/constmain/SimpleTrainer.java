@@ -5,15 +5,20 @@
 package standrews.constmain;
 
 import javafx.util.Pair;
+import standrews.aux_.PhaseMetrics;
 import standrews.aux_.TimerMilli;
 import standrews.classification.FeatureVectorGenerator;
 import standrews.classification.MLP;
 import standrews.constbase.ClassifierName;
 import standrews.constbase.DatasetSplit;
 import standrews.constextract.HatExtractor;
+import standrews.constextract.HatObservationBuffer;
+import standrews.constextract.HatObserver;
+import standrews.constextract.ObservationShards;
 import standrews.constbase.ConstTree;
 import standrews.constbase.ConstTreebank;
 import standrews.constmethods.HatParser;
+import standrews.constmethods.OracleTraceCache;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -22,8 +27,13 @@ import java.io.UnsupportedEncodingException;
 import java.lang.invoke.MethodHandles;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -77,6 +87,58 @@ public class SimpleTrainer {
         projectivize = p;
     }
 
+    /**
+     * Number of threads running the oracle and feature generation. If 1, this is done
+     * on the calling thread.
+     */
+    protected int observerThreads = 1;
+
+    /**
+     * Workers for the oracle and feature generation, and one buffer per worker.
+     */
+    private ExecutorService observerPool;
+    private HatObservationBuffer[] observationBuffers;
+
+    public void setObserverThreads(final int n) {
+        observerThreads = Math.max(1, n);
+    }
+
+    /**
+     * If not null, actions of the static oracle for sentences already observed.
+     */
+    private OracleTraceCache traceCache = null;
+
+    /**
+     * Record the actions of the static oracle for each sentence, and replay them when
+     * the sentence is observed again, rather than running the oracle in every epoch.
+     */
+    public void setCacheOracleTraces(final boolean cache) {
+        traceCache = cache ? new OracleTraceCache(HatParser.actionNames) : null;
+    }
+
+    /**
+     * If not null, observations are written to shards before training, and read from them in every epoch.
+     */
+    private ObservationShards shards = null;
+
+    /**
+     * Number of sentences read from shards between computations of validation loss.
+     */
+    private static final int shardValidationSentences = 64;
+
+    public void setObservationShards(final ObservationShards shards) {
+        this.shards = shards;
+    }
+
+    private final PhaseMetrics metrics = PhaseMetrics.get();
+
+    /**
+     * Write what was recorded in the epoch, if recording, to the phase metrics files.
+     */
+    private void endEpochMetrics() {
+        metrics.endEpoch(lossListOutDirectory + "phaseMetrics.csv", lossListOutDirectory + "phaseMetrics.json");
+    }
+
     public void train(final ConstTreebank treebank,
                       String actionFilePath,
                       String catFilePath,
@@ -95,36 +157,53 @@ public class SimpleTrainer {
 //        copyTraining(subbank, corpusCopy);
 
         try {
+            metrics.startEpoch("setup");
+            if (shards != null) {
+                writeShards(treebank, DatasetSplit.TRAIN);
+                writeShards(treebank, DatasetSplit.VALIDATION);
+            }
+
             if (startWithValidation) {
                 validate(treebank, extractor);
             }
+            if (shards != null || startWithValidation)
+                endEpochMetrics();
 
             for (int epoch = 0; epoch < maxEpochs; epoch++) {
                 reportFine("Epoch " + epoch);
+                metrics.startEpoch("" + epoch);
 
-                Optional<List<Pair<ConstTree, double[][]>>> miniBatchOptional = treebank.getNextMiniBatch(DatasetSplit.TRAIN);
-                while (miniBatchOptional.isPresent()) {
-                    List<Pair<ConstTree, double[][]>> miniBatch = miniBatchOptional.get();
+                if (shards != null) {
+                    readShards(DatasetSplit.TRAIN, extractor, Integer.MAX_VALUE, () -> {});
+                } else {
+                    Optional<List<Pair<ConstTree, float[][]>>> miniBatchOptional = nextMiniBatch(treebank, DatasetSplit.TRAIN);
+                    while (miniBatchOptional.isPresent()) {
+                        List<Pair<ConstTree, float[][]>> miniBatch = miniBatchOptional.get();
 
-                    observeMiniBatch(extractor, miniBatch);
+                        observeMiniBatch(extractor, miniBatch);
 
-                    miniBatchOptional = treebank.getNextMiniBatch(DatasetSplit.TRAIN);
-                }
+                        miniBatchOptional = nextMiniBatch(treebank, DatasetSplit.TRAIN);
+                    }
 
-                treebank.resetTreebankIterator(DatasetSplit.TRAIN);
+                    treebank.resetTreebankIterator(DatasetSplit.TRAIN);
+                }
 
                 extractor.train();
 
                 Runtime runtime = Runtime.getRuntime();
                 System.out.println("memory usage: " + (((double) runtime.totalMemory() - (double) runtime.freeMemory())*100.0/((double) runtime.maxMemory())) + "% of " + runtime.maxMemory()/1000000000 + "gb");
 
+                metrics.start(PhaseMetrics.Phase.SAVE);
                 try {
                     extractor.saveClassifiers(actionFilePath + epoch, catFilePath + epoch, fellowFilePath + epoch);
                 } catch (IOException ioException) {
                     ioException.printStackTrace();
+                } finally {
+                    metrics.end();
                 }
 
                 validate(treebank, extractor);
+                endEpochMetrics();
 
                 if (!extractor.isTraining()) {
                     return;
@@ -222,14 +301,38 @@ public class SimpleTrainer {
         extractor.stopValidating();
     }
 
+    /**
+     * Quantize the classifiers, calibrated on a sample of the configurations of the validation set.
+     *
+     * @param sampleSize Maximum number of feature vectors sampled per classifier.
+     */
+    public void calibrateQuantization(final ConstTreebank treebank, HatExtractor extractor, int sampleSize) {
+        extractor.startValidating();
+        extractor.startCalibrating(sampleSize);
+        calculateAverageLossScores(treebank, extractor, DatasetSplit.VALIDATION);
+        extractor.stopValidating();
+        extractor.quantize();
+    }
+
     public double[] calculateAverageLossScores(ConstTreebank treebank, HatExtractor extractor, DatasetSplit datasetSplit) {
+        if (shards != null && shards.isWritten(datasetSplit)) {
+            final double[] lossScoreSums = new double[3];
+            readShards(datasetSplit, extractor, shardValidationSentences, () -> {
+                List<Double> miniBatchLossScoreSums = extractor.validateMiniBatch();
+                for (int i = 0; i < lossScoreSums.length; i++)
+                    lossScoreSums[i] += miniBatchLossScoreSums.get(i);
+            });
+            double n = treebank.getSetSize(datasetSplit);
+            return new double[] {lossScoreSums[0] / n, lossScoreSums[1] / n, lossScoreSums[2] / n};
+        }
+
         double actionClassifierLossScoreSum = 0;
         double catClassifierLossScoreSum = 0;
         double fellowClassifierLossScoreSum = 0;
 
-        Optional<List<Pair<ConstTree, double[][]>>> miniBatchOptional = treebank.getNextMiniBatch(datasetSplit);
+        Optional<List<Pair<ConstTree, float[][]>>> miniBatchOptional = nextMiniBatch(treebank, datasetSplit);
         while (miniBatchOptional.isPresent()) {
-            List<Pair<ConstTree, double[][]>> miniBatch = miniBatchOptional.get();
+            List<Pair<ConstTree, float[][]>> miniBatch = miniBatchOptional.get();
 
             observeMiniBatch(extractor, miniBatch);
 
@@ -238,7 +341,7 @@ public class SimpleTrainer {
             catClassifierLossScoreSum += lossScoreSums.get(1);
             fellowClassifierLossScoreSum += lossScoreSums.get(2);
 
-            miniBatchOptional = treebank.getNextMiniBatch(datasetSplit);
+            miniBatchOptional = nextMiniBatch(treebank, datasetSplit);
         }
 
         treebank.resetTreebankIterator(datasetSplit);
@@ -247,13 +350,133 @@ public class SimpleTrainer {
         return new double[] {actionClassifierLossScoreSum / n, catClassifierLossScoreSum / n, fellowClassifierLossScoreSum / n};
     }
 
-    private void observeMiniBatch(HatExtractor extractor, List<Pair<ConstTree, double[][]>> miniBatch) {
-        for (Pair<ConstTree, double[][]> treeAndEmbeddings: miniBatch) {
+    private Optional<List<Pair<ConstTree, float[][]>>> nextMiniBatch(final ConstTreebank treebank, final DatasetSplit split) {
+        metrics.start(PhaseMetrics.Phase.LOAD);
+        try {
+            return treebank.getNextMiniBatch(split);
+        } finally {
+            metrics.end();
+        }
+    }
+
+    private void observeMiniBatch(HatExtractor extractor, List<Pair<ConstTree, float[][]>> miniBatch) {
+        if (observerThreads > 1) {
+            observeMiniBatchConcurrently(extractor, miniBatch);
+            return;
+        }
+        for (Pair<ConstTree, float[][]> treeAndEmbeddings: miniBatch) {
             ConstTree tree = treeAndEmbeddings.getKey();
-            double[][] embeddings = treeAndEmbeddings.getValue();
+            float[][] embeddings = treeAndEmbeddings.getValue();
+
+            observe(tree, extractor, embeddings);
+        }
+    }
+
+    /**
+     * Split minibatch into contiguous slices, one per worker, each observed into the
+     * worker's own buffer. Buffers are passed to the extractor in slice order, so the
+     * classifiers see the observations in the same order as when done sequentially,
+     * and training is reproducible regardless of the number of threads.
+     */
+    private void observeMiniBatchConcurrently(HatExtractor extractor, List<Pair<ConstTree, float[][]>> miniBatch) {
+        if (observerPool == null) {
+            observerPool = Executors.newFixedThreadPool(observerThreads, runnable -> {
+                Thread thread = new Thread(runnable, "oracle-observer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            observationBuffers = new HatObservationBuffer[observerThreads];
+            for (int i = 0; i < observerThreads; i++)
+                observationBuffers[i] = new HatObservationBuffer(featureVectorGenerator);
+        }
+
+        final int sliceSize = (miniBatch.size() + observerThreads - 1) / observerThreads;
+        final List<Future<HatObservationBuffer>> slices = new ArrayList<>();
+        for (int i = 0; i * sliceSize < miniBatch.size(); i++) {
+            final List<Pair<ConstTree, float[][]>> slice =
+                    miniBatch.subList(i * sliceSize, Math.min((i + 1) * sliceSize, miniBatch.size()));
+            final HatObservationBuffer buffer = observationBuffers[i];
+            slices.add(observerPool.submit(() -> {
+                for (Pair<ConstTree, float[][]> treeAndEmbeddings : slice) {
+                    observe(treeAndEmbeddings.getKey(), buffer, treeAndEmbeddings.getValue());
+                }
+                return buffer;
+            }));
+        }
 
-            HatParser parser = makeParser(tree);
-            parser.observe(extractor, embeddings);
+        try {
+            for (Future<HatObservationBuffer> slice : slices) {
+                slice.get().drainTo(extractor);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Observe all sentences of split with the static oracle, and write the observations to shards.
+     */
+    private void writeShards(final ConstTreebank treebank, final DatasetSplit split) {
+        final TimerMilli timer = new TimerMilli();
+        timer.start();
+        try (ObservationShards.Writer writer = shards.writer(split)) {
+            Optional<List<Pair<ConstTree, float[][]>>> miniBatchOptional = nextMiniBatch(treebank, split);
+            while (miniBatchOptional.isPresent()) {
+                for (Pair<ConstTree, float[][]> treeAndEmbeddings : miniBatchOptional.get()) {
+                    writer.sentence(treeAndEmbeddings.getKey().getId(), treeAndEmbeddings.getValue());
+                    observe(treeAndEmbeddings.getKey(), writer, treeAndEmbeddings.getValue());
+                }
+                miniBatchOptional = nextMiniBatch(treebank, split);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail("Cannot write observation shards: " + e);
+        }
+        treebank.resetTreebankIterator(split);
+        timer.stop();
+        reportFine("Writing " + split + " observation shards took " + timer.seconds() + " s");
+    }
+
+    private void readShards(final DatasetSplit split, final HatExtractor extractor,
+                            final int sentencesPerGroup, final Runnable afterGroup) {
+        metrics.start(PhaseMetrics.Phase.LOAD);
+        try {
+            shards.read(split, extractor, sentencesPerGroup, afterGroup);
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail("Cannot read observation shards: " + e);
+        } finally {
+            metrics.end();
+        }
+    }
+
+    /**
+     * Observe sentence with the static oracle, or by replaying its cached actions.
+     */
+    private void observe(final ConstTree tree, final HatObserver observer, final float[][] embeddings) {
+        metrics.countSentence();
+        metrics.start(PhaseMetrics.Phase.ORACLE);
+        try {
+            observeWithOracle(tree, observer, embeddings);
+        } finally {
+            metrics.end();
+        }
+    }
+
+    private void observeWithOracle(final ConstTree tree, final HatObserver observer, final float[][] embeddings) {
+        final HatParser parser = makeParser(tree);
+        if (traceCache == null) {
+            parser.observe(observer, embeddings);
+            return;
+        }
+        final int[] trace = traceCache.get(tree.getId());
+        if (trace != null) {
+            parser.replay(observer, embeddings, Arrays.stream(trace).mapToObj(traceCache::decode).iterator());
+        } else {
+            final List<String[]> steps = new ArrayList<>();
+            parser.observe(observer, embeddings, steps);
+            traceCache.put(tree.getId(), steps);
         }
     }
 
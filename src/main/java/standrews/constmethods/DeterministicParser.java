@@ -4,10 +4,12 @@
 
 package standrews.constmethods;
 
+import org.nd4j.common.primitives.Pair;
 import standrews.constautomata.HatConfig;
 import standrews.constautomata.SimpleConfig;
 import standrews.constbase.*;
 import standrews.constextract.HatExtractor;
+import standrews.constextract.HatObserver;
 import standrews.constextract.SimpleExtractor;
 
 import java.util.*;
@@ -56,9 +58,18 @@ public abstract class DeterministicParser {
     /**
      * Make observations for parse, by default using static oracle.
      *
-     * @param extractor Extractor of features.
+     * @param extractor Receiver of configurations and actions.
      */
-    public void observe(final HatExtractor extractor, double[][] embeddings) {
+    public void observe(final HatObserver extractor, float[][] embeddings) {
+        observe(extractor, embeddings, null);
+    }
+
+    /**
+     * Make observations for parse using static oracle, and record its actions.
+     *
+     * @param trace If not null, receives the observed action and the applied action of each step, in turn.
+     */
+    public void observe(final HatObserver extractor, float[][] embeddings, final List<String[]> trace) {
         final HatConfig config = makeInitialConfig(goldTree, embeddings);
         while (!config.isFinal()) {
             final String[] action = getAction(config);
@@ -77,62 +88,92 @@ public abstract class DeterministicParser {
                 fail("training", config);
                 break;
             }
+            if (trace != null) {
+                trace.add(action);
+                trace.add(stepAction);
+            }
             apply(config, stepAction);
         }
     }
 
+    /**
+     * Make the same observations as observe, from its recorded actions, without the oracle.
+     *
+     * @param trace Observed action and applied action of each step, in turn.
+     */
+    public void replay(final HatObserver extractor, float[][] embeddings, final Iterator<String[]> trace) {
+        final HatConfig config = makeInitialConfig(goldTree, embeddings);
+        while (trace.hasNext()) {
+            extractor.extract(config, trace.next());
+            apply(config, trace.next());
+        }
+    }
+
     protected ConstInternal goldParent(ConstNode n) {
         return goldTree.getParent(n);
     }
 
     protected boolean isHead(final ConstNode node) {
-        ConstNode goldNode = goldNode(node);
-        ConstInternal goldParent = goldTree.getParent(goldNode);
-        return goldParent != null && goldParent.getHeadChild() == goldNode;
+        return goldTree.isHeadChild(goldTree.index(node));
     }
 
-    protected boolean longChain(ConstNode node) {
-        Set<String> cats = new TreeSet<>();
-        while (node instanceof ConstInternal) {
-            ConstInternal internal = (ConstInternal) node;
-            if (internal.getChildren().length != 1)
+    /**
+     * Whether node starts a chain of unary nodes in which a category repeats.
+     * Categories seen are kept as bits of a mask modulo 64, and only when the bit of
+     * a category is already set is the chain walked again to compare.
+     */
+    protected boolean longChain(final ConstNode node) {
+        long seen = 0;
+        ConstNode link = node;
+        while (link instanceof ConstInternal) {
+            final ConstInternal internal = (ConstInternal) link;
+            if (internal.getNumChildren() != 1)
                 return false;
-            if (cats.contains(internal.getCat()))
+            final int cat = internal.getCatId();
+            final long bit = cat < 0 ? 0 : 1L << (cat & 63);
+            if ((seen & bit) != 0 && repeatsCat(node, internal, cat))
                 return true;
-            cats.add(internal.getCat());
-            node = internal.getChildren()[0];
+            seen |= bit;
+            link = internal.getLeftMostChild();
         }
         return false;
     }
 
+    /**
+     * Whether a node in the unary chain from node down to, but not including, end has the category.
+     */
+    private static boolean repeatsCat(ConstNode node, final ConstInternal end, final int cat) {
+        for (; node != end; node = ((ConstInternal) node).getLeftMostChild())
+            if (node.getCatId() == cat)
+                return true;
+        return false;
+    }
+
     protected boolean areChildrenAttached(final ConstNode node) {
         if (node instanceof ConstLeaf)
             return true;
         if (node.isTop())
             return false;
         ConstInternal internal = (ConstInternal) node;
-        ConstInternal goldInternal = goldInternal(internal);
-        return internal.getChildren().length == goldInternal.getChildren().length;
+        return internal.getNumChildren() == goldTree.getNumChildren(goldTree.index(internal));
     }
 
     protected boolean areRightChildrenAttached(final ConstNode node) {
         if (node instanceof ConstLeaf)
             return true;
         ConstInternal internal = (ConstInternal) node;
-        ConstInternal goldInternal = goldInternal(internal);
-        return internal.getRightChildren().length == goldInternal.getRightChildren().length;
+        return internal.getNumRightChildren() == goldTree.getNumRightChildren(goldTree.index(internal));
     }
 
     protected boolean hasChildGold(final ConstNode n1, final ConstNode n2) {
         if (n2.isTop())
             return false;
-        final ConstNode ng2 = goldNode(n2);
+        final int i2 = goldTree.index(n2);
         if (n1.isTop())
-            return goldTree.getRoots().contains(ng2);
+            return goldTree.isRoot(i2);
         if (n1 instanceof ConstLeaf)
             return false;
-        final ConstInternal ng1 = goldInternal((ConstInternal) n1);
-        return Arrays.asList(ng1.getChildren()).contains(ng2);
+        return goldTree.isChild(goldTree.index(n1), i2);
     }
 
     protected ConstLeaf goldLeaf(ConstLeaf n) {
@@ -178,8 +219,9 @@ public abstract class DeterministicParser {
      * @param extractor Extractor of features.
      * @return Parse.
      */
-    public ConstTree parse(final SimpleExtractor extractor, double[][] embeddings) {
+    public ConstTree parse(final SimpleExtractor extractor, float[][] embeddings) {
         final HatConfig config = makeInitialConfig(goldTree, embeddings);
+        extractor.startSentence(config);
         while (!config.isFinal()) {
             final Iterator<String[]> actions = extractor.predict(config);
             if (!bestActionCompleted(config, actions)) {
@@ -188,9 +230,131 @@ public abstract class DeterministicParser {
                 break;
             }
         }
+        extractor.endSentence(config);
         return config.createParse();
     }
 
+    /**
+     * Parse sentence with beam search. Each item in the beam is scored by the sum of
+     * log-probabilities of its actions. Items that are final are kept in the beam until
+     * all items are final. At each step, the classifiers are called once for all items.
+     *
+     * @param extractor Extractor of features.
+     * @param beamWidth Number of configurations kept at each step.
+     * @return Parse from best final configuration.
+     */
+    public ConstTree parseBeam(final HatExtractor extractor, float[][] embeddings, final int beamWidth) {
+        List<BeamItem> beam = new ArrayList<>();
+        beam.add(new BeamItem(makeInitialConfig(goldTree, embeddings), 0, null));
+        extractor.startSentence(beam.get(0).config);
+        while (!beam.stream().allMatch(item -> item.config.isFinal())) {
+            final List<BeamItem> open = new ArrayList<>();
+            final List<BeamItem> candidates = new ArrayList<>();
+            for (BeamItem item : beam) {
+                if (item.config.isFinal())
+                    candidates.add(item);
+                else
+                    open.add(item);
+            }
+            final List<HatConfig> openConfigs = new ArrayList<>(open.size());
+            for (BeamItem item : open)
+                openConfigs.add(item.config);
+            final List<List<Pair<String[], Double>>> scored = extractor.scoreActions(openConfigs, beamWidth);
+            for (int j = 0; j < open.size(); j++) {
+                final BeamItem item = open.get(j);
+                for (Pair<String[], Double> action : scored.get(j)) {
+                    if (action.getValue() > Double.NEGATIVE_INFINITY && applicable(item.config, action.getKey()))
+                        candidates.add(new BeamItem(item.config, item.logProb + action.getValue(), action.getKey()));
+                }
+            }
+            if (candidates.isEmpty()) {
+                listActions(extractor.predict(open.get(0).config));
+                fail("parsing", open.get(0).config);
+                break;
+            }
+            candidates.sort((a, b) -> Double.compare(b.logProb, a.logProb));
+            beam = new ArrayList<>(beamWidth);
+            for (BeamItem candidate : candidates.subList(0, Math.min(beamWidth, candidates.size())))
+                beam.add(candidate.action == null ? candidate :
+                        new BeamItem(successor(candidate.config, candidate.action), candidate.logProb, null));
+        }
+        extractor.endSentence(beam.get(0).config);
+        return beam.get(0).config.createParse();
+    }
+
+    /**
+     * Configuration in beam, or candidate that still needs action applied to it.
+     */
+    private static class BeamItem {
+        final HatConfig config;
+        final double logProb;
+        final String[] action;
+
+        BeamItem(final HatConfig config, final double logProb, final String[] action) {
+            this.config = config;
+            this.logProb = logProb;
+            this.action = action;
+        }
+    }
+
+    /**
+     * Configuration resulting from applying action to a branch of the configuration,
+     * leaving the configuration itself unchanged.
+     */
+    protected HatConfig successor(final HatConfig config, final String[] action) {
+        final HatConfig next = config.branch();
+        apply(next, action);
+        return next;
+    }
+
+    /**
+     * Parse several sentences in lockstep, so that at each step the
+     * classifiers are called once for all sentences not yet finished.
+     *
+     * @param extractor Extractor of features.
+     * @param parsers Parsers, one per sentence.
+     * @param embeddings Embeddings of the sentences, in the same order.
+     * @return Parses, in the same order.
+     */
+    public static List<ConstTree> parseBatch(final SimpleExtractor extractor,
+                                             final List<? extends DeterministicParser> parsers,
+                                             final List<float[][]> embeddings) {
+        final int n = parsers.size();
+        final HatConfig[] configs = new HatConfig[n];
+        for (int i = 0; i < n; i++) {
+            configs[i] = parsers.get(i).makeInitialConfig(parsers.get(i).goldTree, embeddings.get(i));
+            extractor.startSentence(configs[i]);
+        }
+        List<Integer> active = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            if (!configs[i].isFinal())
+                active.add(i);
+        while (!active.isEmpty()) {
+            final List<HatConfig> activeConfigs = new ArrayList<>(active.size());
+            for (int i : active)
+                activeConfigs.add(configs[i]);
+            final List<Iterator<String[]>> actions = extractor.predict(activeConfigs);
+            final List<Integer> remaining = new ArrayList<>(active.size());
+            for (int j = 0; j < active.size(); j++) {
+                final int i = active.get(j);
+                final DeterministicParser parser = parsers.get(i);
+                if (!parser.bestActionCompleted(configs[i], actions.get(j))) {
+                    parser.listActions(extractor.predict(configs[i]));
+                    parser.fail("parsing", configs[i]);
+                } else if (!configs[i].isFinal()) {
+                    remaining.add(i);
+                }
+            }
+            active = remaining;
+        }
+        final List<ConstTree> parses = new ArrayList<>(n);
+        for (HatConfig config : configs) {
+            extractor.endSentence(config);
+            parses.add(config.createParse());
+        }
+        return parses;
+    }
+
     /**
      * Report failure of action.
      *
@@ -248,7 +412,7 @@ public abstract class DeterministicParser {
         return getAction(config);
     }
 
-    protected abstract HatConfig makeInitialConfig(final ConstTree tree, double[][] embeddings);
+    protected abstract HatConfig makeInitialConfig(final ConstTree tree, float[][] embeddings);
 
     protected abstract String[] getAction(final SimpleConfig config);
 
@@ -166,22 +166,20 @@ public class HatParser extends SimpleParser {
 
     protected void reduceToHat(final HatConfig config, final int i) {
         final ConstInternal parent = (ConstInternal) config.getStackHat(0);
-        final ConstNode child = config.removeStackHat(i);
-        if (i < 0)
-            parent.addChildLeft(child);
-        else
-            parent.addChildRight(child);
+        final ConstNode child = config.getStackHat(i);
+        config.setStackLeft(config.getAbsoluteHatIndex(),
+                i < 0 ? parent.withChildLeft(child) : parent.withChildRight(child));
+        config.removeStackHat(i);
         if (i < 0)
             config.decrementHatIndex();
     }
 
     protected void reduceFromHat(final HatConfig config, final int i) {
         final ConstInternal parent = (ConstInternal) config.getStackHat(i);
-        final ConstNode child = config.removeStackHat(0);
-        if (i < 0)
-            parent.addChildRight(child);
-        else
-            parent.addChildLeft(child);
+        final ConstNode child = config.getStackHat(0);
+        config.setStackLeft(config.getHatAbsoluteIndex(i),
+                i < 0 ? parent.withChildRight(child) : parent.withChildLeft(child));
+        config.removeStackHat(0);
         config.setRelativeHatIndex(i);
         if (i > 0)
             config.decrementHatIndex();
@@ -253,11 +251,8 @@ public class HatParser extends SimpleParser {
      */
     protected static String firstCatIndexLeft(
             final HatConfig config, final String cat, final int viewMin) {
-        for (int i = config.getAbsoluteHatIndex() + viewMin - 1; i > 0; i--) {
-            if (config.getStackLeft(i).getCat().equals(cat))
-                return "" + config.getHatRelativeIndex(i);
-        }
-        return null;
+        final int i = config.lastStackIndexOfCat(cat, config.getAbsoluteHatIndex() + viewMin);
+        return i > 0 ? "" + config.getHatRelativeIndex(i) : null;
     }
 
     /**
@@ -265,11 +260,8 @@ public class HatParser extends SimpleParser {
      */
     protected static String firstCatIndexRight(
             final HatConfig config, final String cat, final int viewMax) {
-        for (int i = config.getAbsoluteHatIndex() + viewMax + 1; i < config.stackLength(); i++) {
-            if (config.getStackLeft(i).getCat().equals(cat))
-                return "" + config.getHatRelativeIndex(i);
-        }
-        return null;
+        final int i = config.stackIndexOfCat(cat, config.getAbsoluteHatIndex() + viewMax + 1);
+        return i > 0 ? "" + config.getHatRelativeIndex(i) : null;
     }
 
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2019. University of St Andrews
+ */
+
+package standrews.constmethods;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Actions of the static oracle for sentences, by sentence id. As the oracle is deterministic,
+ * a sentence observed again in a later epoch can be replayed from its trace, without the oracle.
+ *
+ * Each step is kept as two ints, for the observed action and the applied action. An int holds
+ * the index of the action name and, shifted left, the fellow index or the index of the category.
+ * Safe for use by several threads.
+ */
+public class OracleTraceCache {
+    private static final int NAME_BITS = 2;
+    private static final int NAME_MASK = (1 << NAME_BITS) - 1;
+
+    private final String[] actionNames;
+
+    private final Map<String, int[]> traces = new ConcurrentHashMap<>();
+
+    private final Map<String, Integer> catIndices = new HashMap<>();
+    private final List<String> cats = new ArrayList<>();
+
+    /**
+     * @param actionNames Names of actions, of which there are at most four. An action with a
+     *                    second part that is an integer is stored as such; otherwise the second
+     *                    part is taken to be a category.
+     */
+    public OracleTraceCache(final String[] actionNames) {
+        if (actionNames.length > NAME_MASK + 1)
+            throw new IllegalArgumentException("Error: too many actions for trace");
+        this.actionNames = actionNames;
+    }
+
+    public int[] get(final String id) {
+        return traces.get(id);
+    }
+
+    /**
+     * @param steps Observed action and applied action of each step, in turn.
+     */
+    public void put(final String id, final List<String[]> steps) {
+        final int[] trace = new int[steps.size()];
+        for (int i = 0; i < trace.length; i++)
+            trace[i] = encode(steps.get(i));
+        traces.put(id, trace);
+    }
+
+    public int size() {
+        return traces.size();
+    }
+
+    public void clear() {
+        traces.clear();
+    }
+
+    private int encode(final String[] action) {
+        int name = 0;
+        while (!actionNames[name].equals(action[0]))
+            name++;
+        if (action.length == 1)
+            return name;
+        return (argument(action[0], action[1]) << NAME_BITS) | name;
+    }
+
+    private int argument(final String name, final String arg) {
+        if (name.equals(HatParser.reduceToHat) || name.equals(HatParser.reduceFromHat))
+            return Integer.parseInt(arg);
+        synchronized (cats) {
+            return catIndices.computeIfAbsent(arg, cat -> {
+                cats.add(cat);
+                return cats.size() - 1;
+            });
+        }
+    }
+
+    public String[] decode(final int code) {
+        final String name = actionNames[code & NAME_MASK];
+        final int arg = code >> NAME_BITS;
+        switch (name) {
+            case HatParser.reduceUpHat:
+                synchronized (cats) {
+                    return new String[]{name, cats.get(arg)};
+                }
+            case HatParser.reduceToHat:
+            case HatParser.reduceFromHat:
+                return new String[]{name, "" + arg};
+            default:
+                return new String[]{name};
+        }
+    }
+}
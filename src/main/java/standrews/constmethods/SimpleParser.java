@@ -63,7 +63,7 @@ public class SimpleParser extends DeterministicParser {
     }
 
     @Override
-    protected HatConfig makeInitialConfig(final ConstTree goldTree, double[][] embeddings) {
+    protected HatConfig makeInitialConfig(final ConstTree goldTree, float[][] embeddings) {
         HatConfig config = new HatConfig(goldTree.getId(), goldTree.getLeaves(), embeddings);
         config.goldTree = goldTree;
         return config;
@@ -104,9 +104,8 @@ public class SimpleParser extends DeterministicParser {
         if (nodeParse.isTop())
             return true;
         ConstInternal parentParse = (ConstInternal) nodeParse;
-        final ConstInternal parentGold = goldInternal(parentParse);
-        final ConstNode childGold = goldNode(childParse);
-        return parentGold.getPreviousChildren(childGold, leftDependentsFirst).length == parentParse.getChildren().length;
+        return goldTree.getNumPreviousChildren(goldTree.index(parentParse), goldTree.index(childParse),
+                leftDependentsFirst) == parentParse.getNumChildren();
     }
 
     @Override
@@ -165,12 +164,12 @@ public class SimpleParser extends DeterministicParser {
     protected void reduceLeft(final SimpleConfig config) {
         final ConstInternal parent = (ConstInternal) config.getStackRight(1);
         final ConstNode child = config.removeStackRight(0);
-        parent.addChildRight(child);
+        config.setStackLeft(config.stackLength() - 1, parent.withChildRight(child));
     }
 
     protected void reduceRight(final SimpleConfig config) {
         final ConstInternal parent = (ConstInternal) config.getStackRight(0);
         final ConstNode child = config.removeStackRight(1);
-        parent.addChildLeft(child);
+        config.setStackLeft(config.stackLength() - 1, parent.withChildLeft(child));
     }
 }
@@ -163,11 +163,12 @@ public class WholeHatParser extends HatParser {
     }
 
     protected void reduceRoots(final HatConfig config, final int[] children) {
-        final ConstInternal root = (ConstInternal) config.getStackLeft(0);
+        final ConstInternal root = new ConstInternal((ConstInternal) config.getStackLeft(0));
         for (int i = 0; i < children.length; i++) {
             final ConstNode child = config.removeStackLeft(children[i] - i);
             root.addChildRight(child);
         }
+        config.setStackLeft(0, root);
     }
 
     public void observe(final WholeHatExtractor extractor) {
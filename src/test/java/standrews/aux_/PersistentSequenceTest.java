@@ -0,0 +1,140 @@
+package standrews.aux_;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.ToIntFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * PersistentSequence against scans of an ArrayList, after random changes.
+ */
+class PersistentSequenceTest {
+    /**
+     * Keys of elements, of which some differ by multiples of 128 and so share bits of the masks.
+     */
+    private static final ToIntFunction<int[]> KEY_OF = element -> element[0];
+    private static final int MAX_KEY = 300;
+
+    @Test
+    void randomChangesMatchList() {
+        final Random random = new Random(10);
+        for (int run = 0; run < 20; run++) {
+            PersistentSequence<int[]> sequence = PersistentSequence.empty(KEY_OF);
+            final List<int[]> list = new ArrayList<>();
+            for (int step = 0; step < 500; step++) {
+                final PersistentSequence<int[]> previous = sequence;
+                final List<int[]> previousList = new ArrayList<>(list);
+                final int op = list.isEmpty() ? 0 : random.nextInt(4);
+                if (op <= 1) {
+                    final int i = random.nextInt(list.size() + 1);
+                    final int[] element = randomElement(random);
+                    sequence = sequence.insert(i, element);
+                    list.add(i, element);
+                } else if (op == 2) {
+                    final int i = random.nextInt(list.size());
+                    sequence = sequence.remove(i);
+                    list.remove(i);
+                } else {
+                    final int i = random.nextInt(list.size());
+                    final int[] element = randomElement(random);
+                    sequence = sequence.set(i, element);
+                    list.set(i, element);
+                }
+                assertSame(list, sequence, random);
+                // changes leave the sequence they are made from as it was
+                assertEquals(previousList, previous.toList());
+            }
+        }
+    }
+
+    @Test
+    void appendsAndRemovalsAtEndsMatchList() {
+        // appending and removing at either end repeatedly rotates the tree the same way
+        final Random random = new Random(11);
+        PersistentSequence<int[]> sequence = PersistentSequence.empty(KEY_OF);
+        final List<int[]> list = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final int[] element = randomElement(random);
+            if (i % 2 == 0) {
+                sequence = sequence.add(element);
+                list.add(element);
+            } else {
+                sequence = sequence.insert(0, element);
+                list.add(0, element);
+            }
+        }
+        assertSame(list, sequence, random);
+        while (!list.isEmpty()) {
+            if (list.size() % 3 == 0) {
+                sequence = sequence.remove(0);
+                list.remove(0);
+            } else {
+                sequence = sequence.remove(list.size() - 1);
+                list.remove(list.size() - 1);
+            }
+            if (list.size() % 50 == 0)
+                assertSame(list, sequence, random);
+        }
+        assertTrue(sequence.isEmpty());
+    }
+
+    @Test
+    void sequenceFromListMatchesList() {
+        final Random random = new Random(12);
+        final List<int[]> list = new ArrayList<>();
+        for (int i = 0; i < 700; i++)
+            list.add(randomElement(random));
+        assertSame(list, PersistentSequence.of(list, KEY_OF), random);
+        assertEquals(-1, PersistentSequence.of(list).indexOf(list.get(0)[0], 0));
+    }
+
+    private static int[] randomElement(Random random) {
+        // few distinct keys, so that searches often succeed, and some without key
+        final int key = random.nextInt(10) == 0 ? -1 : random.nextInt(12) * 64 % MAX_KEY + random.nextInt(3);
+        return new int[]{key};
+    }
+
+    private static void assertSame(List<int[]> list, PersistentSequence<int[]> sequence, Random random) {
+        assertEquals(list.size(), sequence.size());
+        assertEquals(list, sequence.toList());
+        for (int i = 0; i < list.size(); i++)
+            assertEquals(list.get(i), sequence.get(i));
+        for (int query = 0; query < 20; query++) {
+            final int key = random.nextInt(4) == 0 ? random.nextInt(MAX_KEY) : KEY_OF.applyAsInt(randomOf(list, random));
+            final int from = random.nextInt(list.size() + 2) - 1;
+            assertEquals(indexOf(list, key, from), sequence.indexOf(key, from), "indexOf " + key + " from " + from);
+            assertEquals(lastIndexOf(list, key, from), sequence.lastIndexOf(key, from), "lastIndexOf " + key + " before " + from);
+        }
+        assertEquals(-1, sequence.indexOf(-1, 0));
+        assertEquals(-1, sequence.lastIndexOf(-1, list.size()));
+    }
+
+    private static int[] randomOf(List<int[]> list, Random random) {
+        return list.isEmpty() ? new int[]{0} : list.get(random.nextInt(list.size()));
+    }
+
+    /**
+     * As PersistentSequence.indexOf, which finds no element for a negative key.
+     */
+    private static int indexOf(List<int[]> list, int key, int from) {
+        if (key < 0)
+            return -1;
+        for (int i = Math.max(from, 0); i < list.size(); i++)
+            if (list.get(i)[0] == key)
+                return i;
+        return -1;
+    }
+
+    private static int lastIndexOf(List<int[]> list, int key, int before) {
+        if (key < 0)
+            return -1;
+        for (int i = Math.min(before, list.size()) - 1; i >= 0; i--)
+            if (list.get(i)[0] == key)
+                return i;
+        return -1;
+    }
+}
@@ -0,0 +1,53 @@
+package standrews.classification;
+
+import org.junit.jupiter.api.Test;
+import standrews.constbase.EnhancedConstLeaf;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * FloatNetwork against the output of the DL4J network it was copied from.
+ */
+class FloatNetworkTest {
+    private static final double TOLERANCE = 1e-5;
+
+    @Test
+    void denseScoresMatchNetwork() {
+        final Random random = new Random(1);
+        final FeatureVectorGenerator featureVectorGenerator = NetworkFixtures.featureVectorGenerator();
+        final MLP mlp = NetworkFixtures.factory(featureVectorGenerator)
+                .makeMLP(new ActionResponseVectorGenerator(), 16, 0.1, 10);
+        final EnhancedConstLeaf[] sentence = NetworkFixtures.sentence(random, 7);
+        final float[][] vectors = NetworkFixtures.featureVectors(featureVectorGenerator,
+                NetworkFixtures.randomFeatures(random, featureVectorGenerator, sentence, 40));
+
+        final double[][] expected = mlp.scores(vectors);
+        mlp.setFloatInference(true);
+        assertTrue(mlp.isFloatInference());
+        final double[][] actual = mlp.scores(vectors);
+
+        assertEquals(vectors.length, actual.length);
+        assertTrue(NetworkFixtures.maxDifference(expected, actual) < TOLERANCE,
+                "difference " + NetworkFixtures.maxDifference(expected, actual));
+    }
+
+    @Test
+    void sparseScoresMatchNetwork() {
+        final Random random = new Random(2);
+        final FeatureVectorGenerator featureVectorGenerator = NetworkFixtures.featureVectorGenerator();
+        final MLP mlp = NetworkFixtures.factory(featureVectorGenerator)
+                .makeMLP(new ActionResponseVectorGenerator(), 16, 0.1, 10);
+        final EnhancedConstLeaf[] sentence = NetworkFixtures.sentence(random, 5);
+        final List<SparseFeatures> features = NetworkFixtures.randomFeatures(random, featureVectorGenerator, sentence, 40);
+
+        final double[][] expected = mlp.scores(NetworkFixtures.featureVectors(featureVectorGenerator, features));
+        mlp.setFloatInference(true);
+        final double[][] actual = mlp.scores(features, featureVectorGenerator);
+
+        assertTrue(NetworkFixtures.maxDifference(expected, actual) < TOLERANCE,
+                "difference " + NetworkFixtures.maxDifference(expected, actual));
+    }
+}
@@ -0,0 +1,155 @@
+package standrews.classification;
+
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import standrews.constbase.EnhancedConstLeaf;
+import standrews.constmethods.HatParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Fitting with masked heads, validation, and inference in plain Java of a network with shared hidden layers.
+ */
+class MultiHeadMLPTest {
+    private static final double TOLERANCE = 1e-5;
+    private static final int ACTION = 0;
+    private static final int FELLOW = 1;
+    private static final int MINI_BATCH_SIZE = 16;
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void maskedHeadIsNotUpdated() throws IOException {
+        final Random random = new Random(6);
+        final FeatureVectorGenerator featureVectorGenerator = NetworkFixtures.featureVectorGenerator();
+        final MultiHeadMLP mlp = multiHeadMLP(featureVectorGenerator, 10);
+        final EnhancedConstLeaf[] sentence = NetworkFixtures.sentence(random, 8);
+        final ComputationGraph before = saved(mlp, "before");
+
+        // the fellow head applies to none of the observations, so one minibatch is fitted without it
+        for (SparseFeatures features : NetworkFixtures.randomFeatures(random, featureVectorGenerator, sentence, MINI_BATCH_SIZE))
+            mlp.addObservation(features, new Object[]{randomAction(random), null});
+        final ComputationGraph after = saved(mlp, "after");
+
+        assertNotEquals(params(before, "hidden0"), params(after, "hidden0"));
+        assertNotEquals(params(before, "action"), params(after, "action"));
+        assertEquals(params(before, "fellow"), params(after, "fellow"));
+    }
+
+    @Test
+    void stoppedHeadIsNotUpdated() throws IOException {
+        final Random random = new Random(7);
+        final FeatureVectorGenerator featureVectorGenerator = NetworkFixtures.featureVectorGenerator();
+        final MultiHeadMLP mlp = multiHeadMLP(featureVectorGenerator, 0);
+        final EnhancedConstLeaf[] sentence = NetworkFixtures.sentence(random, 8);
+        final MLP fellowHead = mlp.getHead(FELLOW);
+        fellowHead.applyEarlyStoppingIfApplicable(1.0);
+        fellowHead.applyEarlyStoppingIfApplicable(1.0);
+        assertFalse(fellowHead.isTraining());
+        assertTrue(mlp.isTraining());
+        final ComputationGraph before = saved(mlp, "before");
+
+        for (SparseFeatures features : NetworkFixtures.randomFeatures(random, featureVectorGenerator, sentence, MINI_BATCH_SIZE))
+            mlp.addObservation(features, new Object[]{randomAction(random), randomFellow(random)});
+        final ComputationGraph after = saved(mlp, "after");
+
+        assertNotEquals(params(before, "action"), params(after, "action"));
+        assertEquals(params(before, "fellow"), params(after, "fellow"));
+    }
+
+    @Test
+    void validationLossIsSummedOverObservationsOfHead() {
+        final Random random = new Random(8);
+        final FeatureVectorGenerator featureVectorGenerator = NetworkFixtures.featureVectorGenerator();
+        final MultiHeadMLP mlp = multiHeadMLP(featureVectorGenerator, 10);
+        final EnhancedConstLeaf[] sentence = NetworkFixtures.sentence(random, 8);
+        final List<SparseFeatures> features = NetworkFixtures.randomFeatures(random, featureVectorGenerator, sentence, 2 * MINI_BATCH_SIZE);
+        final Object[][] responses = new Object[features.size()][];
+        for (int i = 0; i < responses.length; i++)
+            responses[i] = new Object[]{randomAction(random), i % 3 == 0 ? randomFellow(random) : null};
+
+        final double[][][] scores = mlp.scores(NetworkFixtures.featureVectors(featureVectorGenerator, features));
+        final ResponseVectorGenerator[] responseVectorGenerators = {
+                new ActionResponseVectorGenerator(), new FellowResponseVectorGenerator()};
+        final double[] expected = new double[2];
+        for (int i = 0; i < responses.length; i++) {
+            for (int h = 0; h < expected.length; h++) {
+                if (responses[i][h] == null)
+                    continue;
+                final float[] response = responseVectorGenerators[h].generateResponseVector(responses[i][h]);
+                for (int j = 0; j < response.length; j++)
+                    expected[h] -= response[j] * Math.log(scores[h][i][j]);
+            }
+        }
+
+        // more observations than a minibatch, which are not fitted while validating
+        mlp.startValidating();
+        for (int i = 0; i < responses.length; i++)
+            mlp.addObservation(features.get(i), responses[i]);
+        final double[] actual = mlp.validateMiniBatch();
+        mlp.stopValidating();
+
+        assertEquals(expected[ACTION], actual[ACTION], 1e-4);
+        assertEquals(expected[FELLOW], actual[FELLOW], 1e-4);
+        assertArrayEquals(new double[2], mlp.validateMiniBatch());
+    }
+
+    @Test
+    void floatScoresMatchNetwork() {
+        final Random random = new Random(9);
+        final FeatureVectorGenerator featureVectorGenerator = NetworkFixtures.featureVectorGenerator();
+        final MultiHeadMLP mlp = multiHeadMLP(featureVectorGenerator, 10);
+        final EnhancedConstLeaf[] sentence = NetworkFixtures.sentence(random, 8);
+        for (SparseFeatures features : NetworkFixtures.randomFeatures(random, featureVectorGenerator, sentence, MINI_BATCH_SIZE))
+            mlp.addObservation(features, new Object[]{randomAction(random), randomFellow(random)});
+        final List<SparseFeatures> features = NetworkFixtures.randomFeatures(random, featureVectorGenerator, sentence, 40);
+        final float[][] vectors = NetworkFixtures.featureVectors(featureVectorGenerator, features);
+
+        final double[][][] expected = mlp.scores(vectors);
+        mlp.setFloatInference(true);
+        assertTrue(mlp.isFloatInference());
+        final double[][][] dense = mlp.scores(vectors);
+        final double[][][] sparse = mlp.scores(features, featureVectorGenerator);
+
+        for (int h = 0; h < expected.length; h++) {
+            assertTrue(NetworkFixtures.maxDifference(expected[h], dense[h]) < TOLERANCE);
+            assertTrue(NetworkFixtures.maxDifference(expected[h], sparse[h]) < TOLERANCE);
+        }
+    }
+
+    private static MultiHeadMLP multiHeadMLP(FeatureVectorGenerator featureVectorGenerator, int patience) {
+        final MultiHeadMLP mlp = NetworkFixtures.factory(featureVectorGenerator).makeMultiHeadMLP(
+                new ResponseVectorGenerator[]{new ActionResponseVectorGenerator(), new FellowResponseVectorGenerator()},
+                new String[]{"action", "fellow"}, MINI_BATCH_SIZE, 0.1, patience);
+        mlp.setFeatureVectorGenerator(featureVectorGenerator);
+        return mlp;
+    }
+
+    private ComputationGraph saved(MultiHeadMLP mlp, String name) throws IOException {
+        final File file = tmp.resolve(name).toFile();
+        mlp.save(file.getPath());
+        return ComputationGraph.load(file, false);
+    }
+
+    private static INDArray params(ComputationGraph network, String layer) {
+        return network.getLayer(layer).params();
+    }
+
+    private static String randomAction(Random random) {
+        return HatParser.actionNames[random.nextInt(HatParser.actionNames.length)];
+    }
+
+    private static int randomFellow(Random random) {
+        final int fellow = 1 + random.nextInt(FellowResponseVectorGenerator.absMaxFellowIndex + 1);
+        return random.nextBoolean() ? fellow : -fellow;
+    }
+}
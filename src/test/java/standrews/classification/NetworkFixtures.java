@@ -0,0 +1,109 @@
+package standrews.classification;
+
+import standrews.constbase.ConstLeaf;
+import standrews.constbase.ConstTree;
+import standrews.constbase.ConstTreebank;
+import standrews.constbase.EnhancedConstLeaf;
+
+import java.util.*;
+
+/**
+ * Small feature vector generator, sentences and networks on which classifiers are compared.
+ */
+class NetworkFixtures {
+    static final int[] HIDDEN_LAYERS = {24, 16};
+    static final int SEED = 123;
+
+    static FeatureVectorGenerator featureVectorGenerator() {
+        final ConstTreebank treebank = new ConstTreebank("test",
+                new TreeSet<>(List.of("ADJA", "ART", "NN", "VVFIN")),
+                new TreeSet<>(List.of("NP", "S", "VP")),
+                new TreeSet<>(List.of("HD", "NK", "SB")),
+                new ConstTree[0]);
+        return new FeatureVectorGenerator(treebank);
+    }
+
+    static MLPFactory factory(FeatureVectorGenerator featureVectorGenerator) {
+        return new MLPFactory(featureVectorGenerator.getVectorLength(), HIDDEN_LAYERS, 0, 0, 0.01, 0, SEED);
+    }
+
+    /**
+     * Leaves of a sentence with random embeddings.
+     */
+    static EnhancedConstLeaf[] sentence(Random random, int length) {
+        final String[] poss = {"ADJA", "ART", "NN", "VVFIN"};
+        final EnhancedConstLeaf[] leaves = new EnhancedConstLeaf[length];
+        for (int i = 0; i < length; i++) {
+            final float[] embedding = new float[FeatureVectorGenerator.getEmbeddingVectorLength()];
+            for (int k = 0; k < embedding.length; k++)
+                embedding[k] = (float) random.nextGaussian();
+            leaves[i] = new EnhancedConstLeaf(new ConstLeaf(i, "w" + i, poss[i % poss.length], "NK"), embedding);
+        }
+        return leaves;
+    }
+
+    static float[][] embeddings(EnhancedConstLeaf[] sentence) {
+        final float[][] embeddings = new float[sentence.length][];
+        for (int i = 0; i < sentence.length; i++)
+            embeddings[i] = sentence[i].getWordEmbedding();
+        return embeddings;
+    }
+
+    /**
+     * Sparse features with distinct random one-hot elements outside the embedding slots, and
+     * random leaves of the sentence in some of the slots.
+     */
+    static SparseFeatures randomFeatures(Random random, FeatureVectorGenerator featureVectorGenerator,
+                                         EnhancedConstLeaf[] sentence) {
+        final int[] slotOffsets = featureVectorGenerator.getEmbeddingSlotOffsets();
+        final int embeddingLength = FeatureVectorGenerator.getEmbeddingVectorLength();
+        final SparseFeatures features = new SparseFeatures();
+        final Set<Integer> oneHots = new TreeSet<>();
+        final int nOneHots = 1 + random.nextInt(8);
+        while (oneHots.size() < nOneHots) {
+            final int index = random.nextInt(featureVectorGenerator.getVectorLength());
+            boolean inSlot = false;
+            for (int offset : slotOffsets)
+                inSlot |= index >= offset && index < offset + embeddingLength;
+            if (!inSlot)
+                oneHots.add(index);
+        }
+        for (int index : oneHots)
+            features.oneHot(index);
+        for (int slot = 0; slot < slotOffsets.length; slot++)
+            if (random.nextInt(4) > 0)
+                features.embedding(slot, sentence[random.nextInt(sentence.length)]);
+        return features.compact();
+    }
+
+    static List<SparseFeatures> randomFeatures(Random random, FeatureVectorGenerator featureVectorGenerator,
+                                               EnhancedConstLeaf[] sentence, int n) {
+        final List<SparseFeatures> features = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            features.add(randomFeatures(random, featureVectorGenerator, sentence));
+        return features;
+    }
+
+    static float[][] featureVectors(FeatureVectorGenerator featureVectorGenerator, List<SparseFeatures> features) {
+        final float[][] vectors = new float[features.size()][featureVectorGenerator.getVectorLength()];
+        for (int i = 0; i < vectors.length; i++)
+            featureVectorGenerator.generateFeatureVector(features.get(i), vectors[i], 0);
+        return vectors;
+    }
+
+    /**
+     * Largest difference between corresponding elements.
+     */
+    static double maxDifference(double[][] expected, double[][] actual) {
+        if (expected.length != actual.length)
+            throw new IllegalArgumentException("Different numbers of rows");
+        double max = 0;
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i].length != actual[i].length)
+                throw new IllegalArgumentException("Different row lengths");
+            for (int j = 0; j < expected[i].length; j++)
+                max = Math.max(max, Math.abs(expected[i][j] - actual[i][j]));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,58 @@
+package standrews.classification;
+
+import org.junit.jupiter.api.Test;
+import standrews.constbase.EnhancedConstLeaf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * ProjectedFirstLayer against the network run on the dense feature vectors.
+ */
+class ProjectedFirstLayerTest {
+    private static final double TOLERANCE = 1e-5;
+
+    @Test
+    void scoresMatchNetwork() {
+        compareWithNetwork(false);
+    }
+
+    @Test
+    void scoresWithFloatNetworkMatchNetwork() {
+        compareWithNetwork(true);
+    }
+
+    private void compareWithNetwork(boolean floatInference) {
+        final Random random = new Random(3);
+        final FeatureVectorGenerator featureVectorGenerator = NetworkFixtures.featureVectorGenerator();
+        final MLP mlp = NetworkFixtures.factory(featureVectorGenerator)
+                .makeMLP(new ActionResponseVectorGenerator(), 16, 0.1, 10);
+
+        // configurations from two sentences, so that each uses the projections of its own
+        final List<SparseFeatures> features = new ArrayList<>();
+        final List<float[][][]> projections = new ArrayList<>();
+        final List<EnhancedConstLeaf[]> sentences = List.of(
+                NetworkFixtures.sentence(random, 6), NetworkFixtures.sentence(random, 9));
+        mlp.setFloatInference(floatInference);
+        final ProjectedFirstLayer layer = mlp.makeProjectedFirstLayer(featureVectorGenerator);
+        assertNotNull(layer);
+        for (EnhancedConstLeaf[] sentence : sentences) {
+            final float[][][] sentenceProjections = layer.projectSentence(NetworkFixtures.embeddings(sentence));
+            for (SparseFeatures f : NetworkFixtures.randomFeatures(random, featureVectorGenerator, sentence, 20)) {
+                features.add(f);
+                projections.add(sentenceProjections);
+            }
+        }
+
+        mlp.setFloatInference(false);
+        final double[][] expected = mlp.scores(NetworkFixtures.featureVectors(featureVectorGenerator, features));
+        final double[][] actual = layer.scores(features, projections);
+
+        assertEquals(features.size(), actual.length);
+        assertTrue(NetworkFixtures.maxDifference(expected, actual) < TOLERANCE,
+                "difference " + NetworkFixtures.maxDifference(expected, actual));
+    }
+}
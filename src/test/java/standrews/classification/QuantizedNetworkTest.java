@@ -0,0 +1,78 @@
+package standrews.classification;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import standrews.constbase.EnhancedConstLeaf;
+import standrews.constmethods.HatParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Quantization of a classifier, and saving and loading of the quantized network.
+ */
+class QuantizedNetworkTest {
+    @TempDir
+    Path tmp;
+
+    @Test
+    void loadedNetworkGivesSameScores() throws IOException {
+        final Random random = new Random(4);
+        final FeatureVectorGenerator featureVectorGenerator = NetworkFixtures.featureVectorGenerator();
+        final MLP mlp = quantizedMLP(random, featureVectorGenerator);
+        final EnhancedConstLeaf[] sentence = NetworkFixtures.sentence(random, 8);
+        final List<SparseFeatures> features = NetworkFixtures.randomFeatures(random, featureVectorGenerator, sentence, 30);
+        final float[][] vectors = NetworkFixtures.featureVectors(featureVectorGenerator, features);
+
+        final String filePath = tmp.resolve("action").toString();
+        mlp.save(filePath);
+        assertFalse(new File(filePath).exists());
+        final QuantizedNetwork loaded = QuantizedNetwork.load(filePath + MLP.quantizedSuffix);
+        final MLP loadedMLP = new MLP(loaded, new ActionResponseVectorGenerator());
+
+        assertTrue(loadedMLP.isQuantized());
+        assertFalse(loadedMLP.isTraining());
+        assertArrayEquals(mlp.scores(vectors), loadedMLP.scores(vectors));
+        assertArrayEquals(mlp.scores(features, featureVectorGenerator), loadedMLP.scores(features, featureVectorGenerator));
+    }
+
+    @Test
+    void releasedNetworkIsNotUsed() {
+        final Random random = new Random(5);
+        final FeatureVectorGenerator featureVectorGenerator = NetworkFixtures.featureVectorGenerator();
+        final MLP mlp = quantizedMLP(random, featureVectorGenerator);
+
+        assertFalse(mlp.isTraining());
+        assertThrows(IllegalStateException.class, mlp::getDataType);
+        assertNull(mlp.makeProjectedFirstLayer(featureVectorGenerator));
+        // training after quantization has no effect
+        mlp.addObservation(NetworkFixtures.randomFeatures(random, featureVectorGenerator,
+                NetworkFixtures.sentence(random, 3)), HatParser.actionNames[0]);
+        mlp.train();
+        assertEquals(0, mlp.validateMiniBatch());
+    }
+
+    /**
+     * Classifier quantized after calibration on validation observations.
+     */
+    private static MLP quantizedMLP(Random random, FeatureVectorGenerator featureVectorGenerator) {
+        final MLP mlp = NetworkFixtures.factory(featureVectorGenerator)
+                .makeMLP(new ActionResponseVectorGenerator(), 16, 0.1, 10);
+        mlp.setFeatureVectorGenerator(featureVectorGenerator);
+        final EnhancedConstLeaf[] sentence = NetworkFixtures.sentence(random, 10);
+        mlp.startValidating();
+        mlp.startCalibrating(100);
+        for (SparseFeatures features : NetworkFixtures.randomFeatures(random, featureVectorGenerator, sentence, 100))
+            mlp.addObservation(features, HatParser.actionNames[random.nextInt(HatParser.actionNames.length)]);
+        mlp.stopValidating();
+        final double[] drift = mlp.quantize();
+        assertNotNull(drift);
+        assertTrue(drift[0] > 0.8, "same best label " + drift[0]);
+        return mlp;
+    }
+}